@@ -7,9 +7,14 @@
 package bits.draw3d.anim;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import bits.draw3d.actors.DepthSortable;
+import bits.draw3d.util.ParallelSortPositions;
+import bits.draw3d.util.RadixSort;
+import bits.draw3d.util.RenderList;
 import bits.draw3d.util.TimSort;
+import bits.math3d.Mat;
 import bits.math3d.Mat4;
 import bits.math3d.Vec3;
 import bits.math3d.geom.*;
@@ -20,26 +25,17 @@ import bits.math3d.geom.*;
  */
 public class DepthSorter {
 
+    public static final int SORT_COMPARATOR = RenderList.SORT_COMPARATOR;
+    public static final int SORT_RADIX      = RenderList.SORT_RADIX;
+
 
     public static DepthSorter createBackToFront( Volume optNormCullBounds ) {
-        Comparator<DepthSortable> comp;
-        if( optNormCullBounds == null ) {
-            comp = DepthSortable.BACK_TO_FRONT_ORDER;
-        } else {
-            comp = new BackToFrontCullComp( optNormCullBounds );
-        }
-        return new DepthSorter( TimSort.defaultInstance(), comp, optNormCullBounds );
+        return new DepthSorter( TimSort.defaultInstance(), DepthSortable.BACK_TO_FRONT_ORDER, optNormCullBounds );
     }
 
 
     public static DepthSorter createFrontToBack( Volume optNormCullBounds ) {
-        Comparator<DepthSortable> comp;
-        if( optNormCullBounds == null ) {
-            comp = DepthSortable.FRONT_TO_BACK_ORDER;
-        } else {
-            comp = new FrontToBackCullComp( optNormCullBounds );
-        }
-        return new DepthSorter( TimSort.defaultInstance(), comp, optNormCullBounds );
+        return new DepthSorter( TimSort.defaultInstance(), DepthSortable.FRONT_TO_BACK_ORDER, optNormCullBounds );
     }
 
 
@@ -47,6 +43,20 @@ public class DepthSorter {
     private final Comparator<DepthSortable> mComp;
 
     private final Volume mCullBounds;
+    private final Boolean mBackToFront;
+
+    private int mSortMode = SORT_COMPARATOR;
+    private RadixSort mRadix = null;
+
+    private ForkJoinPool mPool = null;
+    private int mMinParallel = ParallelSortPositions.DEFAULT_MIN_PARALLEL;
+    private boolean[] mVisible = null;
+
+    private final Mat4 mSortedMat = new Mat4();
+    private DepthSortable[] mSortedArr = null;
+    private int mSortedOff = -1;
+    private int mSortedLen = -1;
+    private long mSortedVersion = -1;
 
     private int mRenderStart = -1;
     private int mRenderStop  = -1;
@@ -56,6 +66,14 @@ public class DepthSorter {
         mSorter = sorter;
         mComp = comp;
         mCullBounds = cullBounds;
+
+        if( comp == DepthSortable.BACK_TO_FRONT_ORDER ) {
+            mBackToFront = Boolean.TRUE;
+        } else if( comp == DepthSortable.FRONT_TO_BACK_ORDER ) {
+            mBackToFront = Boolean.FALSE;
+        } else {
+            mBackToFront = null;
+        }
     }
 
 
@@ -63,6 +81,41 @@ public class DepthSorter {
         return mCullBounds;
     }
 
+    /**
+     * Selects the sort algorithm. SORT_RADIX sorts on a primitive copy of
+     * each object's depth and produces the same order as SORT_COMPARATOR. It
+     * is only available for sorters using one of the standard depth orders,
+     * such as those from <tt>createBackToFront()</tt> and
+     * <tt>createFrontToBack()</tt>. Other sorters fall back to SORT_COMPARATOR.
+     *
+     * @param mode SORT_COMPARATOR or SORT_RADIX.
+     */
+    public void sortMode( int mode ) {
+        if( mode != SORT_COMPARATOR && mode != SORT_RADIX ) {
+            throw new IllegalArgumentException( "Invalid sort mode: " + mode );
+        }
+        mSortMode = mode;
+        invalidate();
+    }
+
+
+    public int sortMode() {
+        return mSortMode;
+    }
+
+    /**
+     * Enables computation of normalized positions and cull tests across a
+     * ForkJoinPool. Arrays with fewer than <tt>minParallel</tt> objects are
+     * still processed serially.
+     *
+     * @param optPool     Pool to use, or null to disable parallel updates.
+     * @param minParallel Minimum number of objects to process in parallel.
+     */
+    public void parallelUpdate( ForkJoinPool optPool, int minParallel ) {
+        mPool        = optPool;
+        mMinParallel = minParallel;
+    }
+
 
     /**
      * Computes normalized positions of DepthSortable objects, then
@@ -77,10 +130,54 @@ public class DepthSorter {
      * @param len Number of objects in array.
      */
     public void sort( Mat4 modelToNormMat, DepthSortable[] arr, int off, int len ) {
-        for( int i = 0; i < len; i++ ) {
-            arr[i + off].updateNormPos( modelToNormMat );
+        if( mPool == null || len < mMinParallel ) {
+            for( int i = 0; i < len; i++ ) {
+                arr[i + off].updateNormPos( modelToNormMat );
+            }
+            sort( arr, off, len );
+        } else {
+            sortParallel( modelToNormMat, arr, off, len );
         }
-        sort( arr, off, len );
+    }
+
+    /**
+     * Like <tt>sort( modelToNormMat, arr, off, len )</tt>, but does nothing if
+     * the last call to this method received an equal matrix, the same array
+     * range and the same <tt>itemVersion</tt>. In that case, the previous
+     * order and render range are kept. Callers should change
+     * <tt>itemVersion</tt> whenever the array contents change or objects move,
+     * such as by passing <tt>RenderList.version()</tt>.
+     *
+     * @param modelToNormMat Model-to-normalized transform.
+     * @param arr            Array of DepthSortable objects to sort.
+     * @param off            Offset into array.
+     * @param len            Number of objects in array.
+     * @param itemVersion    Caller-defined version of array contents.
+     */
+    public void sort( Mat4 modelToNormMat, DepthSortable[] arr, int off, int len, long itemVersion ) {
+        if( itemVersion == mSortedVersion &&
+            arr == mSortedArr &&
+            off == mSortedOff &&
+            len == mSortedLen &&
+            modelToNormMat.equals( mSortedMat ) )
+        {
+            return;
+        }
+
+        sort( modelToNormMat, arr, off, len );
+        Mat.put( modelToNormMat, mSortedMat );
+        mSortedArr     = arr;
+        mSortedOff     = off;
+        mSortedLen     = len;
+        mSortedVersion = itemVersion;
+    }
+
+    /**
+     * Causes next call to <tt>sort( modelToNormMat, arr, off, len, itemVersion )</tt>
+     * to sort unconditionally.
+     */
+    public void invalidate() {
+        mSortedArr = null;
     }
 
     /**
@@ -89,37 +186,26 @@ public class DepthSorter {
      * the array into culled and unculled objects.  The partion boundaries
      * can be retrieved by calling <tt>unculledStartIndex()</tt> and
      * <tt>unculledStopIndex</tt>.
+     * <p>
+     * Visibility is tested once per object, and only the unculled objects
+     * are sorted. The order of culled objects is undefined.
      *
      * @param arr Array of DepthSortable objects to sort.
      * @param off Offset into array.
      * @param len Number of objects in array.
      */
     public void sort( DepthSortable[] arr, int off, int len ) {
-        mSorter.sort( arr, off, off + len, mComp );
-
-        Volume cull = mCullBounds;
-        if( cull == null ) {
-            mRenderStart = off;
-            mRenderStop = off + len;
+        if( mPool != null && len >= mMinParallel && mCullBounds != null ) {
+            sortParallel( null, arr, off, len );
             return;
         }
 
-        //Binary search for last remark not culled.
-        int i = off;
-        int j = off + len;
-
-        while( i < j ) {
-            int k = (i + j) / 2;
-            Vec3 pos = arr[k].normPosRef();
-            if( cull.contains( pos.x, pos.y, pos.z ) ) {
-                i = k + 1;
-            } else {
-                j = k;
-            }
+        int stop = off + len;
+        if( mCullBounds != null ) {
+            stop = partition( mCullBounds, arr, off, stop );
         }
 
-        mRenderStart = off;
-        mRenderStop = i;
+        sortRange( arr, off, stop );
     }
 
     /**
@@ -147,55 +233,78 @@ public class DepthSorter {
     }
 
 
-    private static class BackToFrontCullComp implements Comparator<DepthSortable> {
-
-        private final Volume mBounds;
+    private void sortParallel( Mat4 optMat, DepthSortable[] arr, int off, int len ) {
+        int stop = off + len;
 
-        public BackToFrontCullComp( Volume bounds ) {
-            mBounds = bounds;
+        if( mCullBounds == null ) {
+            ParallelSortPositions.update( mPool, mMinParallel, arr, off, len, optMat, null, null );
+        } else {
+            if( mVisible == null || mVisible.length < len ) {
+                mVisible = new boolean[len];
+            }
+            ParallelSortPositions.update( mPool, mMinParallel, arr, off, len, optMat, mCullBounds, mVisible );
+            stop = partition( mVisible, arr, off, stop );
         }
 
+        sortRange( arr, off, stop );
+    }
 
-        public int compare( DepthSortable a, DepthSortable b ) {
-            Vec3 ap = a.normPosRef();
-            if( !mBounds.contains( ap.x, ap.y, ap.z ) ) {
-                return 1;
-            }
 
-            Vec3 bp = b.normPosRef();
-            if( !mBounds.contains( bp.x, bp.y, bp.z ) ) {
-                return -1;
+    private void sortRange( DepthSortable[] arr, int off, int stop ) {
+        if( mSortMode == SORT_RADIX && mBackToFront != null ) {
+            if( mRadix == null ) {
+                mRadix = new RadixSort();
             }
-
-            return ap.z < bp.z ? 1 : -1;
+            mRadix.sortByDepth( arr, off, stop, mBackToFront );
+        } else {
+            mSorter.sort( arr, off, stop, mComp );
         }
 
+        mRenderStart = off;
+        mRenderStop  = stop;
     }
 
 
-    private static class FrontToBackCullComp implements Comparator<DepthSortable> {
-
-        private final Volume mBounds;
+    /**
+     * Moves objects inside the cull bounds to the front of the range,
+     * preserving their relative order.
+     *
+     * @return exclusive stop position of unculled objects.
+     */
+    private static int partition( Volume cull, DepthSortable[] arr, int start, int stop ) {
+        int w = start;
 
-        public FrontToBackCullComp( Volume bounds ) {
-            mBounds = bounds;
+        for( int i = start; i < stop; i++ ) {
+            DepthSortable d = arr[i];
+            Vec3 pos = d.normPosRef();
+            if( cull.contains( pos.x, pos.y, pos.z ) ) {
+                arr[i] = arr[w];
+                arr[w++] = d;
+            }
         }
 
+        return w;
+    }
 
-        public int compare( DepthSortable a, DepthSortable b ) {
-            Vec3 ap = a.normPosRef();
-            if( !mBounds.contains( ap.x, ap.y, ap.z ) ) {
-                return 1;
-            }
-
-            Vec3 bp = b.normPosRef();
-            if( !mBounds.contains( bp.x, bp.y, bp.z ) ) {
-                return -1;
+    /**
+     * Moves objects flagged as visible to the front of the range,
+     * preserving their relative order.
+     *
+     * @param visible Cull test results, where <tt>visible[i]</tt> corresponds to <tt>arr[start+i]</tt>.
+     * @return exclusive stop position of unculled objects.
+     */
+    private static int partition( boolean[] visible, DepthSortable[] arr, int start, int stop ) {
+        int w = start;
+
+        for( int i = start; i < stop; i++ ) {
+            if( visible[i - start] ) {
+                DepthSortable d = arr[i];
+                arr[i] = arr[w];
+                arr[w++] = d;
             }
-
-            return ap.z > bp.z ? 1 : -1;
         }
 
+        return w;
     }
 
 
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Alpha operations on RGBA8 pixel buffers, as used by ScreenshotSaver.
+ * Pixels are processed a whole int at a time through bulk transfers, and
+ * per-channel multiply and divide are replaced by 64 KB lookup tables
+ * indexed by <tt>(alpha << 8 | channel)</tt>. Results are identical to
+ * computing <tt>c * a / 255</tt> and <tt>min( 255, c * 255 / a )</tt>.
+ * <p>
+ * Buffers larger than a threshold may be split across a ForkJoinPool.
+ *
+ * @author decamp
+ */
+public class AlphaOps {
+
+    public static final int ALPHA_COPY              = 0;
+    public static final int ALPHA_SATURATE          = 1;
+    public static final int ALPHA_MULTIPLY          = 2;
+    public static final int ALPHA_MULTIPLY_SATURATE = 3;
+    public static final int ALPHA_DIVIDE            = 4;
+
+    /**
+     * Default number of pixels below which operations run serially.
+     */
+    public static final int DEFAULT_MIN_PARALLEL = 1 << 18;
+
+    private static final int BLOCK = 1 << 12;
+
+    private static final byte[] MUL = new byte[256 * 256];
+    private static final byte[] DIV = new byte[256 * 256];
+
+    static {
+        for( int a = 0; a < 256; a++ ) {
+            for( int c = 0; c < 256; c++ ) {
+                MUL[a << 8 | c] = (byte)( c * a / 255 );
+                DIV[a << 8 | c] = a == 0 ? 0 : (byte)Math.min( 255, c * 255 / a );
+            }
+        }
+    }
+
+
+    /**
+     * Applies an alpha operation serially.
+     *
+     * @param op  Operation to apply.
+     * @param buf Buffer of RGBA pixels, starting at <tt>buf.position()</tt>. Position is not modified.
+     * @param len Number of bytes to process.
+     */
+    public static void apply( int op, ByteBuffer buf, int len ) {
+        apply( null, DEFAULT_MIN_PARALLEL, op, buf, len );
+    }
+
+    /**
+     * Applies an alpha operation, splitting large buffers across a pool.
+     *
+     * @param optPool     Pool on which to run. If null, runs serially.
+     * @param minParallel Minimum number of pixels to process in parallel.
+     * @param op          Operation to apply.
+     * @param buf         Buffer of RGBA pixels, starting at <tt>buf.position()</tt>. Position is not modified.
+     * @param len         Number of bytes to process.
+     */
+    public static void apply( ForkJoinPool optPool, int minParallel, int op, ByteBuffer buf, int len ) {
+        if( op == ALPHA_COPY || len <= 0 ) {
+            return;
+        }
+
+        // Red is in the low byte, alpha in the high byte.
+        IntBuffer ints = buf.duplicate().order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer();
+        int pixels = len >> 2;
+
+        if( optPool == null || pixels < minParallel ) {
+            applyRange( op, ints, 0, pixels, new int[ Math.min( pixels, BLOCK ) ] );
+            return;
+        }
+
+        int chunk = Math.max( BLOCK, pixels / ( optPool.getParallelism() * 4 ) + 1 );
+        optPool.invoke( new Task( op, ints, 0, pixels, chunk ) );
+    }
+
+
+
+    private static void applyRange( int op, IntBuffer ints, int start, int stop, int[] work ) {
+        final IntBuffer src = ints.duplicate();
+        final IntBuffer dst = ints.duplicate();
+
+        for( int p = start; p < stop; p += work.length ) {
+            int n = Math.min( work.length, stop - p );
+            src.limit( p + n ).position( p );
+            src.get( work, 0, n );
+
+            switch( op ) {
+            case ALPHA_SATURATE:
+                saturate( work, n );
+                break;
+            case ALPHA_MULTIPLY:
+                multiply( work, n, false );
+                break;
+            case ALPHA_MULTIPLY_SATURATE:
+                multiply( work, n, true );
+                break;
+            case ALPHA_DIVIDE:
+                divide( work, n );
+                break;
+            default:
+                return;
+            }
+
+            dst.limit( p + n ).position( p );
+            dst.put( work, 0, n );
+        }
+    }
+
+
+    private static void saturate( int[] px, int n ) {
+        for( int i = 0; i < n; i++ ) {
+            px[i] |= 0xFF000000;
+        }
+    }
+
+
+    private static void multiply( int[] px, int n, boolean saturate ) {
+        final byte[] mul = MUL;
+        final int alphaMask = saturate ? 0xFF000000 : 0;
+
+        for( int i = 0; i < n; i++ ) {
+            int v = px[i];
+            int a = ( v >>> 16 ) & 0xFF00;
+            if( a == 0xFF00 ) {
+                px[i] = v;
+                continue;
+            }
+            int r = mul[a | ( v         & 0xFF )] & 0xFF;
+            int g = mul[a | ( v >>>  8  & 0xFF )] & 0xFF;
+            int b = mul[a | ( v >>> 16  & 0xFF )] & 0xFF;
+            px[i] = ( v & 0xFF000000 ) | alphaMask | b << 16 | g << 8 | r;
+        }
+    }
+
+
+    private static void divide( int[] px, int n ) {
+        final byte[] div = DIV;
+
+        for( int i = 0; i < n; i++ ) {
+            int v = px[i];
+            int a = ( v >>> 16 ) & 0xFF00;
+            if( a == 0 ) {
+                px[i] = 0;
+                continue;
+            }
+            int r = div[a | ( v         & 0xFF )] & 0xFF;
+            int g = div[a | ( v >>>  8  & 0xFF )] & 0xFF;
+            int b = div[a | ( v >>> 16  & 0xFF )] & 0xFF;
+            px[i] = ( v & 0xFF000000 ) | b << 16 | g << 8 | r;
+        }
+    }
+
+
+    @SuppressWarnings( "serial" )
+    private static final class Task extends RecursiveAction {
+
+        private final int mOp;
+        private final IntBuffer mInts;
+        private final int mStart;
+        private final int mStop;
+        private final int mChunk;
+
+
+        Task( int op, IntBuffer ints, int start, int stop, int chunk ) {
+            mOp    = op;
+            mInts  = ints;
+            mStart = start;
+            mStop  = stop;
+            mChunk = chunk;
+        }
+
+
+        @Override
+        protected void compute() {
+            if( mStop - mStart <= mChunk ) {
+                applyRange( mOp, mInts, mStart, mStop, new int[ Math.min( mStop - mStart, BLOCK ) ] );
+                return;
+            }
+
+            int mid = ( mStart + mStop ) >>> 1;
+            invokeAll( new Task( mOp, mInts, mStart, mid, mChunk ),
+                       new Task( mOp, mInts, mid, mStop, mChunk ) );
+        }
+    }
+
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.jogamp.opengl.GL3;
+import static com.jogamp.opengl.GL3.*;
+
+import bits.draw3d.DrawEnv;
+
+
+/**
+ * Captures screenshots without stalling the render thread. Pixels are read
+ * into a ring of pixel buffer objects, which are mapped once the GPU has
+ * finished with them, usually a frame or two later. The alpha op, PNG
+ * encoding and file write are then run on a worker pool.
+ * <p>
+ * <tt>poll()</tt> must be called once per frame on the GL thread, after
+ * drawing. If all ring slots are waiting on the GPU when a capture is
+ * requested, the oldest slot is completed immediately, and if too many
+ * captures are waiting on workers, the GL thread blocks until one finishes.
+ *
+ * @author decamp
+ */
+public class AsyncScreenshotSaver {
+
+    public static final int DEFAULT_RING_SIZE = 3;
+
+    /**
+     * Processes captured pixels on a worker thread.
+     */
+    public static interface FrameHandler<T> {
+        /**
+         * @param rgba Pixels with rows ordered bottom-up, after alpha op has been applied.
+         *             Buffer is released after this call returns and must not be retained.
+         */
+        public T handle( ByteBuffer rgba, int w, int h ) throws IOException;
+    }
+
+    /**
+     * Number of frames after which a capture is mapped even if its fence has
+     * not signalled.
+     */
+    private static final int MAX_LAG = 2;
+
+
+    private final ScreenshotSaver mSaver;
+    private final ExecutorService mExec;
+    private final boolean mOwnsExec;
+    private final Slot[] mSlots;
+    private final Semaphore mInFlight;
+
+    // Slots waiting on GPU, in order of capture.
+    private final Deque<Slot> mPending = new ArrayDeque<Slot>();
+    private long mFrame = 0;
+
+
+    /**
+     * @param saver       Provides output file sequence, buffer pool and encoding.
+     * @param ringSize    Number of pixel buffer objects to use.
+     * @param optExecutor Executor for encoding and writing. If null, a pool is created
+     *                    with one daemon thread per processor, and shut down by <tt>dispose()</tt>.
+     */
+    public AsyncScreenshotSaver( ScreenshotSaver saver, int ringSize, ExecutorService optExecutor ) {
+        ringSize = Math.max( 1, ringSize );
+        mSaver   = saver;
+        mSlots   = new Slot[ringSize];
+        for( int i = 0; i < ringSize; i++ ) {
+            mSlots[i] = new Slot();
+        }
+
+        if( optExecutor != null ) {
+            mExec     = optExecutor;
+            mOwnsExec = false;
+        } else {
+            mExec     = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "ScreenshotEncoder" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            mOwnsExec = true;
+        }
+
+        mInFlight = new Semaphore( maxInFlight() );
+    }
+
+
+
+    /**
+     * Starts a capture to the next file in the saver's PNG sequence.
+     *
+     * @return future that provides file once written, or null if saver has no output directory.
+     */
+    public Future<File> savePng( DrawEnv d, int x, int y, int w, int h, int alphaOp ) {
+        File file = mSaver.nextPngFile();
+        if( file == null ) {
+            return null;
+        }
+        return savePng( d, x, y, w, h, alphaOp, file );
+    }
+
+    /**
+     * Starts a capture of the current read buffer. Must be called on the GL thread.
+     * If the capture fails or is cancelled, <tt>outFile</tt> is deleted, so
+     * that names reserved by <tt>ScreenshotSaver.nextPngFile()</tt> do not
+     * remain as empty files.
+     *
+     * @return future that provides <tt>outFile</tt> once written.
+     */
+    public Future<File> savePng( DrawEnv d, int x, int y, int w, int h, int alphaOp, final File outFile ) {
+        return capture( d, x, y, w, h, alphaOp, new FrameHandler<File>() {
+            public File handle( ByteBuffer rgba, int w, int h ) throws IOException {
+                mSaver.savePng( rgba, w, h, outFile );
+                return outFile;
+            }
+        }, outFile );
+    }
+
+    /**
+     * Starts a capture that is queued for the saver's open video once
+     * available. Frames are added in the order their handlers run, so the
+     * executor given to this saver must run one task at a time in order,
+     * such as one from <tt>Executors.newSingleThreadExecutor()</tt>. JPEG
+     * encoding still runs on the video writer's own pool.
+     *
+     * @return future that provides true once frame is queued, or false if no video was open.
+     */
+    public Future<Boolean> saveVideoFrame( DrawEnv d, int x, int y, int w, int h, int alphaOp ) {
+        return capture( d, x, y, w, h, alphaOp, new FrameHandler<Boolean>() {
+            public Boolean handle( ByteBuffer rgba, int w, int h ) throws IOException {
+                return mSaver.saveVideoFrame( rgba, w, h );
+            }
+        } );
+    }
+
+    /**
+     * Starts a capture of the current read buffer that is passed to a
+     * handler once available. Must be called on the GL thread.
+     *
+     * @return future that provides result of handler.
+     */
+    public <T> Future<T> capture( DrawEnv d, int x, int y, int w, int h, int alphaOp, FrameHandler<T> handler ) {
+        return capture( d, x, y, w, h, alphaOp, handler, null );
+    }
+
+    /**
+     * @return number of captures that may be dispatched to workers before
+     *         <tt>capture()</tt> and <tt>poll()</tt> block the GL thread.
+     *         Callers that must never block should keep fewer than this many
+     *         captures incomplete.
+     */
+    public int maxInFlight() {
+        return mSlots.length * 2;
+    }
+
+    /**
+     * Hands completed captures to workers. Call once per frame on the GL thread.
+     *
+     * @return number of captures dispatched.
+     */
+    public int poll( DrawEnv d ) {
+        final GL3 gl = d.mGl;
+        mFrame++;
+        int count = 0;
+
+        while( !mPending.isEmpty() ) {
+            Slot slot = mPending.peekFirst();
+            boolean force = mFrame - slot.mFrame >= MAX_LAG;
+            if( !force ) {
+                int res = gl.glClientWaitSync( slot.mFence, 0, 0L );
+                if( res != GL_ALREADY_SIGNALED && res != GL_CONDITION_SATISFIED ) {
+                    break;
+                }
+            }
+            mPending.removeFirst();
+            dispatch( gl, slot, force );
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Dispatches all pending captures, waiting on the GPU as needed. Does not wait for workers.
+     */
+    public void flush( DrawEnv d ) {
+        while( !mPending.isEmpty() ) {
+            dispatch( d.mGl, mPending.removeFirst(), true );
+        }
+    }
+
+    /**
+     * Flushes pending captures and releases GL resources. If the executor was
+     * created by this saver, it is shut down after queued captures finish.
+     */
+    public void dispose( DrawEnv d ) {
+        flush( d );
+        final GL3 gl = d.mGl;
+        for( Slot s: mSlots ) {
+            if( s.mPbo != 0 ) {
+                gl.glDeleteBuffers( 1, new int[]{ s.mPbo }, 0 );
+                s.mPbo = 0;
+                s.mCap = 0;
+            }
+        }
+
+        if( mOwnsExec ) {
+            mExec.shutdown();
+        }
+    }
+
+
+
+    private <T> Future<T> capture( DrawEnv d,
+                                   int x,
+                                   int y,
+                                   int w,
+                                   int h,
+                                   int alphaOp,
+                                   FrameHandler<T> handler,
+                                   File optOutFile )
+    {
+        final GL3 gl = d.mGl;
+        Slot slot = freeSlot();
+        if( slot == null ) {
+            // Ring is full. Complete the oldest capture now.
+            dispatch( gl, mPending.removeFirst(), true );
+            slot = freeSlot();
+        }
+
+        final int len = w * h * 4;
+        if( slot.mPbo == 0 ) {
+            int[] id = new int[1];
+            gl.glGenBuffers( 1, id, 0 );
+            slot.mPbo = id[0];
+        }
+
+        gl.glBindBuffer( GL_PIXEL_PACK_BUFFER, slot.mPbo );
+        if( slot.mCap < len ) {
+            gl.glBufferData( GL_PIXEL_PACK_BUFFER, len, null, GL_STREAM_READ );
+            slot.mCap = len;
+        }
+        gl.glReadPixels( x, y, w, h, GL_RGBA, GL_UNSIGNED_BYTE, 0L );
+        gl.glBindBuffer( GL_PIXEL_PACK_BUFFER, 0 );
+
+        slot.mFence = gl.glFenceSync( GL_SYNC_GPU_COMMANDS_COMPLETE, 0 );
+        slot.mFrame = mFrame;
+        Task<T> task = new Task<T>( new Job<T>( w, h, alphaOp, handler ), optOutFile );
+        slot.mTask  = task;
+        mPending.addLast( slot );
+
+        return task;
+    }
+
+
+    private Slot freeSlot() {
+        for( Slot s: mSlots ) {
+            if( s.mTask == null ) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+
+    private void dispatch( GL3 gl, Slot slot, boolean wait ) {
+        if( wait ) {
+            gl.glClientWaitSync( slot.mFence, GL_SYNC_FLUSH_COMMANDS_BIT, Long.MAX_VALUE );
+        }
+        gl.glDeleteSync( slot.mFence );
+        slot.mFence = 0;
+
+        final Task<?> task = slot.mTask;
+        final Job<?> job   = task.mJob;
+        final int len      = job.mWidth * job.mHeight * 4;
+        slot.mTask = null;
+
+        if( task.isDone() ) {
+            // Cancelled while waiting on GPU.
+            return;
+        }
+
+        // Apply backpressure if workers have fallen behind.
+        mInFlight.acquireUninterruptibly();
+        ByteBuffer data = null;
+
+        try {
+            data = mSaver.bufferPool().acquire( len );
+            gl.glBindBuffer( GL_PIXEL_PACK_BUFFER, slot.mPbo );
+            ByteBuffer mapped = gl.glMapBufferRange( GL_PIXEL_PACK_BUFFER, 0, len, GL_MAP_READ_BIT );
+            if( mapped != null ) {
+                mapped.limit( len );
+                data.put( mapped );
+                data.flip();
+            }
+            gl.glUnmapBuffer( GL_PIXEL_PACK_BUFFER );
+            gl.glBindBuffer( GL_PIXEL_PACK_BUFFER, 0 );
+
+            if( mapped == null ) {
+                mSaver.bufferPool().release( data );
+                data = null;
+            }
+
+        } catch( RuntimeException ex ) {
+            mSaver.bufferPool().release( data );
+            mInFlight.release();
+            task.fail( ex );
+            throw ex;
+        }
+
+        // Job now owns buffer and permit until it runs, or until task completes without running.
+        job.hold( data );
+        if( task.isDone() ) {
+            job.free();
+        }
+
+        try {
+            mExec.execute( task );
+        } catch( RejectedExecutionException ex ) {
+            task.fail( ex );
+        }
+    }
+
+
+    private static final class Slot {
+        int mPbo    = 0;
+        int mCap    = 0;
+        long mFence = 0;
+        long mFrame = 0;
+        Task<?> mTask = null;
+    }
+
+
+    /**
+     * Releases the job's buffer and permit if it completes without running,
+     * as when cancelled or rejected by the executor, and deletes the output
+     * file, if any, unless the task succeeded.
+     */
+    private static final class Task<T> extends FutureTask<T> {
+
+        final Job<T> mJob;
+        final File mOutFile;
+
+        Task( Job<T> job, File optOutFile ) {
+            super( job );
+            mJob     = job;
+            mOutFile = optOutFile;
+        }
+
+
+        @Override
+        protected void done() {
+            mJob.free();
+            if( mOutFile == null ) {
+                return;
+            }
+            try {
+                get();
+            } catch( Exception ex ) {
+                mOutFile.delete();
+            }
+        }
+
+
+        void fail( Throwable t ) {
+            setException( t );
+            mJob.free();
+        }
+    }
+
+
+    private final class Job<T> implements Callable<T> {
+
+        final int mWidth;
+        final int mHeight;
+        final int mAlphaOp;
+        final FrameHandler<T> mHandler;
+        final AtomicBoolean mHeld = new AtomicBoolean( false );
+        volatile ByteBuffer mData = null;
+
+        Job( int w, int h, int alphaOp, FrameHandler<T> handler ) {
+            mWidth   = w;
+            mHeight  = h;
+            mAlphaOp = alphaOp;
+            mHandler = handler;
+        }
+
+
+        public T call() throws IOException {
+            // Claim buffer and permit, unless task was cancelled first.
+            if( !mHeld.compareAndSet( true, false ) ) {
+                throw new CancellationException();
+            }
+
+            ByteBuffer data = mData;
+            try {
+                if( data == null ) {
+                    throw new IOException( "Failed to map pixel buffer." );
+                }
+
+                ScreenshotSaver.applyOp( mAlphaOp, data, mWidth * mHeight * 4 );
+                return mHandler.handle( data, mWidth, mHeight );
+
+            } finally {
+                mData = null;
+                mSaver.bufferPool().release( data );
+                mInFlight.release();
+            }
+        }
+
+
+        void hold( ByteBuffer data ) {
+            mData = data;
+            mHeld.set( true );
+        }
+
+        /**
+         * Releases buffer and permit if still held and not claimed by <tt>call()</tt>.
+         */
+        void free() {
+            if( mHeld.compareAndSet( true, false ) ) {
+                ByteBuffer data = mData;
+                mData = null;
+                mSaver.bufferPool().release( data );
+                mInFlight.release();
+            }
+        }
+    }
+
+}
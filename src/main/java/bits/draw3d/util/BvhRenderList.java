@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.util.*;
+
+import bits.draw3d.DrawEnv;
+import bits.draw3d.PosObject;
+import bits.draw3d.actors.DepthSortable;
+import bits.math3d.Box3;
+import bits.math3d.geom.*;
+
+
+/**
+ * RenderList for large sets of mostly static items. Static items are indexed
+ * with a StaticBvh, and each update only transforms and sorts the static
+ * items in nodes that intersect the view frustum. Dynamic items are kept in
+ * a side list and always pass through the sort.
+ * <p>
+ * The list is only refilled when the set of visible nodes or dynamic items
+ * changes, so the previous order is kept and RenderList features that
+ * depend on it, such as <tt>skipUnchanged</tt> and SORT_INCREMENTAL, apply.
+ * <p>
+ * After <tt>update()</tt>, draw items from <tt>renderList()</tt> as with any
+ * other RenderList.
+ *
+ * @author decamp
+ */
+public class BvhRenderList<T extends PosObject & DepthSortable> {
+
+
+    public static <T extends PosObject & DepthSortable> BvhRenderList<T> create( Class<T> clazz,
+                                                                                 boolean sortOrder,
+                                                                                 Volume cullVolume )
+    {
+        return new BvhRenderList<T>( RenderList.create( clazz, 64, sortOrder, cullVolume ), cullVolume );
+    }
+
+
+    @SuppressWarnings( "deprecation" )
+    private static Box3 boundsOf( Volume vol ) {
+        Aabb b = vol.bounds();
+        return new Box3( b.minX(), b.minY(), b.minZ(), b.maxX(), b.maxY(), b.maxZ() );
+    }
+
+
+
+    private final RenderList<T> mList;
+    private final Box3 mQueryBounds;
+    private final StaticBvh<T> mStatic = new StaticBvh<T>();
+    private final List<T> mDynamic = new ArrayList<T>();
+
+    // Ranges of static items in list, and whether list must be refilled regardless.
+    private int[] mRanges = new int[0];
+    private int mRangeCount = 0;
+    private boolean mDirty = true;
+
+
+    private BvhRenderList( RenderList<T> list, Volume cullVolume ) {
+        mList = list;
+        mQueryBounds = cullVolume == null ? null : boundsOf( cullVolume );
+    }
+
+
+    /**
+     * Replaces the set of static items and rebuilds the hierarchy.
+     */
+    public void setStatic( T[] items, int off, int len ) {
+        mStatic.build( items, off, len );
+        mDirty = true;
+    }
+
+    /**
+     * Updates hierarchy bounds after static items have moved.
+     */
+    public void refitStatic() {
+        mStatic.refit();
+        mList.invalidate();
+    }
+
+
+    public void addDynamic( T item ) {
+        mDynamic.add( item );
+        mDirty = true;
+    }
+
+
+    public boolean removeDynamic( T item ) {
+        if( !mDynamic.remove( item ) ) {
+            return false;
+        }
+        mDirty = true;
+        return true;
+    }
+
+
+    public void clearDynamic() {
+        mDynamic.clear();
+        mDirty = true;
+    }
+
+    /**
+     * @return RenderList holding unculled items, valid after <tt>update()</tt>.
+     */
+    public RenderList<T> renderList() {
+        return mList;
+    }
+
+
+    public void update( DrawEnv d ) {
+        mList.updateOrientation( d );
+        updateSort();
+    }
+
+    /**
+     * Queries static items against the frustum in <tt>renderList().mModelToNormMat</tt>,
+     * adds dynamic items if the result differs from the last update, and
+     * sorts the result.
+     */
+    public void updateSort() {
+        RenderList<T> list = mList;
+        int n = mStatic.cull( list.mModelToNormMat, mQueryBounds );
+        int[] ranges = mStatic.rangesRef();
+
+        if( mDirty || !sameRanges( ranges, n ) ) {
+            list.clear();
+            T[] items = mStatic.itemsRef();
+            for( int i = 0; i < n; i += 2 ) {
+                list.add( items, ranges[i], ranges[i+1] - ranges[i] );
+            }
+            list.addAll( mDynamic );
+
+            if( mRanges.length < n ) {
+                mRanges = new int[ranges.length];
+            }
+            System.arraycopy( ranges, 0, mRanges, 0, n );
+            mRangeCount = n;
+            mDirty = false;
+        }
+
+        list.updateSort();
+    }
+
+
+
+    private boolean sameRanges( int[] ranges, int n ) {
+        if( n != mRangeCount ) {
+            return false;
+        }
+        for( int i = 0; i < n; i++ ) {
+            if( ranges[i] != mRanges[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+
+/**
+ * Lossless codec for float depth buffers. Plain deflate does poorly on
+ * depth because each float's bytes are interleaved, so the slowly varying
+ * exponent and high mantissa bytes are separated by noisy low bytes. This
+ * codec first predicts each value from its left neighbor, taking either the
+ * integer difference or XOR of their bit patterns, then splits residuals
+ * into four byte planes, most significant first, and deflates the result.
+ * <p>
+ * Images are split into bands of rows, which are coded independently and in
+ * parallel. Format, all values big-endian: magic, width, height, rows per
+ * band, predictor, band count, then for each band its compressed length
+ * followed by a zlib stream.
+ *
+ * @author decamp
+ */
+public class DepthCodec {
+
+    public static final int MAGIC = 0x44505A31;
+
+    public static final int PREDICT_DELTA = 0;
+    public static final int PREDICT_XOR   = 1;
+
+    /**
+     * Images with fewer bytes than this are coded as a single band.
+     */
+    public static final int DEFAULT_MIN_BAND_BYTES = 1 << 18;
+
+    static final int HEADER = 24;
+
+
+    private final ExecutorService mExec;
+    private final boolean mOwnsExec;
+    private final int mThreads;
+    private final int mPredictor;
+    private final int mMinBandBytes;
+
+
+    /**
+     * @param optExecutor Executor on which to code bands. If null, a pool of daemon threads
+     *                    is created with one thread per processor.
+     */
+    public DepthCodec( ExecutorService optExecutor ) {
+        this( optExecutor, PREDICT_DELTA, DEFAULT_MIN_BAND_BYTES );
+    }
+
+
+    public DepthCodec( ExecutorService optExecutor, int predictor, int minBandBytes ) {
+        mThreads = Runtime.getRuntime().availableProcessors();
+        if( optExecutor == null ) {
+            mExec = Executors.newFixedThreadPool( mThreads, new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "DepthCodec" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            mOwnsExec = true;
+        } else {
+            mExec = optExecutor;
+            mOwnsExec = false;
+        }
+
+        if( predictor != PREDICT_DELTA && predictor != PREDICT_XOR ) {
+            throw new IllegalArgumentException( "Unknown predictor: " + predictor );
+        }
+        mPredictor    = predictor;
+        mMinBandBytes = Math.max( 1, minBandBytes );
+    }
+
+
+    /**
+     * Encodes depth values as read from GL.
+     *
+     * @param in    Floats in native byte order, starting at <tt>in.position()</tt>. Position is moved to end of data.
+     * @param w     Width of image.
+     * @param h     Height of image.
+     * @param level Deflate level.
+     * @param out   Receives encoded data. May be null, or replaced if it lacks space.
+     * @return buffer holding encoded data, from its original position to its new position.
+     */
+    public ByteBuffer encode( ByteBuffer in, int w, int h, int level, ByteBuffer out ) throws IOException {
+        FloatBuffer fb = in.duplicate().order( ByteOrder.nativeOrder() ).asFloatBuffer();
+        out = encode( fb, w, h, level, out );
+        in.position( in.position() + w * h * 4 );
+        return out;
+    }
+
+    /**
+     * @param in Depth values, starting at position. Position is not modified.
+     * @see #encode(ByteBuffer, int, int, int, ByteBuffer)
+     */
+    public ByteBuffer encode( final FloatBuffer in, final int w, int h, final int level, ByteBuffer out ) throws IOException {
+        final int bandRows = bandRows( w, h );
+        final int bands    = ( h + bandRows - 1 ) / bandRows;
+        final int base     = in.position();
+
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>( bands );
+        for( int b = 0; b < bands; b++ ) {
+            final int r0   = b * bandRows;
+            final int rows = Math.min( bandRows, h - r0 );
+            futures.add( submit( new Callable<byte[]>() {
+                public byte[] call() {
+                    return encodeBand( in, base + r0 * w, w, rows, level );
+                }
+            }, bands ) );
+        }
+
+        List<byte[]> blobs = getAll( futures );
+        int size = HEADER;
+        for( byte[] blob: blobs ) {
+            size += 4 + blob.length;
+        }
+
+        if( out == null || out.remaining() < size ) {
+            ByteBuffer b = ByteBuffer.allocateDirect( ( out == null ? 0 : out.position() ) + size );
+            if( out != null ) {
+                out.flip();
+                b.put( out );
+            }
+            out = b;
+        }
+
+        ByteOrder order = out.order();
+        out.order( ByteOrder.BIG_ENDIAN );
+        out.putInt( MAGIC ).putInt( w ).putInt( h ).putInt( bandRows ).putInt( mPredictor ).putInt( bands );
+        for( byte[] blob: blobs ) {
+            out.putInt( blob.length );
+            out.put( blob );
+        }
+        out.order( order );
+        return out;
+    }
+
+    /**
+     * Decodes depth values.
+     *
+     * @param in      Encoded data, from position. Position is moved to end of data.
+     * @param outSize Receives width and height. May be null.
+     * @param out     Buffer to receive values at position. If null or too small, a heap buffer is allocated.
+     * @return buffer holding values, flipped so values lie between position and limit.
+     */
+    public FloatBuffer decode( ByteBuffer in, int[] outSize, FloatBuffer out ) throws IOException {
+        ByteBuffer src = in.duplicate().order( ByteOrder.BIG_ENDIAN );
+        if( src.remaining() < HEADER || src.getInt() != MAGIC ) {
+            throw new IOException( "Not encoded depth data." );
+        }
+
+        final int w         = src.getInt();
+        final int h         = src.getInt();
+        final int bandRows  = src.getInt();
+        final int predictor = src.getInt();
+        final int bands     = src.getInt();
+
+        if( outSize != null ) {
+            outSize[0] = w;
+            outSize[1] = h;
+        }
+
+        int len = w * h;
+        if( out == null || out.remaining() < len ) {
+            out = FloatBuffer.allocate( len );
+        } else {
+            out.limit( out.position() + len );
+            out = out.slice();
+        }
+
+        final FloatBuffer dst = out;
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>( bands );
+
+        for( int b = 0; b < bands; b++ ) {
+            final int r0   = b * bandRows;
+            final int rows = Math.min( bandRows, h - r0 );
+            final int n    = src.getInt();
+            if( rows <= 0 || n < 0 || n > src.remaining() ) {
+                throw new IOException( "Corrupt depth data." );
+            }
+
+            final ByteBuffer blob = src.slice();
+            blob.limit( n );
+            src.position( src.position() + n );
+
+            futures.add( submit( new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    decodeBand( blob, dst, r0 * w, w, rows, predictor );
+                    return null;
+                }
+            }, bands ) );
+        }
+
+        getAll( futures );
+        in.position( src.position() );
+        return out;
+    }
+
+
+    public void shutdown() {
+        if( mOwnsExec ) {
+            mExec.shutdown();
+        }
+    }
+
+
+
+    private int bandRows( int w, int h ) {
+        int stride = Math.max( 1, w * 4 );
+        int minRows = ( mMinBandBytes + stride - 1 ) / stride;
+        int rows = ( h + mThreads * 2 - 1 ) / ( mThreads * 2 );
+        return Math.max( 1, Math.max( minRows, rows ) );
+    }
+
+
+    private <T> Future<T> submit( Callable<T> task, int count ) {
+        if( count == 1 ) {
+            // Skip thread handoff for small images.
+            FutureTask<T> ret = new FutureTask<T>( task );
+            ret.run();
+            return ret;
+        }
+        return mExec.submit( task );
+    }
+
+
+    private byte[] encodeBand( FloatBuffer in, int off, int w, int rows, int level ) {
+        final int n = w * rows;
+        final byte[] planes = new byte[n * 4];
+        final boolean xor = mPredictor == PREDICT_XOR;
+
+        for( int y = 0; y < rows; y++ ) {
+            int p = 0;
+            int row = y * w;
+            for( int x = 0; x < w; x++ ) {
+                int v = Float.floatToRawIntBits( in.get( off + row + x ) );
+                int d = xor ? v ^ p : v - p;
+                p = v;
+                int k = row + x;
+                planes[k        ] = (byte)( d >>> 24 );
+                planes[k + n    ] = (byte)( d >>> 16 );
+                planes[k + n * 2] = (byte)( d >>>  8 );
+                planes[k + n * 3] = (byte)d;
+            }
+        }
+
+        Deflater def = new Deflater( level );
+        try {
+            def.setInput( planes );
+            def.finish();
+            byte[] buf = new byte[n * 4 + ( n >> 6 ) + 64];
+            int len = 0;
+            while( !def.finished() ) {
+                if( len == buf.length ) {
+                    buf = Arrays.copyOf( buf, buf.length * 2 );
+                }
+                len += def.deflate( buf, len, buf.length - len );
+            }
+            return Arrays.copyOf( buf, len );
+        } finally {
+            def.end();
+        }
+    }
+
+
+    private static void decodeBand( ByteBuffer blob, FloatBuffer out, int off, int w, int rows, int predictor )
+                                    throws IOException
+    {
+        final int n = w * rows;
+        final byte[] planes = new byte[n * 4];
+        final byte[] comp = new byte[blob.remaining()];
+        blob.get( comp );
+
+        Inflater inf = new Inflater();
+        try {
+            inf.setInput( comp );
+            int len = 0;
+            while( len < planes.length ) {
+                int k = inf.inflate( planes, len, planes.length - len );
+                if( k == 0 && ( inf.finished() || inf.needsInput() ) ) {
+                    throw new EOFException( "Truncated depth data." );
+                }
+                len += k;
+            }
+        } catch( DataFormatException ex ) {
+            throw new IOException( ex );
+        } finally {
+            inf.end();
+        }
+
+        final boolean xor = predictor == PREDICT_XOR;
+        for( int y = 0; y < rows; y++ ) {
+            int p = 0;
+            int row = y * w;
+            for( int x = 0; x < w; x++ ) {
+                int k = row + x;
+                int d = ( planes[k        ] & 0xFF ) << 24 |
+                        ( planes[k + n    ] & 0xFF ) << 16 |
+                        ( planes[k + n * 2] & 0xFF ) <<  8 |
+                        ( planes[k + n * 3] & 0xFF );
+                int v = xor ? d ^ p : d + p;
+                p = v;
+                out.put( off + k, Float.intBitsToFloat( v ) );
+            }
+        }
+    }
+
+
+    private static <T> List<T> getAll( List<Future<T>> futures ) throws IOException {
+        List<T> ret = new ArrayList<T>( futures.size() );
+        try {
+            for( Future<T> f: futures ) {
+                ret.add( f.get() );
+            }
+        } catch( InterruptedException ex ) {
+            throw new InterruptedIOException();
+        } catch( ExecutionException ex ) {
+            Throwable t = ex.getCause();
+            if( t instanceof IOException ) {
+                throw (IOException)t;
+            }
+            throw new IOException( t );
+        }
+        return ret;
+    }
+
+}
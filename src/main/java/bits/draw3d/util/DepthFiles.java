@@ -7,17 +7,38 @@
 package bits.draw3d.util;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.util.zip.*;
 
 /**
+ * Reads and writes depth files. The compressed format is a GZIP stream
+ * holding width and height as big-endian ints, followed by big-endian float
+ * values. The raw format is uncompressed and may be memory-mapped: a 16-byte
+ * header holding a magic number, width, height and a byte-order flag,
+ * all big-endian, followed by float values in the flagged order.
+ * <p>
+ * Files written by DepthCodec are a third format, which is smaller and
+ * faster to encode than the GZIP stream.
+ * <p>
+ * Readers accept any of these formats.
+ *
  * @author decamp
  */
 public class DepthFiles {
-    
+
+    public static final int RAW_MAGIC  = 0x44505448;
+    public static final int RAW_HEADER = 16;
+
+    private static final int CHUNK = 1 << 16;
+
+    private static DepthCodec sCodec = null;
+
+
     public static void writeDepthFile( byte[] arr, int w, int h, File outFile ) throws IOException {
         GZIPOutputStream s   = new GZIPOutputStream( new FileOutputStream( outFile ), 8064 );
         DataOutputStream out = new DataOutputStream( s );
-        
+
         out.writeInt( w );
         out.writeInt( h );
         out.write( arr, 0, w * h * 4 );
@@ -27,41 +48,243 @@ public class DepthFiles {
         s.close();
     }
 
-    
+
     public static void writeDepthFile( float[] arr, int w, int h, File outFile ) throws IOException {
-        GZIPOutputStream s   = new GZIPOutputStream( new FileOutputStream( outFile ), 8064 );
-        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( s ) );
+        writeDepthFile( FloatBuffer.wrap( arr, 0, w * h ), w, h, outFile );
+    }
 
-        out.writeInt( w );
-        out.writeInt( h );
-        for(int i = 0; i < w * h; i++) {
-            out.writeFloat( arr[i] );
+    /**
+     * @param buf Depth values, from position. Position is not modified.
+     */
+    public static void writeDepthFile( FloatBuffer buf, int w, int h, File outFile ) throws IOException {
+        GZIPOutputStream out = new GZIPOutputStream( new FileOutputStream( outFile ), CHUNK );
+
+        try {
+            byte[] chunk = new byte[CHUNK];
+            ByteBuffer bb = ByteBuffer.wrap( chunk );
+            FloatBuffer fb = bb.asFloatBuffer();
+            bb.putInt( w ).putInt( h );
+            out.write( chunk, 0, 8 );
+
+            FloatBuffer src = buf.duplicate();
+            int rem = w * h;
+            while( rem > 0 ) {
+                int n = Math.min( rem, CHUNK / 4 );
+                src.limit( src.position() + n );
+                fb.clear();
+                fb.put( src );
+                out.write( chunk, 0, n * 4 );
+                rem -= n;
+            }
+
+            out.finish();
+        } finally {
+            out.close();
         }
-        
-        out.flush();
-        s.flush();
-        s.finish();
-        s.close();
     }
 
-    
+    /**
+     * Writes a depth file with DepthCodec.
+     *
+     * @param buf   Depth values, from position. Position is not modified.
+     * @param level Deflate level.
+     */
+    public static void writeCodedDepthFile( FloatBuffer buf, int w, int h, int level, File outFile ) throws IOException {
+        ByteBuffer enc = codec().encode( buf, w, h, level, null );
+        enc.flip();
+        writeBuffer( enc, outFile );
+    }
+
+    /**
+     * Writes an uncompressed depth file in native byte order, suitable for
+     * <tt>mapDepthFile()</tt>.
+     *
+     * @param buf Depth values, from position. Position is not modified.
+     */
+    public static void writeRawDepthFile( FloatBuffer buf, int w, int h, File outFile ) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocateDirect( RAW_HEADER + w * h * 4 );
+        bb.putInt( RAW_MAGIC ).putInt( w ).putInt( h );
+        bb.putInt( ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 0 : 1 );
+        bb.order( ByteOrder.nativeOrder() );
+
+        FloatBuffer src = buf.duplicate();
+        src.limit( src.position() + w * h );
+        bb.asFloatBuffer().put( src );
+        bb.clear();
+        writeBuffer( bb, outFile );
+    }
+
+
+    public static void writeRawDepthFile( float[] arr, int w, int h, File outFile ) throws IOException {
+        writeRawDepthFile( FloatBuffer.wrap( arr, 0, w * h ), w, h, outFile );
+    }
+
+
     public static float[] readDepthFile( File file, int[] outSize, float[] outArr ) throws IOException {
-        DataInputStream in = new DataInputStream( new GZIPInputStream( new FileInputStream( file ), 8064 ) );
-        int w = in.readInt();
-        int h = in.readInt();
-        
-        outSize[0] = w;
-        outSize[1] = h;
-        if(outArr == null || outArr.length < w * h) {
-            outArr = new float[w * h];
+        FloatBuffer buf = null;
+        if( outArr != null ) {
+            buf = FloatBuffer.wrap( outArr );
         }
-        
-        for( int i = 0; i < w * h; i++ ) {
-            outArr[i] = in.readFloat();
+
+        buf = readDepthBuffer( file, outSize, buf );
+        if( buf.hasArray() && buf.arrayOffset() == 0 ) {
+            return buf.array();
         }
-        
-        in.close();
-        return outArr;
+
+        float[] ret = new float[buf.remaining()];
+        buf.get( ret );
+        return ret;
     }
-    
+
+    /**
+     * Decodes a depth file directly into a buffer.
+     *
+     * @param outSize Receives width and height. May be null.
+     * @param out     Buffer to receive values at position. If null or too small, a heap buffer is allocated.
+     * @return buffer holding values, flipped so values lie between position and limit.
+     */
+    public static FloatBuffer readDepthBuffer( File file, int[] outSize, FloatBuffer out ) throws IOException {
+        InputStream in = new BufferedInputStream( new FileInputStream( file ), CHUNK );
+
+        try {
+            in.mark( 4 );
+            DataInputStream din = new DataInputStream( in );
+            int magic = din.readInt();
+            in.reset();
+
+            if( magic == DepthCodec.MAGIC ) {
+                in.close();
+                RandomAccessFile raf = new RandomAccessFile( file, "r" );
+                try {
+                    FileChannel chan = raf.getChannel();
+                    ByteBuffer map = chan.map( FileChannel.MapMode.READ_ONLY, 0, chan.size() );
+                    return codec().decode( map, outSize, out );
+                } finally {
+                    raf.close();
+                }
+            }
+
+            if( magic == RAW_MAGIC ) {
+                in.close();
+                int[] size = new int[2];
+                FloatBuffer map = mapDepthFile( file, size );
+                out = prepare( out, size, outSize );
+                out.put( map );
+                out.flip();
+                return out;
+            }
+
+            in = new GZIPInputStream( in, CHUNK );
+            byte[] chunk = new byte[CHUNK];
+            FloatBuffer fb = ByteBuffer.wrap( chunk ).asFloatBuffer();
+
+            readFully( in, chunk, 8 );
+            int[] size = { ByteBuffer.wrap( chunk ).getInt( 0 ), ByteBuffer.wrap( chunk ).getInt( 4 ) };
+            out = prepare( out, size, outSize );
+
+            int rem = size[0] * size[1];
+            while( rem > 0 ) {
+                int n = Math.min( rem, CHUNK / 4 );
+                readFully( in, chunk, n * 4 );
+                fb.clear().limit( n );
+                out.put( fb );
+                rem -= n;
+            }
+
+            out.flip();
+            return out;
+
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Memory-maps a raw depth file.
+     *
+     * @param outSize Receives width and height. May be null.
+     * @return read-only view of depth values in the file's byte order.
+     */
+    public static FloatBuffer mapDepthFile( File file, int[] outSize ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+        try {
+            FileChannel chan = raf.getChannel();
+            MappedByteBuffer map = chan.map( FileChannel.MapMode.READ_ONLY, 0, chan.size() );
+            if( map.remaining() < RAW_HEADER || map.getInt( 0 ) != RAW_MAGIC ) {
+                throw new IOException( "Not a raw depth file: " + file.getPath() );
+            }
+
+            int w = map.getInt( 4 );
+            int h = map.getInt( 8 );
+            ByteOrder order = map.getInt( 12 ) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            if( map.remaining() < RAW_HEADER + (long)w * h * 4 ) {
+                throw new EOFException( "Truncated depth file: " + file.getPath() );
+            }
+
+            if( outSize != null ) {
+                outSize[0] = w;
+                outSize[1] = h;
+            }
+
+            map.position( RAW_HEADER ).limit( RAW_HEADER + w * h * 4 );
+            return map.slice().order( order ).asFloatBuffer();
+
+        } finally {
+            raf.close();
+        }
+    }
+
+
+
+    private static synchronized DepthCodec codec() {
+        if( sCodec == null ) {
+            sCodec = new DepthCodec( null );
+        }
+        return sCodec;
+    }
+
+
+    @SuppressWarnings( "resource" )
+    private static void writeBuffer( ByteBuffer buf, File outFile ) throws IOException {
+        FileChannel chan = new FileOutputStream( outFile ).getChannel();
+        try {
+            while( buf.hasRemaining() ) {
+                if( chan.write( buf ) <= 0 ) {
+                    throw new IOException( "Write failed." );
+                }
+            }
+        } finally {
+            chan.close();
+        }
+    }
+
+
+    private static FloatBuffer prepare( FloatBuffer out, int[] size, int[] outSize ) {
+        if( outSize != null ) {
+            outSize[0] = size[0];
+            outSize[1] = size[1];
+        }
+
+        int len = size[0] * size[1];
+        if( out == null || out.remaining() < len ) {
+            return FloatBuffer.allocate( len );
+        }
+
+        out.limit( out.position() + len );
+        return out.slice();
+    }
+
+
+    private static void readFully( InputStream in, byte[] arr, int len ) throws IOException {
+        int off = 0;
+        while( off < len ) {
+            int n = in.read( arr, off, len - off );
+            if( n < 0 ) {
+                throw new EOFException();
+            }
+            off += n;
+        }
+    }
+
 }
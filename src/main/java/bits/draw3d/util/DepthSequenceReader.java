@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Reads a sequence of depth files in order, decoding the next file on a
+ * background thread while the caller processes the current one. Two frame
+ * buffers are alternated, so steady-state reading allocates nothing.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author decamp
+ */
+public class DepthSequenceReader implements Closeable {
+
+    private final List<File> mFiles;
+    private final ExecutorService mExec;
+
+    private int mNext = 0;
+    private Future<Frame> mPending = null;
+    private Frame mCurrent = null;
+    private Frame mSpare = null;
+
+
+    /**
+     * @param files Depth files to read, in order.
+     */
+    public DepthSequenceReader( List<File> files ) {
+        mFiles = new ArrayList<File>( files );
+        mExec  = Executors.newSingleThreadExecutor( new ThreadFactory() {
+            public Thread newThread( Runnable r ) {
+                Thread t = new Thread( r, "DepthPrefetch" );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+        prefetch();
+    }
+
+
+
+    public int frameCount() {
+        return mFiles.size();
+    }
+
+
+    public boolean hasNext() {
+        return mPending != null;
+    }
+
+    /**
+     * @return file of frame most recently returned by <tt>next()</tt>.
+     */
+    public File file() {
+        return mCurrent == null ? null : mCurrent.mFile;
+    }
+
+
+    public int width() {
+        return mCurrent == null ? 0 : mCurrent.mSize[0];
+    }
+
+
+    public int height() {
+        return mCurrent == null ? 0 : mCurrent.mSize[1];
+    }
+
+    /**
+     * @return depth values of next frame. Buffer remains valid until the following call to <tt>next()</tt>.
+     * @throws NoSuchElementException if there are no more frames.
+     */
+    public FloatBuffer next() throws IOException {
+        if( mPending == null ) {
+            throw new NoSuchElementException();
+        }
+
+        Frame frame;
+        try {
+            frame = mPending.get();
+        } catch( InterruptedException ex ) {
+            throw new InterruptedIOException();
+        } catch( ExecutionException ex ) {
+            Throwable t = ex.getCause();
+            if( t instanceof IOException ) {
+                throw (IOException)t;
+            }
+            throw new IOException( t );
+        } finally {
+            mPending = null;
+        }
+
+        mSpare   = mCurrent;
+        mCurrent = frame;
+        prefetch();
+        return frame.mData.duplicate();
+    }
+
+
+    public void close() {
+        if( mPending != null ) {
+            mPending.cancel( false );
+            mPending = null;
+        }
+        mExec.shutdown();
+        mCurrent = null;
+        mSpare   = null;
+    }
+
+
+
+    private void prefetch() {
+        if( mNext >= mFiles.size() ) {
+            return;
+        }
+
+        final File file  = mFiles.get( mNext++ );
+        final Frame dest = mSpare;
+        mSpare = null;
+
+        mPending = mExec.submit( new Callable<Frame>() {
+            public Frame call() throws IOException {
+                Frame ret = dest != null ? dest : new Frame();
+                FloatBuffer buf = ret.mData;
+                if( buf != null ) {
+                    buf.clear();
+                }
+                ret.mData = DepthFiles.readDepthBuffer( file, ret.mSize, buf );
+                ret.mFile = file;
+                return ret;
+            }
+        } );
+    }
+
+
+    private static final class Frame {
+        final int[] mSize = new int[2];
+        FloatBuffer mData = null;
+        File mFile = null;
+    }
+
+}
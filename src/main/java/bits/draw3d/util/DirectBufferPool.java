@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.nio.*;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Thread-safe pool of direct ByteBuffers, grouped into power-of-two size
+ * classes. Avoids reallocating large direct buffers when capture sizes
+ * vary, and lets several threads hold buffers at once without locking.
+ * <p>
+ * Pooled buffers are limited both per size class and in total bytes, so a
+ * few large captures cannot pin a gigabyte of native memory.
+ *
+ * @author decamp
+ */
+public class DirectBufferPool {
+
+    public static final int DEFAULT_MAX_PER_CLASS = 4;
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 256L << 20;
+
+    private static final int MIN_CLASS = 12;
+    private static final int MAX_CLASS = 30;
+
+    private static DirectBufferPool sDefault = null;
+
+
+    public static synchronized DirectBufferPool defaultInstance() {
+        if( sDefault == null ) {
+            sDefault = new DirectBufferPool( DEFAULT_MAX_PER_CLASS, DEFAULT_MAX_RETAINED_BYTES );
+        }
+        return sDefault;
+    }
+
+
+
+    private final int mMaxPerClass;
+    private final long mMaxRetained;
+    private final Queue<ByteBuffer>[] mFree;
+    private final AtomicIntegerArray mCounts;
+    private final AtomicLong mRetained = new AtomicLong( 0 );
+
+
+    public DirectBufferPool( int maxPerClass ) {
+        this( maxPerClass, DEFAULT_MAX_RETAINED_BYTES );
+    }
+
+    /**
+     * @param maxPerClass      Maximum number of buffers kept for each size class.
+     * @param maxRetainedBytes Maximum total capacity of buffers kept by pool.
+     */
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    public DirectBufferPool( int maxPerClass, long maxRetainedBytes ) {
+        mMaxPerClass = Math.max( 0, maxPerClass );
+        mMaxRetained = Math.max( 0, maxRetainedBytes );
+        mFree        = new Queue[MAX_CLASS + 1];
+        mCounts      = new AtomicIntegerArray( MAX_CLASS + 1 );
+        for( int i = MIN_CLASS; i <= MAX_CLASS; i++ ) {
+            mFree[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+
+    /**
+     * @param minCapacity Minimum capacity of buffer.
+     * @return cleared, direct buffer in native byte order with at least <tt>minCapacity</tt> bytes.
+     *         Capacity may be larger.
+     */
+    public ByteBuffer acquire( int minCapacity ) {
+        int c = sizeClass( minCapacity );
+        if( c < 0 ) {
+            return ByteBuffer.allocateDirect( minCapacity ).order( ByteOrder.nativeOrder() );
+        }
+
+        ByteBuffer buf = mFree[c].poll();
+        if( buf != null ) {
+            mCounts.decrementAndGet( c );
+            mRetained.addAndGet( -buf.capacity() );
+            buf.clear();
+            return buf.order( ByteOrder.nativeOrder() );
+        }
+
+        return ByteBuffer.allocateDirect( 1 << c ).order( ByteOrder.nativeOrder() );
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that were not allocated by a
+     * pool, or that exceed the per-class or total limit, are dropped. The buffer
+     * must not be used after release.
+     *
+     * @param buf Buffer to release. May be null.
+     */
+    public void release( ByteBuffer buf ) {
+        if( buf == null || !buf.isDirect() ) {
+            return;
+        }
+
+        int cap = buf.capacity();
+        int c = Integer.numberOfTrailingZeros( cap );
+        if( cap != 1 << c || c < MIN_CLASS || c > MAX_CLASS ) {
+            return;
+        }
+
+        if( mCounts.incrementAndGet( c ) > mMaxPerClass ) {
+            mCounts.decrementAndGet( c );
+            return;
+        }
+
+        if( mRetained.addAndGet( cap ) > mMaxRetained ) {
+            mRetained.addAndGet( -cap );
+            mCounts.decrementAndGet( c );
+            return;
+        }
+
+        mFree[c].offer( buf );
+    }
+
+    /**
+     * @return total capacity of buffers currently held by pool.
+     */
+    public long retainedBytes() {
+        return mRetained.get();
+    }
+
+    /**
+     * Drops all pooled buffers.
+     */
+    public void clear() {
+        for( int i = MIN_CLASS; i <= MAX_CLASS; i++ ) {
+            ByteBuffer buf;
+            while( ( buf = mFree[i].poll() ) != null ) {
+                mCounts.decrementAndGet( i );
+                mRetained.addAndGet( -buf.capacity() );
+            }
+        }
+    }
+
+
+
+    private static int sizeClass( int cap ) {
+        if( cap > 1 << MAX_CLASS ) {
+            return -1;
+        }
+        if( cap <= 1 << MIN_CLASS ) {
+            return MIN_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros( cap - 1 );
+    }
+
+}
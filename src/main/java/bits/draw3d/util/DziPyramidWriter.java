@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Writes an image as a Deep Zoom (DZI) tile pyramid. Rows are received
+ * from top to bottom, as from a TileCompositor. Each level holds one row of
+ * tiles. When a tile row fills, its tiles are encoded in parallel and the
+ * rows are reduced with a 2x2 box filter into the next coarser level, so
+ * memory is bounded by one tile row per level.
+ * <p>
+ * Output consists of <tt>name.dzi</tt> and a directory <tt>name_files</tt>
+ * that holds one subdirectory per level, containing tiles named
+ * <tt>col_row.png</tt>. Tiles have no overlap.
+ *
+ * @author decamp
+ */
+public class DziPyramidWriter implements RowSink {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+
+    private final File mDziFile;
+    private final File mTileDir;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileSize;
+    private final int mColorType;
+    private final int mPixelBytes;
+    private final int mCompLevel;
+    private final ExecutorService mExec;
+    private final boolean mOwnsExec;
+
+    private final Level mBase;
+    private boolean mClosed = false;
+
+
+    /**
+     * @param dziFile     Descriptor file to write. Tiles are written to a sibling directory.
+     * @param w           Width of full image.
+     * @param h           Height of full image.
+     * @param tileSize    Width and height of tiles.
+     * @param colorType   PNG color type of image data.
+     * @param compLevel   Deflate level for tiles.
+     * @param optExecutor Executor for encoding and reduction. If null, a pool of daemon threads
+     *                    is created and shut down on close.
+     */
+    public DziPyramidWriter( File dziFile,
+                             int w,
+                             int h,
+                             int tileSize,
+                             int colorType,
+                             int compLevel,
+                             ExecutorService optExecutor )
+                             throws IOException
+    {
+        String name = dziFile.getName();
+        int dot = name.lastIndexOf( '.' );
+        if( dot > 0 ) {
+            name = name.substring( 0, dot );
+        }
+
+        mDziFile    = dziFile;
+        mTileDir    = new File( dziFile.getParentFile(), name + "_files" );
+        mWidth      = w;
+        mHeight     = h;
+        mTileSize   = Math.max( 2, tileSize & ~1 );
+        mColorType  = colorType;
+        mPixelBytes = ParallelPngEncoder.bytesPerPixel( colorType );
+        mCompLevel  = compLevel;
+
+        if( optExecutor != null ) {
+            mExec     = optExecutor;
+            mOwnsExec = false;
+        } else {
+            mExec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "DziPyramidWriter" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            mOwnsExec = true;
+        }
+
+        // Build levels from full resolution down to 1x1.
+        int maxLevel = 0;
+        while( ( 1L << maxLevel ) < Math.max( w, h ) ) {
+            maxLevel++;
+        }
+
+        Level next = null;
+        for( int i = 0; i <= maxLevel; i++ ) {
+            int s  = maxLevel - i;
+            int lw = (int)( ( w + ( 1L << s ) - 1 ) >> s );
+            int lh = (int)( ( h + ( 1L << s ) - 1 ) >> s );
+            next = new Level( i, lw, lh, next );
+        }
+        mBase = next;
+
+        if( !mTileDir.exists() && !mTileDir.mkdirs() ) {
+            throw new IOException( "Could not create directory: " + mTileDir.getPath() );
+        }
+    }
+
+
+
+    public File dziFile() {
+        return mDziFile;
+    }
+
+
+    public File tileDir() {
+        return mTileDir;
+    }
+
+
+    public void writeRows( byte[] data, int off, int rows ) throws IOException {
+        mBase.writeRows( data, off, rows );
+    }
+
+
+    public void close() throws IOException {
+        if( mClosed ) {
+            return;
+        }
+        mClosed = true;
+
+        try {
+            for( Level lev = mBase; lev != null; lev = lev.mNext ) {
+                lev.finish();
+            }
+            writeDescriptor();
+        } finally {
+            if( mOwnsExec ) {
+                mExec.shutdown();
+            }
+        }
+    }
+
+
+
+    private void writeDescriptor() throws IOException {
+        Writer out = new OutputStreamWriter( new FileOutputStream( mDziFile ), "UTF-8" );
+        try {
+            out.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+            out.write( "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"png\" Overlap=\"0\" TileSize=\"" +
+                       mTileSize + "\">\n" );
+            out.write( "  <Size Width=\"" + mWidth + "\" Height=\"" + mHeight + "\"/>\n" );
+            out.write( "</Image>\n" );
+        } finally {
+            out.close();
+        }
+    }
+
+
+    private void invokeAll( List<Callable<Object>> tasks ) throws IOException {
+        try {
+            for( Future<Object> f: mExec.invokeAll( tasks ) ) {
+                f.get();
+            }
+        } catch( InterruptedException ex ) {
+            throw new InterruptedIOException();
+        } catch( ExecutionException ex ) {
+            Throwable t = ex.getCause();
+            if( t instanceof IOException ) {
+                throw (IOException)t;
+            }
+            throw new IOException( t );
+        }
+    }
+
+
+    private final class Level {
+
+        final int mIndex;
+        final int mWidth;
+        final int mHeight;
+        final int mStride;
+        final Level mNext;
+        final File mDir;
+
+        final byte[] mBand;
+        int mBandRows = 0;
+        int mTileRow  = 0;
+        int mRowsIn   = 0;
+
+        Level( int index, int w, int h, Level next ) {
+            mIndex  = index;
+            mWidth  = w;
+            mHeight = h;
+            mStride = w * mPixelBytes;
+            mNext   = next;
+            mDir    = new File( mTileDir, String.valueOf( index ) );
+            mBand   = new byte[ mStride * Math.min( mTileSize, h ) ];
+        }
+
+
+        void writeRows( byte[] data, int off, int rows ) throws IOException {
+            if( mRowsIn + rows > mHeight ) {
+                throw new IOException( "Too many rows written to image." );
+            }
+            mRowsIn += rows;
+
+            final int cap = mBand.length / mStride;
+            while( rows > 0 ) {
+                int n = Math.min( rows, cap - mBandRows );
+                System.arraycopy( data, off, mBand, mBandRows * mStride, n * mStride );
+                mBandRows += n;
+                off  += n * mStride;
+                rows -= n;
+
+                if( mBandRows == cap ) {
+                    flushBand();
+                }
+            }
+        }
+
+
+        void finish() throws IOException {
+            if( mBandRows > 0 ) {
+                flushBand();
+            }
+            if( mRowsIn != mHeight ) {
+                throw new IOException( "Level " + mIndex + " received " + mRowsIn + " of " + mHeight + " rows." );
+            }
+        }
+
+
+        private void flushBand() throws IOException {
+            if( !mDir.exists() ) {
+                mDir.mkdirs();
+            }
+
+            final int rows   = mBandRows;
+            final int cols   = ( mWidth + mTileSize - 1 ) / mTileSize;
+            final int outW   = ( mWidth + 1 ) / 2;
+            final int outH   = ( rows + 1 ) / 2;
+            final byte[] red = mNext == null ? null : new byte[ outW * mPixelBytes * outH ];
+
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for( int c = 0; c < cols; c++ ) {
+                final int x0 = c * mTileSize;
+                final int x1 = Math.min( mWidth, x0 + mTileSize );
+                final File file = new File( mDir, c + "_" + mTileRow + ".png" );
+                tasks.add( new Callable<Object>() {
+                    public Object call() throws IOException {
+                        writeTile( x0, x1, rows, file );
+                        return null;
+                    }
+                } );
+            }
+
+            if( red != null ) {
+                // Reduce in chunks of output rows.
+                final int chunk = Math.max( 1, outH / Runtime.getRuntime().availableProcessors() );
+                for( int y = 0; y < outH; y += chunk ) {
+                    final int y0 = y;
+                    final int y1 = Math.min( outH, y + chunk );
+                    tasks.add( new Callable<Object>() {
+                        public Object call() {
+                            reduce( rows, y0, y1, outW, red );
+                            return null;
+                        }
+                    } );
+                }
+            }
+
+            invokeAll( tasks );
+            mBandRows = 0;
+            mTileRow++;
+
+            if( red != null ) {
+                mNext.writeRows( red, 0, outH );
+            }
+        }
+
+
+        private void writeTile( int x0, int x1, int rows, File file ) throws IOException {
+            final int tw = x1 - x0;
+            final int rowBytes = tw * mPixelBytes;
+            byte[] buf = new byte[ rowBytes * rows ];
+            for( int y = 0; y < rows; y++ ) {
+                System.arraycopy( mBand, y * mStride + x0 * mPixelBytes, buf, y * rowBytes, rowBytes );
+            }
+
+            PngStreamWriter png = new PngStreamWriter( file, tw, rows, mColorType, mCompLevel );
+            png.writeRows( buf, 0, rows );
+            png.close();
+        }
+
+        /**
+         * Box filters 2x2 blocks of band into rows <tt>[y0,y1)</tt> of <tt>out</tt>.
+         * Odd edge rows and columns are repeated.
+         */
+        private void reduce( int rows, int y0, int y1, int outW, byte[] out ) {
+            final byte[] band = mBand;
+            final int pb = mPixelBytes;
+            final int outStride = outW * pb;
+
+            for( int y = y0; y < y1; y++ ) {
+                int r0 = ( y * 2 ) * mStride;
+                int r1 = Math.min( y * 2 + 1, rows - 1 ) * mStride;
+                int o  = y * outStride;
+
+                for( int x = 0; x < outW; x++ ) {
+                    int c0 = x * 2 * pb;
+                    int c1 = Math.min( x * 2 + 1, mWidth - 1 ) * pb;
+                    for( int k = 0; k < pb; k++ ) {
+                        int sum = ( band[r0 + c0 + k] & 0xFF ) +
+                                  ( band[r0 + c1 + k] & 0xFF ) +
+                                  ( band[r1 + c0 + k] & 0xFF ) +
+                                  ( band[r1 + c1 + k] & 0xFF );
+                        out[o++] = (byte)( ( sum + 2 ) >> 2 );
+                    }
+                }
+            }
+        }
+    }
+
+}
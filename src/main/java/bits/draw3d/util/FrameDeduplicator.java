@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Detects frames whose pixels are identical to a frame already written, so
+ * that image sequences with long static stretches, such as stepped renders
+ * where the camera pauses, need not encode every frame. Frames are keyed by
+ * a 128-bit hash of their raw pixels and dimensions.
+ * <p>
+ * A duplicate frame is either written as a hard link to the original file,
+ * falling back to a copy where links are not supported, or recorded as a
+ * line in a manifest file that maps the duplicate name to the original.
+ * <p>
+ * Thread-safe. If two threads submit the same frame at once, the second
+ * waits for the first to finish writing before linking.
+ *
+ * @author decamp
+ */
+public class FrameDeduplicator implements Closeable {
+
+    public static final int MODE_LINK     = 0;
+    public static final int MODE_MANIFEST = 1;
+
+    private static final long M0 = 0x9E3779B97F4A7C15L;
+    private static final long M1 = 0xC2B2AE3D27D4EB4FL;
+
+
+    /**
+     * Action for the caller to take on a frame.
+     */
+    public static interface Writer {
+        public void write( File file ) throws IOException;
+    }
+
+
+    private final int mMode;
+    private final File mManifestFile;
+    private final ConcurrentMap<Key, Entry> mEntries = new ConcurrentHashMap<Key, Entry>();
+    private final AtomicInteger mDuplicateCount = new AtomicInteger( 0 );
+
+    private java.io.Writer mManifest = null;
+
+
+    /**
+     * Creates deduplicator that writes duplicates as hard links.
+     */
+    public FrameDeduplicator() {
+        mMode         = MODE_LINK;
+        mManifestFile = null;
+    }
+
+    /**
+     * Creates deduplicator that records duplicates in a manifest. Each line
+     * of the manifest holds the name of a skipped frame and the name of the
+     * file holding its pixels, separated by a tab.
+     *
+     * @param manifestFile File to which manifest lines are appended.
+     */
+    public FrameDeduplicator( File manifestFile ) {
+        mMode         = MODE_MANIFEST;
+        mManifestFile = manifestFile;
+    }
+
+
+
+    public int mode() {
+        return mMode;
+    }
+
+    /**
+     * @return number of frames that were found to be duplicates.
+     */
+    public int duplicateCount() {
+        return mDuplicateCount.get();
+    }
+
+    /**
+     * Forgets all frames seen so far.
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Writes a frame, unless it duplicates one already written.
+     *
+     * @param pixels  Raw pixels of frame, from position to limit. Position is not modified.
+     * @param w       Width of frame.
+     * @param h       Height of frame.
+     * @param outFile Destination file.
+     * @param writer  Called to write <tt>outFile</tt> if frame is new.
+     * @return true if frame was a duplicate and <tt>writer</tt> was not called.
+     */
+    public boolean write( ByteBuffer pixels, int w, int h, File outFile, Writer writer ) throws IOException {
+        Key key = hash( pixels, w, h );
+        Entry entry = new Entry( outFile );
+        Entry prev  = mEntries.putIfAbsent( key, entry );
+
+        while( prev != null ) {
+            try {
+                prev.mDone.await();
+            } catch( InterruptedException ex ) {
+                throw new InterruptedIOException();
+            }
+
+            if( prev.mOk ) {
+                break;
+            }
+
+            // Original failed and removed itself. Write this frame as the new original,
+            // unless another waiter got there first.
+            prev = mEntries.putIfAbsent( key, entry );
+        }
+
+        if( prev == null ) {
+            try {
+                writer.write( outFile );
+                entry.mOk = true;
+            } finally {
+                if( !entry.mOk ) {
+                    mEntries.remove( key, entry );
+                }
+                entry.mDone.countDown();
+            }
+            return false;
+        }
+
+        if( mMode == MODE_LINK ) {
+            link( prev.mFile, outFile );
+        } else {
+            // Name may have been reserved with an empty file. Nothing is written
+            // under it in manifest mode.
+            Files.deleteIfExists( outFile.toPath() );
+            appendManifest( outFile, prev.mFile );
+        }
+
+        mDuplicateCount.incrementAndGet();
+        return true;
+    }
+
+
+    public synchronized void close() throws IOException {
+        if( mManifest != null ) {
+            mManifest.close();
+            mManifest = null;
+        }
+    }
+
+    /**
+     * Computes a 128-bit hash of a frame.
+     */
+    static Key hash( ByteBuffer pixels, int w, int h ) {
+        ByteBuffer b = pixels.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+        long h0 = M0 ^ ( (long)w << 32 | h & 0xFFFFFFFFL );
+        long h1 = M1 ^ b.remaining();
+
+        LongBuffer lb = b.asLongBuffer();
+        while( lb.hasRemaining() ) {
+            long v = lb.get();
+            h0 = Long.rotateLeft( h0 ^ v * M1, 31 ) * M0;
+            h1 = Long.rotateLeft( h1 + v * M0, 27 ) * M1 + h0;
+        }
+
+        b.position( b.position() + ( b.remaining() & ~7 ) );
+        while( b.hasRemaining() ) {
+            long v = b.get() & 0xFF;
+            h0 = Long.rotateLeft( h0 ^ v * M1, 31 ) * M0;
+            h1 = Long.rotateLeft( h1 + v * M0, 27 ) * M1 + h0;
+        }
+
+        return new Key( mix( h0 ), mix( h1 ^ h0 ) );
+    }
+
+
+
+    private static long mix( long v ) {
+        v ^= v >>> 33;
+        v *= 0xFF51AFD7ED558CCDL;
+        v ^= v >>> 33;
+        v *= 0xC4CEB9FE1A85EC53L;
+        v ^= v >>> 33;
+        return v;
+    }
+
+
+    private static void link( File original, File outFile ) throws IOException {
+        Path dst = outFile.toPath();
+        Files.deleteIfExists( dst );
+        try {
+            Files.createLink( dst, original.toPath() );
+        } catch( UnsupportedOperationException ex ) {
+            Files.copy( original.toPath(), dst );
+        } catch( IOException ex ) {
+            Files.copy( original.toPath(), dst );
+        }
+    }
+
+
+    private synchronized void appendManifest( File outFile, File original ) throws IOException {
+        if( mManifest == null ) {
+            mManifest = new BufferedWriter( new FileWriter( mManifestFile, true ) );
+        }
+        mManifest.write( outFile.getName() + "\t" + original.getName() + "\n" );
+        mManifest.flush();
+    }
+
+
+    static final class Key {
+        final long mH0;
+        final long mH1;
+
+        Key( long h0, long h1 ) {
+            mH0 = h0;
+            mH1 = h1;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)mH0;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if( !( o instanceof Key ) ) {
+                return false;
+            }
+            Key k = (Key)o;
+            return mH0 == k.mH0 && mH1 == k.mH1;
+        }
+    }
+
+
+    private static final class Entry {
+        final File mFile;
+        final CountDownLatch mDone = new CountDownLatch( 1 );
+        // Set once writer has returned, before mDone is released.
+        volatile boolean mOk = false;
+
+        Entry( File file ) {
+            mFile = file;
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+import static bits.draw3d.util.FrameSequenceWriter.*;
+
+
+/**
+ * Memory-maps a container written by FrameSequenceWriter for constant-time
+ * access to any frame. The file is mapped in segments of at most 1 GB,
+ * which overlap by the size of the largest blob so that every blob lies
+ * within a single mapping.
+ * <p>
+ * Buffers returned remain valid after the reader is closed. Thread-safe.
+ *
+ * @author decamp
+ */
+public class FrameSequenceReader implements Closeable {
+
+    private static final long SEGMENT = 1L << 30;
+
+
+    private final int mCount;
+    private final long[] mIndex;
+    private final MappedByteBuffer[] mSegments;
+    private RandomAccessFile mRaf;
+
+
+    public FrameSequenceReader( File file ) throws IOException {
+        mRaf = new RandomAccessFile( file, "r" );
+        boolean ok = false;
+
+        try {
+            FileChannel chan = mRaf.getChannel();
+            long size = chan.size();
+            if( size < HEADER + TRAILER ) {
+                throw new IOException( "Not a frame sequence: " + file.getPath() );
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate( HEADER );
+            readFully( chan, buf, 0 );
+            if( buf.getInt( 0 ) != MAGIC ) {
+                throw new IOException( "Not a frame sequence: " + file.getPath() );
+            }
+            if( buf.getInt( 4 ) != VERSION ) {
+                throw new IOException( "Unsupported frame sequence version." );
+            }
+
+            buf.clear();
+            readFully( chan, buf, size - TRAILER );
+            long indexOff = buf.getLong( 0 );
+            mCount = buf.getInt( 8 );
+            if( buf.getInt( 12 ) != MAGIC || indexOff + (long)mCount * INDEX_ENTRY + TRAILER != size ) {
+                throw new IOException( "Frame sequence has no index. It may not have been closed." );
+            }
+
+            ByteBuffer idx = ByteBuffer.allocate( mCount * INDEX_ENTRY );
+            readFully( chan, idx, indexOff );
+            mIndex = new long[mCount * 6];
+            long maxBlob = 0;
+
+            for( int i = 0; i < mCount; i++ ) {
+                int p = i * 6;
+                mIndex[p  ] = idx.getLong();
+                mIndex[p+1] = idx.getInt();
+                mIndex[p+2] = idx.getLong();
+                mIndex[p+3] = idx.getInt();
+                mIndex[p+4] = idx.getInt();
+                mIndex[p+5] = idx.getInt();
+                maxBlob = Math.max( maxBlob, Math.max( mIndex[p+1], mIndex[p+3] ) );
+            }
+
+            int segCount = (int)( ( indexOff + SEGMENT - 1 ) / SEGMENT );
+            mSegments = new MappedByteBuffer[segCount];
+            for( int i = 0; i < segCount; i++ ) {
+                long off = i * SEGMENT;
+                long len = Math.min( indexOff - off, SEGMENT + maxBlob );
+                mSegments[i] = chan.map( FileChannel.MapMode.READ_ONLY, off, len );
+            }
+
+            ok = true;
+        } finally {
+            if( !ok ) {
+                mRaf.close();
+            }
+        }
+    }
+
+
+
+    public int frameCount() {
+        return mCount;
+    }
+
+
+    public int width( int frame ) {
+        return (int)mIndex[frame * 6 + 4];
+    }
+
+
+    public int height( int frame ) {
+        return (int)mIndex[frame * 6 + 5];
+    }
+
+
+    public boolean hasColor( int frame ) {
+        return mIndex[frame * 6 + 1] > 0;
+    }
+
+
+    public boolean hasDepth( int frame ) {
+        return mIndex[frame * 6 + 3] > 0;
+    }
+
+    /**
+     * @return read-only view of encoded color data, or null if frame has none.
+     */
+    public ByteBuffer color( int frame ) {
+        return blob( mIndex[frame * 6], (int)mIndex[frame * 6 + 1] );
+    }
+
+    /**
+     * @return read-only view of encoded depth data, or null if frame has none.
+     */
+    public ByteBuffer depth( int frame ) {
+        return blob( mIndex[frame * 6 + 2], (int)mIndex[frame * 6 + 3] );
+    }
+
+
+    public synchronized void close() throws IOException {
+        if( mRaf != null ) {
+            mRaf.close();
+            mRaf = null;
+        }
+    }
+
+
+
+    private ByteBuffer blob( long off, int len ) {
+        if( len <= 0 ) {
+            return null;
+        }
+        int seg = (int)( off / SEGMENT );
+        int pos = (int)( off - seg * SEGMENT );
+        ByteBuffer ret = mSegments[seg].duplicate();
+        ret.limit( pos + len ).position( pos );
+        return ret.slice();
+    }
+
+
+    private static void readFully( FileChannel chan, ByteBuffer buf, long pos ) throws IOException {
+        while( buf.hasRemaining() ) {
+            int n = chan.read( buf, pos );
+            if( n < 0 ) {
+                throw new EOFException();
+            }
+            pos += n;
+        }
+        buf.flip();
+    }
+
+}
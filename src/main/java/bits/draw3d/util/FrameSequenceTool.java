@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+
+
+/**
+ * Converts between frame sequence containers and directories holding one
+ * file per frame. Color frames are named <tt>00000.png</tt> and depth
+ * frames <tt>00000.depth</tt>. On import, a color and depth file with the
+ * same name form one frame, and frames are ordered by name.
+ * <p>
+ * Usage: <tt>FrameSequenceTool export seqFile outDir</tt> <br>
+ * Usage: <tt>FrameSequenceTool import inDir seqFile</tt>
+ *
+ * @author decamp
+ */
+public class FrameSequenceTool {
+
+    public static void main( String[] args ) throws Exception {
+        if( args.length == 3 && args[0].equals( "export" ) ) {
+            int n = exportFiles( new File( args[1] ), new File( args[2] ) );
+            System.out.println( "Exported " + n + " frames." );
+        } else if( args.length == 3 && args[0].equals( "import" ) ) {
+            int n = importFiles( new File( args[1] ), new File( args[2] ) );
+            System.out.println( "Imported " + n + " frames." );
+        } else {
+            System.err.println( "Usage: FrameSequenceTool export <seqFile> <outDir>" );
+            System.err.println( "       FrameSequenceTool import <inDir> <seqFile>" );
+            System.exit( 1 );
+        }
+    }
+
+    /**
+     * Writes each frame of a container to its own files.
+     *
+     * @return number of frames exported.
+     */
+    public static int exportFiles( File seqFile, File outDir ) throws IOException {
+        if( !outDir.exists() ) {
+            outDir.mkdirs();
+        }
+
+        ScreenshotSaver saver = new ScreenshotSaver();
+        FrameSequenceReader in = new FrameSequenceReader( seqFile );
+        try {
+            int count = in.frameCount();
+            for( int i = 0; i < count; i++ ) {
+                ByteBuffer color = in.color( i );
+                if( color != null ) {
+                    saver.saveBuffer( color, new File( outDir, String.format( "%05d.png", i ) ) );
+                }
+                ByteBuffer depth = in.depth( i );
+                if( depth != null ) {
+                    saver.saveBuffer( depth, new File( outDir, String.format( "%05d.depth", i ) ) );
+                }
+            }
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Packs PNG and depth files in a directory into a container.
+     *
+     * @return number of frames imported.
+     */
+    public static int importFiles( File inDir, File seqFile ) throws IOException {
+        File[] files = inDir.listFiles();
+        if( files == null ) {
+            throw new FileNotFoundException( inDir.getPath() );
+        }
+
+        SortedMap<String, File[]> frames = new TreeMap<String, File[]>();
+        for( File f: files ) {
+            String name = f.getName();
+            int slot;
+            if( name.endsWith( ".png" ) ) {
+                slot = 0;
+            } else if( name.endsWith( ".depth" ) ) {
+                slot = 1;
+            } else {
+                continue;
+            }
+
+            String stem = name.substring( 0, name.lastIndexOf( '.' ) );
+            File[] pair = frames.get( stem );
+            if( pair == null ) {
+                pair = new File[2];
+                frames.put( stem, pair );
+            }
+            pair[slot] = f;
+        }
+
+        FrameSequenceWriter out = new FrameSequenceWriter( seqFile );
+        try {
+            for( File[] pair: frames.values() ) {
+                ByteBuffer color = pair[0] == null ? null : ByteBuffer.wrap( Files.readAllBytes( pair[0].toPath() ) );
+                ByteBuffer depth = pair[1] == null ? null : ByteBuffer.wrap( Files.readAllBytes( pair[1].toPath() ) );
+                int w = 0;
+                int h = 0;
+
+                // Take size from PNG header.
+                if( color != null && color.remaining() >= 24 ) {
+                    w = color.getInt( 16 );
+                    h = color.getInt( 20 );
+                }
+
+                out.appendFrame( color, depth, w, h );
+            }
+        } finally {
+            out.close();
+        }
+
+        return frames.size();
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * Writes an image sequence into a single container file, instead of one
+ * file per frame. Each frame holds an encoded color blob, normally a PNG
+ * file, and an optional encoded depth blob. Blobs are appended to the file
+ * as they arrive and an index is written when the container is closed. Use
+ * FrameSequenceReader for random access.
+ * <p>
+ * File layout is a 16-byte header, followed by blob data, followed by the
+ * index, followed by a 16-byte trailer. The index holds one 32-byte entry
+ * per frame: color offset (long), color length (int), depth offset (long),
+ * depth length (int), width (int) and height (int). The trailer holds the
+ * index offset (long), frame count (int) and the file magic number. All
+ * values are big-endian. A container that was not closed has no trailer
+ * and cannot be read.
+ * <p>
+ * Appends are synchronized, and frames are indexed in the order appended.
+ *
+ * @author decamp
+ */
+public class FrameSequenceWriter implements Closeable {
+
+    static final int MAGIC        = 0x46534551;
+    static final int VERSION      = 1;
+    static final int HEADER       = 16;
+    static final int INDEX_ENTRY  = 32;
+    static final int TRAILER      = 16;
+
+    /**
+     * Largest blob that may be stored.
+     */
+    public static final int MAX_BLOB = ( 1 << 30 ) - 1;
+
+
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChan;
+    private long mPos;
+
+    private long[] mIndex = new long[6 * 256];
+    private int mCount = 0;
+
+
+    /**
+     * Creates a new container, replacing any existing file.
+     */
+    public FrameSequenceWriter( File file ) throws IOException {
+        file.delete();
+        mRaf  = new RandomAccessFile( file, "rw" );
+        mChan = mRaf.getChannel();
+
+        ByteBuffer head = ByteBuffer.allocate( HEADER );
+        head.putInt( MAGIC ).putInt( VERSION );
+        head.clear();
+        writeFully( head, 0 );
+        mPos = HEADER;
+    }
+
+
+
+    /**
+     * @return number of frames appended.
+     */
+    public synchronized int frameCount() {
+        return mCount;
+    }
+
+    /**
+     * Appends a frame.
+     *
+     * @param color    Encoded color data, from position to limit. May be null.
+     * @param optDepth Encoded depth data, from position to limit. May be null.
+     * @param w        Width of frame.
+     * @param h        Height of frame.
+     * @return index of frame.
+     */
+    public synchronized int appendFrame( ByteBuffer color, ByteBuffer optDepth, int w, int h ) throws IOException {
+        if( !mChan.isOpen() ) {
+            throw new IOException( "Container closed." );
+        }
+
+        long colorOff = mPos;
+        int colorLen  = write( color );
+        long depthOff = mPos;
+        int depthLen  = write( optDepth );
+
+        if( mCount * 6 == mIndex.length ) {
+            mIndex = Arrays.copyOf( mIndex, mIndex.length * 2 );
+        }
+
+        int p = mCount * 6;
+        mIndex[p  ] = colorOff;
+        mIndex[p+1] = colorLen;
+        mIndex[p+2] = depthOff;
+        mIndex[p+3] = depthLen;
+        mIndex[p+4] = w;
+        mIndex[p+5] = h;
+        return mCount++;
+    }
+
+    /**
+     * Writes index and closes file.
+     */
+    public synchronized void close() throws IOException {
+        if( !mChan.isOpen() ) {
+            return;
+        }
+
+        try {
+            ByteBuffer buf = ByteBuffer.allocate( mCount * INDEX_ENTRY + TRAILER );
+            for( int i = 0; i < mCount; i++ ) {
+                int p = i * 6;
+                buf.putLong( mIndex[p] );
+                buf.putInt( (int)mIndex[p+1] );
+                buf.putLong( mIndex[p+2] );
+                buf.putInt( (int)mIndex[p+3] );
+                buf.putInt( (int)mIndex[p+4] );
+                buf.putInt( (int)mIndex[p+5] );
+            }
+
+            buf.putLong( mPos );
+            buf.putInt( mCount );
+            buf.putInt( MAGIC );
+            buf.flip();
+            writeFully( buf, mPos );
+            mRaf.setLength( mPos + buf.capacity() );
+        } finally {
+            mChan.close();
+            mRaf.close();
+        }
+    }
+
+
+
+    private int write( ByteBuffer data ) throws IOException {
+        if( data == null ) {
+            return 0;
+        }
+
+        int len = data.remaining();
+        if( len > MAX_BLOB ) {
+            throw new IOException( "Frame data too large." );
+        }
+
+        writeFully( data.duplicate(), mPos );
+        mPos += len;
+        return len;
+    }
+
+
+    private void writeFully( ByteBuffer buf, long pos ) throws IOException {
+        while( buf.hasRemaining() ) {
+            int n = mChan.write( buf, pos );
+            if( n <= 0 ) {
+                throw new IOException( "Write failed." );
+            }
+            pos += n;
+        }
+    }
+
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.imageio.*;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+
+/**
+ * Writes frames to a Motion-JPEG AVI file. Frames are JPEG-encoded in
+ * parallel on a worker pool and written to the file in order of submission.
+ * The AVI index and header counts are written when the file is closed, so
+ * a file that is not closed will not play.
+ * <p>
+ * Frame size is taken from the first frame, and all frames must match it.
+ * Quality trades file size for encoding speed. AVI 1.0 files are limited to
+ * 2 GB, after which <tt>writeFrame()</tt> fails.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author decamp
+ */
+public class MjpegAviWriter implements Closeable {
+
+    public static final float DEFAULT_QUALITY = 0.85f;
+
+    private static final long MAX_SIZE = ( 1L << 31 ) - ( 1 << 20 );
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    // Offsets of fields patched on close.
+    private static final int POS_RIFF_SIZE     = 4;
+    private static final int POS_AVIH_FRAMES   = 48;
+    private static final int POS_AVIH_BUFSIZE  = 60;
+    private static final int POS_STRH_LENGTH   = 140;
+    private static final int POS_STRH_BUFSIZE  = 144;
+    private static final int POS_MOVI_SIZE     = 216;
+    private static final int HEADER_SIZE       = 224;
+
+
+    private static final ThreadLocal<ImageWriter> JPEG_WRITERS = new ThreadLocal<ImageWriter>() {
+        @Override
+        protected ImageWriter initialValue() {
+            return ImageIO.getImageWritersByFormatName( "jpeg" ).next();
+        }
+    };
+
+
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChan;
+    private final double mFps;
+    private final float mQuality;
+    private final DirectBufferPool mPool;
+    private final ExecutorService mExec;
+    private final boolean mOwnsExec;
+    private final int mWindow;
+
+    private final Deque<Future<byte[]>> mPending = new ArrayDeque<Future<byte[]>>();
+    private int[] mIndex = new int[2 * 1024];
+    private int mFrameCount = 0;
+    private int mMaxFrameBytes = 0;
+    private long mPos = 0;
+
+    private int mWidth  = -1;
+    private int mHeight = -1;
+    private boolean mClosed = false;
+
+
+    /**
+     * @param file        File to create. Any existing file is replaced.
+     * @param fps         Frame rate of video.
+     * @param quality     JPEG quality, from 0 to 1.
+     * @param optExecutor Executor on which to encode frames. If null, a pool of daemon threads
+     *                    is created with one thread per processor, and shut down by <tt>close()</tt>.
+     */
+    public MjpegAviWriter( File file, double fps, float quality, ExecutorService optExecutor ) throws IOException {
+        if( fps <= 0 ) {
+            throw new IllegalArgumentException( "Invalid frame rate: " + fps );
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if( optExecutor == null ) {
+            mExec = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "MjpegEncoder" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            mOwnsExec = true;
+        } else {
+            mExec = optExecutor;
+            mOwnsExec = false;
+        }
+
+        mFps     = fps;
+        mQuality = Math.max( 0f, Math.min( 1f, quality ) );
+        mPool    = DirectBufferPool.defaultInstance();
+        mWindow  = threads * 2;
+
+        file.delete();
+        mRaf  = new RandomAccessFile( file, "rw" );
+        mChan = mRaf.getChannel();
+    }
+
+
+
+    public int frameCount() {
+        return mFrameCount + mPending.size();
+    }
+
+    /**
+     * Queues a frame for encoding. Blocks if too many frames are waiting on workers.
+     *
+     * @param rgba Pixels with rows ordered bottom-up, as read from GL, from position.
+     *             Data is copied, so buffer may be reused once this method returns.
+     * @param w    Width of frame.
+     * @param h    Height of frame.
+     */
+    public void writeFrame( ByteBuffer rgba, final int w, final int h ) throws IOException {
+        if( mClosed ) {
+            throw new IOException( "Writer closed." );
+        }
+
+        if( mWidth < 0 ) {
+            mWidth  = w;
+            mHeight = h;
+            writeHeader();
+        } else if( w != mWidth || h != mHeight ) {
+            throw new IOException( "Frame size changed from " + mWidth + "x" + mHeight + " to " + w + "x" + h );
+        }
+
+        // Drain before acquiring copy, so a failed write cannot leak it.
+        while( mPending.size() >= mWindow ) {
+            drainOne();
+        }
+
+        final int len = w * h * 4;
+        final ByteBuffer data = mPool.acquire( len );
+        ByteBuffer src = rgba.duplicate();
+        src.limit( src.position() + len );
+        data.put( src ).flip();
+
+        try {
+            mPending.addLast( mExec.submit( new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    try {
+                        return encodeJpeg( data, w, h, mQuality );
+                    } finally {
+                        mPool.release( data );
+                    }
+                }
+            } ) );
+        } catch( RejectedExecutionException ex ) {
+            mPool.release( data );
+            throw new IOException( ex );
+        }
+
+        // Write any frames that are already done.
+        while( !mPending.isEmpty() && mPending.peekFirst().isDone() ) {
+            drainOne();
+        }
+    }
+
+    /**
+     * Waits for queued frames, then writes the index and closes the file.
+     */
+    public void close() throws IOException {
+        if( mClosed ) {
+            return;
+        }
+
+        try {
+            while( !mPending.isEmpty() ) {
+                drainOne();
+            }
+            if( mWidth < 0 ) {
+                // No frames. Write an empty but valid file.
+                mWidth  = 0;
+                mHeight = 0;
+                writeHeader();
+            }
+            writeIndex();
+
+        } finally {
+            mClosed = true;
+            // Not cancelled: queued encodes must run to release their buffers.
+            mPending.clear();
+            mChan.close();
+            mRaf.close();
+            if( mOwnsExec ) {
+                mExec.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Encodes a frame as a JPEG file.
+     *
+     * @param rgba    Pixels with rows ordered bottom-up, from position. Alpha is discarded.
+     * @param quality JPEG quality, from 0 to 1.
+     */
+    public static byte[] encodeJpeg( ByteBuffer rgba, int w, int h, float quality ) throws IOException {
+        BufferedImage im = new BufferedImage( w, h, BufferedImage.TYPE_3BYTE_BGR );
+        byte[] dst = ( (DataBufferByte)im.getRaster().getDataBuffer() ).getData();
+        byte[] row = new byte[w * 4];
+        int pos = rgba.position();
+
+        for( int y = 0; y < h; y++ ) {
+            ByteBuffer src = rgba.duplicate();
+            src.position( pos + ( h - 1 - y ) * w * 4 );
+            src.get( row );
+            int d = y * w * 3;
+            for( int s = 0; s < row.length; s += 4, d += 3 ) {
+                dst[d  ] = row[s+2];
+                dst[d+1] = row[s+1];
+                dst[d+2] = row[s  ];
+            }
+        }
+
+        ImageWriter writer = JPEG_WRITERS.get();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+        param.setCompressionQuality( quality );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( w * h / 4 + 1024 );
+        MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream( bytes );
+        try {
+            writer.setOutput( out );
+            writer.write( null, new IIOImage( im, null, null ), param );
+        } finally {
+            out.close();
+            writer.setOutput( null );
+        }
+
+        return bytes.toByteArray();
+    }
+
+
+
+    private void drainOne() throws IOException {
+        byte[] jpeg;
+        try {
+            jpeg = mPending.removeFirst().get();
+        } catch( InterruptedException ex ) {
+            throw new InterruptedIOException();
+        } catch( ExecutionException ex ) {
+            Throwable t = ex.getCause();
+            if( t instanceof IOException ) {
+                throw (IOException)t;
+            }
+            throw new IOException( t );
+        }
+
+        int pad = jpeg.length & 1;
+        if( mPos + 8 + jpeg.length + pad + ( mFrameCount + 1 ) * 16L > MAX_SIZE ) {
+            throw new IOException( "AVI size limit reached." );
+        }
+
+        ByteBuffer head = ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN );
+        head.put( fourcc( "00dc" ) ).putInt( jpeg.length ).flip();
+        long chunkPos = mPos;
+        write( head );
+        write( ByteBuffer.wrap( jpeg ) );
+        if( pad != 0 ) {
+            write( ByteBuffer.wrap( new byte[1] ) );
+        }
+
+        if( mFrameCount * 2 == mIndex.length ) {
+            mIndex = Arrays.copyOf( mIndex, mIndex.length * 2 );
+        }
+        // Index offsets are relative to the "movi" fourcc.
+        mIndex[mFrameCount * 2    ] = (int)( chunkPos - ( POS_MOVI_SIZE + 4 ) );
+        mIndex[mFrameCount * 2 + 1] = jpeg.length;
+        mFrameCount++;
+        mMaxFrameBytes = Math.max( mMaxFrameBytes, jpeg.length );
+    }
+
+
+    private void writeHeader() throws IOException {
+        int usPerFrame = (int)Math.round( 1000000.0 / mFps );
+        int scale = 1000;
+        int rate  = (int)Math.round( mFps * scale );
+
+        ByteBuffer b = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        b.put( fourcc( "RIFF" ) ).putInt( 0 ).put( fourcc( "AVI " ) );
+        b.put( fourcc( "LIST" ) ).putInt( 192 ).put( fourcc( "hdrl" ) );
+
+        b.put( fourcc( "avih" ) ).putInt( 56 );
+        b.putInt( usPerFrame );         // dwMicroSecPerFrame
+        b.putInt( 0 );                  // dwMaxBytesPerSec
+        b.putInt( 0 );                  // dwPaddingGranularity
+        b.putInt( AVIF_HASINDEX );      // dwFlags
+        b.putInt( 0 );                  // dwTotalFrames
+        b.putInt( 0 );                  // dwInitialFrames
+        b.putInt( 1 );                  // dwStreams
+        b.putInt( 0 );                  // dwSuggestedBufferSize
+        b.putInt( mWidth );
+        b.putInt( mHeight );
+        b.putInt( 0 ).putInt( 0 ).putInt( 0 ).putInt( 0 );
+
+        b.put( fourcc( "LIST" ) ).putInt( 116 ).put( fourcc( "strl" ) );
+        b.put( fourcc( "strh" ) ).putInt( 56 );
+        b.put( fourcc( "vids" ) ).put( fourcc( "MJPG" ) );
+        b.putInt( 0 );                  // dwFlags
+        b.putShort( (short)0 );         // wPriority
+        b.putShort( (short)0 );         // wLanguage
+        b.putInt( 0 );                  // dwInitialFrames
+        b.putInt( scale );              // dwScale
+        b.putInt( rate );               // dwRate
+        b.putInt( 0 );                  // dwStart
+        b.putInt( 0 );                  // dwLength
+        b.putInt( 0 );                  // dwSuggestedBufferSize
+        b.putInt( -1 );                 // dwQuality
+        b.putInt( 0 );                  // dwSampleSize
+        b.putShort( (short)0 ).putShort( (short)0 ).putShort( (short)mWidth ).putShort( (short)mHeight );
+
+        b.put( fourcc( "strf" ) ).putInt( 40 );
+        b.putInt( 40 );                 // biSize
+        b.putInt( mWidth );
+        b.putInt( mHeight );
+        b.putShort( (short)1 );         // biPlanes
+        b.putShort( (short)24 );        // biBitCount
+        b.put( fourcc( "MJPG" ) );      // biCompression
+        b.putInt( mWidth * mHeight * 3 );
+        b.putInt( 0 ).putInt( 0 ).putInt( 0 ).putInt( 0 );
+
+        b.put( fourcc( "LIST" ) ).putInt( 4 ).put( fourcc( "movi" ) );
+        b.flip();
+
+        mPos = 0;
+        write( b );
+    }
+
+
+    private void writeIndex() throws IOException {
+        long moviEnd = mPos;
+        ByteBuffer b = ByteBuffer.allocate( 8 + mFrameCount * 16 ).order( ByteOrder.LITTLE_ENDIAN );
+        b.put( fourcc( "idx1" ) ).putInt( mFrameCount * 16 );
+        for( int i = 0; i < mFrameCount; i++ ) {
+            b.put( fourcc( "00dc" ) );
+            b.putInt( AVIIF_KEYFRAME );
+            b.putInt( mIndex[i * 2] );
+            b.putInt( mIndex[i * 2 + 1] );
+        }
+        b.flip();
+        write( b );
+
+        patch( POS_RIFF_SIZE,    (int)( mPos - 8 ) );
+        patch( POS_AVIH_FRAMES,  mFrameCount );
+        patch( POS_AVIH_BUFSIZE, mMaxFrameBytes + 8 );
+        patch( POS_STRH_LENGTH,  mFrameCount );
+        patch( POS_STRH_BUFSIZE, mMaxFrameBytes + 8 );
+        patch( POS_MOVI_SIZE,    (int)( moviEnd - ( POS_MOVI_SIZE + 4 ) ) );
+        mRaf.setLength( mPos );
+    }
+
+
+    private void patch( long pos, int value ) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate( 4 ).order( ByteOrder.LITTLE_ENDIAN );
+        b.putInt( value ).flip();
+        while( b.hasRemaining() ) {
+            mChan.write( b, pos + b.position() );
+        }
+    }
+
+
+    private void write( ByteBuffer b ) throws IOException {
+        while( b.hasRemaining() ) {
+            int n = mChan.write( b, mPos );
+            if( n <= 0 ) {
+                throw new IOException( "Write failed." );
+            }
+            mPos += n;
+        }
+    }
+
+
+    private static byte[] fourcc( String s ) {
+        return new byte[]{ (byte)s.charAt( 0 ), (byte)s.charAt( 1 ), (byte)s.charAt( 2 ), (byte)s.charAt( 3 ) };
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.jogamp.opengl.GL3;
+import static com.jogamp.opengl.GL3.*;
+
+import bits.draw3d.DrawEnv;
+
+
+/**
+ * Captures color, depth and other render targets of the same frame in one
+ * step. All reads are queued into pixel buffer objects before waiting on
+ * the GPU, so the readback stall is paid once per frame rather than once per
+ * target. Targets are then copied into pooled buffers and encoded
+ * concurrently on a worker pool.
+ * <p>
+ * Color targets are written as PNG files, depth targets with
+ * <tt>ScreenshotSaver.encodeDepth()</tt>, and object-id targets as RGBA PNG
+ * files holding each 32-bit id with its least significant byte in red.
+ * <p>
+ * Methods taking a DrawEnv must be called on the GL thread.
+ *
+ * @author decamp
+ */
+public class MultiTargetCapture {
+
+    public static final int TYPE_COLOR = 0;
+    public static final int TYPE_DEPTH = 1;
+    public static final int TYPE_ID    = 2;
+
+
+    /**
+     * Describes one buffer to capture.
+     */
+    public static final class Target {
+
+        /**
+         * @param alphaOp ScreenshotSaver alpha op to apply.
+         * @return target for the current read buffer.
+         */
+        public static Target color( int alphaOp ) {
+            return new Target( TYPE_COLOR, -1, alphaOp, ".png" );
+        }
+
+
+        public static Target depth() {
+            return new Target( TYPE_DEPTH, -1, 0, "_depth.depth" );
+        }
+
+        /**
+         * @param attachment Index of color attachment of the bound read framebuffer,
+         *                   which must have an unsigned integer format.
+         * @return target for an object-id attachment.
+         */
+        public static Target objectId( int attachment ) {
+            return new Target( TYPE_ID, attachment, 0, "_id" + attachment + ".png" );
+        }
+
+
+        final int mType;
+        final int mAttachment;
+        final int mAlphaOp;
+        final String mSuffix;
+
+        private Target( int type, int attachment, int alphaOp, String suffix ) {
+            mType       = type;
+            mAttachment = attachment;
+            mAlphaOp    = alphaOp;
+            mSuffix     = suffix;
+        }
+
+
+        public int type() {
+            return mType;
+        }
+
+        /**
+         * @return suffix appended to file stem when output files are named automatically.
+         */
+        public String suffix() {
+            return mSuffix;
+        }
+    }
+
+
+
+    private final ScreenshotSaver mSaver;
+    private final ExecutorService mExec;
+    private final boolean mOwnsExec;
+
+    private int[] mPbos = new int[0];
+    private int[] mCaps = new int[0];
+
+
+    /**
+     * @param saver       Provides output file sequence, buffer pool and encoding.
+     * @param optExecutor Executor for encoding and writing. If null, a pool is created
+     *                    with one daemon thread per processor, and shut down by <tt>dispose()</tt>.
+     */
+    public MultiTargetCapture( ScreenshotSaver saver, ExecutorService optExecutor ) {
+        mSaver = saver;
+        if( optExecutor != null ) {
+            mExec     = optExecutor;
+            mOwnsExec = false;
+        } else {
+            mExec     = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "TargetEncoder" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            mOwnsExec = true;
+        }
+    }
+
+
+
+    /**
+     * Captures targets to files named after the next file in the saver's PNG
+     * sequence, with the extension replaced by each target's suffix.
+     *
+     * @return futures providing each file once written, in order of targets, or null if saver has no output directory.
+     */
+    public List<Future<File>> capture( DrawEnv d, int x, int y, int w, int h, List<Target> targets ) {
+        File base = mSaver.nextPngFile();
+        if( base == null ) {
+            return null;
+        }
+
+        String stem = base.getName().replaceFirst( "\\.png$", "" );
+        File[] files = new File[targets.size()];
+        for( int i = 0; i < files.length; i++ ) {
+            files[i] = new File( base.getParentFile(), stem + targets.get( i ).mSuffix );
+        }
+        if( !Arrays.asList( files ).contains( base ) ) {
+            // Base name was only reserved to derive target names.
+            base.delete();
+        }
+        return capture( d, x, y, w, h, targets, files );
+    }
+
+    /**
+     * Reads all targets for the current frame, then encodes them on workers.
+     *
+     * @param outFiles Destination of each target, in order of targets.
+     * @return futures providing each file once written, in order of targets.
+     */
+    public List<Future<File>> capture( DrawEnv d, int x, int y, final int w, final int h, List<Target> targets, File[] outFiles ) {
+        final GL3 gl  = d.mGl;
+        final int n   = targets.size();
+        final int len = w * h * 4;
+        allocPbos( gl, n, len );
+
+        int[] prevRead = new int[1];
+        gl.glGetIntegerv( GL_READ_BUFFER, prevRead, 0 );
+
+        // Queue all reads before waiting.
+        for( int i = 0; i < n; i++ ) {
+            Target t = targets.get( i );
+            gl.glBindBuffer( GL_PIXEL_PACK_BUFFER, mPbos[i] );
+            switch( t.mType ) {
+            case TYPE_COLOR:
+                gl.glReadBuffer( prevRead[0] );
+                gl.glReadPixels( x, y, w, h, GL_RGBA, GL_UNSIGNED_BYTE, 0L );
+                break;
+            case TYPE_DEPTH:
+                gl.glReadPixels( x, y, w, h, GL_DEPTH_COMPONENT, GL_FLOAT, 0L );
+                break;
+            default:
+                gl.glReadBuffer( GL_COLOR_ATTACHMENT0 + t.mAttachment );
+                gl.glReadPixels( x, y, w, h, GL_RED_INTEGER, GL_UNSIGNED_INT, 0L );
+                break;
+            }
+        }
+
+        gl.glReadBuffer( prevRead[0] );
+        long fence = gl.glFenceSync( GL_SYNC_GPU_COMMANDS_COMPLETE, 0 );
+        gl.glClientWaitSync( fence, GL_SYNC_FLUSH_COMMANDS_BIT, Long.MAX_VALUE );
+        gl.glDeleteSync( fence );
+
+        final DirectBufferPool pool = mSaver.bufferPool();
+        List<Future<File>> ret = new ArrayList<Future<File>>( n );
+
+        for( int i = 0; i < n; i++ ) {
+            final Target t = targets.get( i );
+            final File file = outFiles[i];
+            final ByteBuffer data = pool.acquire( len );
+
+            gl.glBindBuffer( GL_PIXEL_PACK_BUFFER, mPbos[i] );
+            ByteBuffer mapped = gl.glMapBufferRange( GL_PIXEL_PACK_BUFFER, 0, len, GL_MAP_READ_BIT );
+            if( mapped != null ) {
+                mapped.limit( len );
+                data.put( mapped ).flip();
+            }
+            gl.glUnmapBuffer( GL_PIXEL_PACK_BUFFER );
+
+            if( mapped == null ) {
+                pool.release( data );
+                FutureTask<File> fail = new FutureTask<File>( new Callable<File>() {
+                    public File call() throws IOException {
+                        throw new IOException( "Failed to map pixel buffer." );
+                    }
+                } );
+                fail.run();
+                ret.add( fail );
+                continue;
+            }
+
+            ret.add( mExec.submit( new Callable<File>() {
+                public File call() throws IOException {
+                    try {
+                        encode( t, data, w, h, file );
+                        return file;
+                    } finally {
+                        pool.release( data );
+                    }
+                }
+            } ) );
+        }
+
+        gl.glBindBuffer( GL_PIXEL_PACK_BUFFER, 0 );
+        return ret;
+    }
+
+    /**
+     * Releases GL resources. If the executor was created by this object, it
+     * is shut down after queued encodes finish.
+     */
+    public void dispose( DrawEnv d ) {
+        if( mPbos.length > 0 ) {
+            d.mGl.glDeleteBuffers( mPbos.length, mPbos, 0 );
+            mPbos = new int[0];
+            mCaps = new int[0];
+        }
+        if( mOwnsExec ) {
+            mExec.shutdown();
+        }
+    }
+
+
+
+    private void allocPbos( GL3 gl, int count, int len ) {
+        if( mPbos.length < count ) {
+            int old = mPbos.length;
+            mPbos = Arrays.copyOf( mPbos, count );
+            mCaps = Arrays.copyOf( mCaps, count );
+            gl.glGenBuffers( count - old, mPbos, old );
+        }
+
+        for( int i = 0; i < count; i++ ) {
+            if( mCaps[i] < len ) {
+                gl.glBindBuffer( GL_PIXEL_PACK_BUFFER, mPbos[i] );
+                gl.glBufferData( GL_PIXEL_PACK_BUFFER, len, null, GL_STREAM_READ );
+                mCaps[i] = len;
+            }
+        }
+        gl.glBindBuffer( GL_PIXEL_PACK_BUFFER, 0 );
+    }
+
+
+    private void encode( Target t, ByteBuffer data, int w, int h, File file ) throws IOException {
+        final int len = w * h * 4;
+
+        switch( t.mType ) {
+        case TYPE_COLOR:
+            ScreenshotSaver.applyOp( t.mAlphaOp, data, len );
+            mSaver.savePng( data, w, h, file );
+            break;
+
+        case TYPE_DEPTH:
+        {
+            DirectBufferPool pool = mSaver.bufferPool();
+            ByteBuffer buf = pool.acquire( len + 1024 );
+            try {
+                ByteBuffer enc = mSaver.encodeDepth( data, w, h, buf );
+                enc.flip();
+                mSaver.saveBuffer( enc, file );
+            } finally {
+                pool.release( buf );
+            }
+            break;
+        }
+
+        default:
+            if( ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ) {
+                IntBuffer ib = data.duplicate().asIntBuffer();
+                for( int i = 0; i < w * h; i++ ) {
+                    ib.put( i, Integer.reverseBytes( ib.get( i ) ) );
+                }
+            }
+            mSaver.savePng( data, w, h, file );
+            break;
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.nio.IntBuffer;
+
+import bits.draw3d.DrawEnv;
+import bits.math3d.*;
+import bits.math3d.geom.*;
+
+
+/**
+ * RenderList for point items that stores positions in a single packed
+ * float array instead of one object per item. Depths are computed in bulk
+ * and sorting produces an array of item indices, which can be handed
+ * directly to <tt>glDrawElements</tt>.
+ * <p>
+ * Ordering and culling follow the same rules as
+ * <tt>RenderList.create( clazz, capacity, sortOrder, cullVolume )</tt>:
+ * items are sorted by normalized depth in the given order, items outside
+ * the cull volume are excluded from the render range, and items with equal
+ * depth are drawn in the order they were added.
+ *
+ * @author decamp
+ */
+public class PackedRenderList {
+
+    public static final boolean BACK_TO_FRONT = RenderList.BACK_TO_FRONT;
+    public static final boolean FRONT_TO_BACK = RenderList.FRONT_TO_BACK;
+
+
+    public static PackedRenderList create( int capacity ) {
+        return create( capacity, BACK_TO_FRONT, null );
+    }
+
+
+    public static PackedRenderList create( int capacity, boolean sortOrder, Volume optCullVolume ) {
+        return new PackedRenderList( capacity, sortOrder, optCullVolume );
+    }
+
+
+
+    public final Mat4 mModelToProjMat = new Mat4();
+    public final Mat4 mModelToNormMat = new Mat4();
+    private final Mat4 mWork = new Mat4();
+
+    private final boolean mBackToFront;
+    private final Volume mCullBounds;
+    private final RadixSort mRadix = new RadixSort();
+
+    private float[] mPos;
+    private int mSize = 0;
+
+    private int[] mKeys;
+    private int[] mOrder;
+    private int mRenderStop = 0;
+
+
+    private PackedRenderList( int capacity, boolean sortOrder, Volume cullBounds ) {
+        capacity     = Math.max( 1, capacity );
+        mBackToFront = sortOrder == BACK_TO_FRONT;
+        mCullBounds  = cullBounds;
+        mPos         = new float[capacity * 3];
+        mKeys        = new int[capacity];
+        mOrder       = new int[capacity];
+    }
+
+
+
+    /**
+     * @return index of added item.
+     */
+    public int add( float x, float y, float z ) {
+        if( mSize == mKeys.length ) {
+            realloc( mSize + 1 );
+        }
+
+        int i = mSize * 3;
+        mPos[i  ] = x;
+        mPos[i+1] = y;
+        mPos[i+2] = z;
+        return mSize++;
+    }
+
+    /**
+     * Adds items from a packed array of positions.
+     *
+     * @param xyz   Array of x,y,z triplets.
+     * @param off   Offset into array.
+     * @param count Number of items (not floats) to add.
+     */
+    public void add( float[] xyz, int off, int count ) {
+        if( mSize + count > mKeys.length ) {
+            realloc( mSize + count );
+        }
+
+        System.arraycopy( xyz, off, mPos, mSize * 3, count * 3 );
+        mSize += count;
+    }
+
+
+    public void set( int idx, float x, float y, float z ) {
+        if( idx >= mSize ) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int i = idx * 3;
+        mPos[i  ] = x;
+        mPos[i+1] = y;
+        mPos[i+2] = z;
+    }
+
+
+    public int size() {
+        return mSize;
+    }
+
+
+    public void clear() {
+        mSize = 0;
+        mRenderStop = 0;
+    }
+
+    /**
+     * @return direct reference to packed position array, holding <tt>3 * size()</tt> valid values.
+     */
+    public float[] positionArr() {
+        return mPos;
+    }
+
+
+    public void update( DrawEnv d ) {
+        updateOrientation( d );
+        updateSort();
+    }
+
+
+    public void updateOrientation( DrawEnv d ) {
+        Mat.put( d.mView.get(), mModelToProjMat );
+        Mat.put( d.mProj.get(), mWork );
+        Mat.mult( mWork, mModelToProjMat, mModelToNormMat );
+    }
+
+
+    public void updateSort() {
+        final float[] pos  = mPos;
+        final int[] keys   = mKeys;
+        final int[] order  = mOrder;
+        final int size     = mSize;
+        final Mat4 m       = mModelToNormMat;
+        final Volume cull  = mCullBounds;
+        final boolean back = mBackToFront;
+
+        int n = 0;
+
+        if( cull == null ) {
+            for( int i = 0; i < size; i++ ) {
+                float x = pos[i*3  ];
+                float y = pos[i*3+1];
+                float z = pos[i*3+2];
+                float w = 1.0f / ( m.m30*x + m.m31*y + m.m32*z + m.m33 );
+                float nz = ( m.m20*x + m.m21*y + m.m22*z + m.m23 ) * w;
+                int k = RadixSort.floatKey( nz );
+                keys[i]  = back ? ~k : k;
+                order[i] = i;
+            }
+            n = size;
+
+        } else {
+            for( int i = 0; i < size; i++ ) {
+                float x = pos[i*3  ];
+                float y = pos[i*3+1];
+                float z = pos[i*3+2];
+                float w = 1.0f / ( m.m30*x + m.m31*y + m.m32*z + m.m33 );
+                float nx = ( m.m00*x + m.m01*y + m.m02*z + m.m03 ) * w;
+                float ny = ( m.m10*x + m.m11*y + m.m12*z + m.m13 ) * w;
+                float nz = ( m.m20*x + m.m21*y + m.m22*z + m.m23 ) * w;
+
+                if( cull.contains( nx, ny, nz ) ) {
+                    int k = RadixSort.floatKey( nz );
+                    keys[n]  = back ? ~k : k;
+                    order[n] = i;
+                    n++;
+                }
+            }
+        }
+
+        mRadix.sort( keys, order, 0, n );
+        mRenderStop = n;
+    }
+
+    /**
+     * After sorting, <tt>indexArr()[renderStartIndex() ... renderStopIndex()-1]</tt>
+     * holds the indices of unculled items in draw order.
+     *
+     * @return direct reference to sorted index array.
+     */
+    public int[] indexArr() {
+        return mOrder;
+    }
+
+
+    public int renderStartIndex() {
+        return 0;
+    }
+
+
+    public int renderStopIndex() {
+        return mRenderStop;
+    }
+
+    /**
+     * Writes sorted indices of unculled items into a buffer, suitable
+     * for <tt>glDrawElements( mode, count, GL_UNSIGNED_INT, buf )</tt>.
+     *
+     * @param out Buffer to receive indices. Must have at least <tt>renderStopIndex()</tt> remaining.
+     * @return number of indices written.
+     */
+    public int putIndices( IntBuffer out ) {
+        out.put( mOrder, 0, mRenderStop );
+        return mRenderStop;
+    }
+
+
+
+    private void realloc( int min ) {
+        int n = Pots.ceilPot( min );
+        float[] pos = new float[n * 3];
+        System.arraycopy( mPos, 0, pos, 0, mSize * 3 );
+        mPos   = pos;
+        mKeys  = new int[n];
+        mOrder = new int[n];
+        mRenderStop = 0;
+    }
+
+}
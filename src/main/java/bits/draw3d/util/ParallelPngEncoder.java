@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import bits.png.PngBufferWriter;
+
+
+/**
+ * Encodes 8-bit PNG images by splitting rows into bands and deflating each
+ * band on a separate thread. Each band but the last ends with a sync flush,
+ * so the compressed bands can be concatenated into a single zlib stream.
+ * Every band after the first is primed with the last 32 KB of the preceding
+ * band's data as a preset dictionary, which keeps output size close to that
+ * of a single deflate stream.
+ *
+ * @author decamp
+ */
+public class ParallelPngEncoder {
+
+    /**
+     * Images with fewer bytes than this are encoded as a single band.
+     */
+    public static final int DEFAULT_MIN_BAND_BYTES = 1 << 20;
+
+    private static final int DICT_SIZE = 1 << 15;
+
+
+    /**
+     * @return bytes per pixel of an 8-bit image of given color type.
+     */
+    public static int bytesPerPixel( int colorType ) {
+        switch( colorType ) {
+        case PngBufferWriter.COLOR_TYPE_GRAYSCALE:
+            return 1;
+        case PngBufferWriter.COLOR_TYPE_GRAYSCALE_ALPHA:
+            return 2;
+        case PngBufferWriter.COLOR_TYPE_RGB:
+            return 3;
+        case PngBufferWriter.COLOR_TYPE_RGBA:
+            return 4;
+        default:
+            throw new IllegalArgumentException( "Unsupported color type: " + colorType );
+        }
+    }
+
+
+
+    private final ExecutorService mExec;
+    private final boolean mOwnsExec;
+    private final int mThreads;
+    private final int mMinBandBytes;
+
+
+    /**
+     * @param optExecutor Executor on which to deflate bands. If null, a pool of daemon threads
+     *                    is created with one thread per processor.
+     */
+    public ParallelPngEncoder( ExecutorService optExecutor ) {
+        this( optExecutor, DEFAULT_MIN_BAND_BYTES );
+    }
+
+
+    public ParallelPngEncoder( ExecutorService optExecutor, int minBandBytes ) {
+        mThreads = Runtime.getRuntime().availableProcessors();
+        if( optExecutor == null ) {
+            mExec = Executors.newFixedThreadPool( mThreads, new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "PngEncoder" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            mOwnsExec = true;
+        } else {
+            mExec = optExecutor;
+            mOwnsExec = false;
+        }
+        mMinBandBytes = Math.max( 1, minBandBytes );
+    }
+
+
+    /**
+     * Encodes an image.
+     *
+     * @param in        Image data, starting at <tt>in.position()</tt>. Position is moved to end of data.
+     * @param w         Width of image.
+     * @param h         Height of image.
+     * @param colorType PNG color type.
+     * @param compLevel Deflate level.
+     * @param flipRows  If true, rows are written in reverse order, as needed for data read from OpenGL.
+     * @param out       Receives encoded file. May be null, or replaced if it lacks space.
+     * @return buffer holding encoded file, from its original position to its new position.
+     */
+    public ByteBuffer encode( ByteBuffer in,
+                              int w,
+                              int h,
+                              int colorType,
+                              int compLevel,
+                              boolean flipRows,
+                              ByteBuffer out )
+                              throws IOException
+    {
+        final int stride   = w * bytesPerPixel( colorType );
+        final int lineSize = stride + 1;
+        final int pos      = in.position();
+        final ByteBuffer src = in.duplicate();
+
+        long total = (long)lineSize * h;
+        int bands = (int)Math.max( 1, Math.min( mThreads * 2, total / mMinBandBytes ) );
+        bands = Math.max( 1, Math.min( bands, h ) );
+
+        List<Future<Band>> futures = new ArrayList<Future<Band>>( bands );
+        for( int i = 0; i < bands; i++ ) {
+            int row0 = (int)( (long)h * i / bands );
+            int row1 = (int)( (long)h * ( i + 1 ) / bands );
+            futures.add( mExec.submit( new Band( src, pos, stride, h, row0, row1, flipRows, compLevel, i == bands - 1 ) ) );
+        }
+
+        Band[] done = new Band[bands];
+        long dataSize = 0;
+        try {
+            for( int i = 0; i < bands; i++ ) {
+                done[i] = futures.get( i ).get();
+                dataSize += done[i].mOutLen;
+            }
+        } catch( InterruptedException ex ) {
+            throw new InterruptedIOException();
+        } catch( ExecutionException ex ) {
+            Throwable t = ex.getCause();
+            if( t instanceof IOException ) {
+                throw (IOException)t;
+            }
+            throw new IOException( t );
+        }
+
+        // Signature, IHDR, one IDAT per band, zlib header and trailer, IEND.
+        long cap = 8 + 25 + 12L * bands + dataSize + 6 + 12;
+        if( cap > Integer.MAX_VALUE ) {
+            throw new IOException( "Image too large." );
+        }
+        if( out == null || out.remaining() < cap ) {
+            if( ( out == null ? 0 : out.position() ) + cap > Integer.MAX_VALUE ) {
+                throw new IOException( "Image too large." );
+            }
+            // Keep any data preceding position.
+            ByteBuffer b = ByteBuffer.allocateDirect( ( out == null ? 0 : out.position() ) + (int)cap );
+            if( out != null ) {
+                out.flip();
+                b.put( out );
+            }
+            out = b;
+        }
+        out.order( ByteOrder.BIG_ENDIAN );
+
+        CRC32 crc = new CRC32();
+        out.put( PngChunks.SIGNATURE );
+        byte[] ihdr = PngChunks.header( w, h, colorType );
+        PngChunks.writeChunk( out, PngChunks.IHDR, null, ihdr, 0, ihdr.length, null, crc );
+
+        long adler = 1;
+        for( int i = 0; i < bands; i++ ) {
+            Band b = done[i];
+            adler = i == 0 ? b.mAdler : adler32Combine( adler, b.mAdler, b.mInLen );
+            byte[] head = i == 0 ? zlibHeader( compLevel ) : null;
+            byte[] tail = null;
+            if( i == bands - 1 ) {
+                tail = new byte[4];
+                PngChunks.putInt( tail, 0, (int)adler );
+            }
+            PngChunks.writeChunk( out, PngChunks.IDAT, head, b.mOut, 0, b.mOutLen, tail, crc );
+        }
+
+        PngChunks.writeChunk( out, PngChunks.IEND, null, null, 0, 0, null, crc );
+        in.position( pos + stride * h );
+        return out;
+    }
+
+    /**
+     * Shuts down executor if it was created by this encoder.
+     */
+    public void shutdown() {
+        if( mOwnsExec ) {
+            mExec.shutdown();
+        }
+    }
+
+
+
+    static long adler32Combine( long adler1, long adler2, long len2 ) {
+        final long base = 65521;
+        long rem  = len2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = ( rem * sum1 ) % base;
+        sum1 += ( adler2 & 0xFFFF ) + base - 1;
+        sum2 += ( ( adler1 >>> 16 ) & 0xFFFF ) + ( ( adler2 >>> 16 ) & 0xFFFF ) + base - rem;
+        if( sum1 >= base ) sum1 -= base;
+        if( sum1 >= base ) sum1 -= base;
+        if( sum2 >= base << 1 ) sum2 -= base << 1;
+        if( sum2 >= base ) sum2 -= base;
+        return sum1 | ( sum2 << 16 );
+    }
+
+
+    private static byte[] zlibHeader( int level ) {
+        int cmf = 0x78;
+        int lev = level < 0 || level == 6 ? 2 : level < 2 ? 0 : level < 6 ? 1 : 3;
+        int flg = lev << 6;
+        flg += 31 - ( cmf * 256 + flg ) % 31;
+        return new byte[]{ (byte)cmf, (byte)flg };
+    }
+
+
+    private static final class Band implements Callable<Band> {
+
+        private final ByteBuffer mSrc;
+        private final int mPos;
+        private final int mStride;
+        private final int mHeight;
+        private final int mRow0;
+        private final int mRow1;
+        private final boolean mFlip;
+        private final int mLevel;
+        private final boolean mLast;
+
+        long mAdler;
+        int mInLen;
+        byte[] mOut;
+        int mOutLen;
+
+
+        Band( ByteBuffer src,
+              int pos,
+              int stride,
+              int height,
+              int row0,
+              int row1,
+              boolean flip,
+              int level,
+              boolean last )
+        {
+            mSrc    = src;
+            mPos    = pos;
+            mStride = stride;
+            mHeight = height;
+            mRow0   = row0;
+            mRow1   = row1;
+            mFlip   = flip;
+            mLevel  = level;
+            mLast   = last;
+        }
+
+
+        public Band call() {
+            final int lineSize = mStride + 1;
+            final ByteBuffer src = mSrc.duplicate();
+
+            // Rows preceding band are copied in as well to fill dictionary.
+            int dictRows = mRow0 == 0 ? 0 : Math.min( mRow0, ( DICT_SIZE + lineSize - 1 ) / lineSize );
+            int first    = mRow0 - dictRows;
+            int rows     = mRow1 - first;
+            byte[] raw   = new byte[rows * lineSize];
+
+            for( int r = 0; r < rows; r++ ) {
+                int row = first + r;
+                int srcRow = mFlip ? mHeight - 1 - row : row;
+                src.limit( mPos + ( srcRow + 1 ) * mStride ).position( mPos + srcRow * mStride );
+                src.get( raw, r * lineSize + 1, mStride );
+            }
+
+            int dataOff = dictRows * lineSize;
+            mInLen = raw.length - dataOff;
+
+            Adler32 adler = new Adler32();
+            adler.update( raw, dataOff, mInLen );
+            mAdler = adler.getValue();
+
+            Deflater def = new Deflater( mLevel, true );
+            try {
+                if( dataOff > 0 ) {
+                    int dictLen = Math.min( DICT_SIZE, dataOff );
+                    def.setDictionary( raw, dataOff - dictLen, dictLen );
+                }
+
+                def.setInput( raw, dataOff, mInLen );
+                byte[] out = new byte[ mInLen / 2 + 1024 ];
+                int outLen = 0;
+
+                if( mLast ) {
+                    def.finish();
+                    while( !def.finished() ) {
+                        if( outLen == out.length ) {
+                            out = Arrays.copyOf( out, out.length * 2 );
+                        }
+                        outLen += def.deflate( out, outLen, out.length - outLen );
+                    }
+                } else {
+                    while( true ) {
+                        if( outLen == out.length ) {
+                            out = Arrays.copyOf( out, out.length * 2 );
+                        }
+                        int n = def.deflate( out, outLen, out.length - outLen, Deflater.SYNC_FLUSH );
+                        outLen += n;
+                        // Flush is complete once output space is left over.
+                        if( outLen < out.length && def.needsInput() ) {
+                            break;
+                        }
+                    }
+                }
+
+                mOut = out;
+                mOutLen = outLen;
+            } finally {
+                def.end();
+            }
+
+            return this;
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.util.concurrent.*;
+
+import bits.draw3d.actors.DepthSortable;
+import bits.math3d.Mat4;
+import bits.math3d.Vec3;
+import bits.math3d.geom.Volume;
+
+
+/**
+ * Computes normalized positions and cull tests of DepthSortable objects
+ * across a ForkJoinPool. Arrays smaller than a given threshold are processed
+ * serially on the calling thread.
+ * <p>
+ * <tt>DepthSortable.updateNormPos()</tt> is called concurrently on different
+ * objects, but never on the same object from two threads.
+ *
+ * @author decamp
+ */
+public class ParallelSortPositions {
+
+    /**
+     * Default number of objects below which updates run serially.
+     */
+    public static final int DEFAULT_MIN_PARALLEL = 1 << 14;
+
+    /**
+     * Smallest number of objects processed by a single task.
+     */
+    private static final int MIN_CHUNK = 1 << 11;
+
+
+    /**
+     * Parallel version of <tt>RenderList.updateSortPositions()</tt>. Computes
+     * normalized positions and sets the z-coordinate of objects outside
+     * <tt>cullBounds</tt> to <tt>cullValue</tt>.
+     *
+     * @param optPool     Pool on which to run. If null, runs serially.
+     * @param minParallel Minimum number of objects to process in parallel.
+     * @param arr         Array of DepthSortable objects.
+     * @param off         Offset into array.
+     * @param len         Number of objects in array.
+     * @param mat         Model-to-normalized transform.
+     * @param cullBounds  Normalized cull bounds, or null.
+     * @param cullValue   Depth assigned to culled objects.
+     */
+    public static void update( ForkJoinPool optPool,
+                               int minParallel,
+                               DepthSortable[] arr,
+                               int off,
+                               int len,
+                               Mat4 mat,
+                               Volume cullBounds,
+                               float cullValue )
+    {
+        if( optPool == null || len < minParallel ) {
+            RenderList.updateSortPositions( arr, off, len, mat, cullBounds, cullValue );
+            return;
+        }
+
+        int chunk = chunkSize( optPool, len );
+        optPool.invoke( new Task( arr, off, off + len, chunk, mat, cullBounds, cullValue, null ) );
+    }
+
+    /**
+     * Computes normalized positions and cull tests of DepthSortable objects.
+     *
+     * @param optPool     Pool on which to run. If null, runs serially.
+     * @param minParallel Minimum number of objects to process in parallel.
+     * @param arr         Array of DepthSortable objects.
+     * @param off         Offset into array.
+     * @param len         Number of objects in array.
+     * @param optMat      Model-to-normalized transform. If null, normalized positions are not updated.
+     * @param optCull     Normalized cull bounds. If null, no cull test is performed.
+     * @param outVisible  Receives the result of cull test for <tt>arr[off+i]</tt> at <tt>outVisible[i]</tt>.
+     *                    May be null if <tt>optCull</tt> is null.
+     */
+    public static void update( ForkJoinPool optPool,
+                               int minParallel,
+                               DepthSortable[] arr,
+                               int off,
+                               int len,
+                               Mat4 optMat,
+                               Volume optCull,
+                               boolean[] outVisible )
+    {
+        if( optPool == null || len < minParallel ) {
+            updateRange( arr, off, off + len, optMat, optCull, Float.NaN, outVisible, off );
+            return;
+        }
+
+        int chunk = chunkSize( optPool, len );
+        optPool.invoke( new Task( arr, off, off + len, chunk, optMat, optCull, Float.NaN, outVisible ) );
+    }
+
+
+
+    private static int chunkSize( ForkJoinPool pool, int len ) {
+        // A few tasks per worker to even out load.
+        return Math.max( MIN_CHUNK, len / ( pool.getParallelism() * 4 ) + 1 );
+    }
+
+
+    private static void updateRange( DepthSortable[] arr,
+                                     int start,
+                                     int stop,
+                                     Mat4 mat,
+                                     Volume cull,
+                                     float cullValue,
+                                     boolean[] outVisible,
+                                     int visibleOff )
+    {
+        if( mat != null ) {
+            for( int i = start; i < stop; i++ ) {
+                arr[i].updateNormPos( mat );
+            }
+        }
+
+        if( cull == null ) {
+            return;
+        }
+
+        if( outVisible != null ) {
+            for( int i = start; i < stop; i++ ) {
+                Vec3 pos = arr[i].normPosRef();
+                outVisible[i - visibleOff] = cull.contains( pos.x, pos.y, pos.z );
+            }
+        } else {
+            for( int i = start; i < stop; i++ ) {
+                Vec3 pos = arr[i].normPosRef();
+                if( !cull.contains( pos.x, pos.y, pos.z ) ) {
+                    pos.z = cullValue;
+                }
+            }
+        }
+    }
+
+
+    @SuppressWarnings( "serial" )
+    private static final class Task extends RecursiveAction {
+
+        private final DepthSortable[] mArr;
+        private final int mStart;
+        private final int mStop;
+        private final int mChunk;
+        private final Mat4 mMat;
+        private final Volume mCull;
+        private final float mCullValue;
+        private final boolean[] mVisible;
+        private final int mVisibleOff;
+
+
+        Task( DepthSortable[] arr,
+              int start,
+              int stop,
+              int chunk,
+              Mat4 mat,
+              Volume cull,
+              float cullValue,
+              boolean[] visible )
+        {
+            this( arr, start, stop, chunk, mat, cull, cullValue, visible, start );
+        }
+
+
+        private Task( DepthSortable[] arr,
+                      int start,
+                      int stop,
+                      int chunk,
+                      Mat4 mat,
+                      Volume cull,
+                      float cullValue,
+                      boolean[] visible,
+                      int visibleOff )
+        {
+            mArr        = arr;
+            mStart      = start;
+            mStop       = stop;
+            mChunk      = chunk;
+            mMat        = mat;
+            mCull       = cull;
+            mCullValue  = cullValue;
+            mVisible    = visible;
+            mVisibleOff = visibleOff;
+        }
+
+
+        @Override
+        protected void compute() {
+            if( mStop - mStart <= mChunk ) {
+                updateRange( mArr, mStart, mStop, mMat, mCull, mCullValue, mVisible, mVisibleOff );
+                return;
+            }
+
+            int mid = ( mStart + mStop ) >>> 1;
+            invokeAll( new Task( mArr, mStart, mid, mChunk, mMat, mCull, mCullValue, mVisible, mVisibleOff ),
+                       new Task( mArr, mid, mStop, mChunk, mMat, mCull, mCullValue, mVisible, mVisibleOff ) );
+        }
+
+    }
+
+}
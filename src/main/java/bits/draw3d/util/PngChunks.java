@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+
+/**
+ * PNG file layout shared by the pure-Java encoders in this package. Like
+ * <tt>PngBufferWriter</tt>, those encoders write 8-bit rows with no filter.
+ *
+ * @author decamp
+ */
+class PngChunks {
+
+    static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    static final int IHDR = 0x49484452;
+    static final int IDAT = 0x49444154;
+    static final int IEND = 0x49454E44;
+
+
+    /**
+     * @return data of IHDR chunk for an 8-bit image.
+     */
+    static byte[] header( int w, int h, int colorType ) {
+        byte[] ret = new byte[13];
+        putInt( ret, 0, w );
+        putInt( ret, 4, h );
+        ret[8] = 8;
+        ret[9] = (byte)colorType;
+        return ret;
+    }
+
+    /**
+     * Writes a chunk whose data is the concatenation of <tt>head</tt>, a
+     * range of <tt>data</tt>, and <tt>tail</tt>, any of which may be null.
+     * <tt>out</tt> must be big-endian.
+     */
+    static void writeChunk( ByteBuffer out,
+                            int type,
+                            byte[] head,
+                            byte[] data,
+                            int off,
+                            int len,
+                            byte[] tail,
+                            CRC32 crc )
+    {
+        int size = len + ( head == null ? 0 : head.length ) + ( tail == null ? 0 : tail.length );
+        byte[] typeBytes = new byte[4];
+        putInt( typeBytes, 0, type );
+
+        out.putInt( size );
+        out.put( typeBytes );
+        crc.reset();
+        crc.update( typeBytes, 0, 4 );
+        if( head != null ) {
+            out.put( head );
+            crc.update( head, 0, head.length );
+        }
+        if( len > 0 ) {
+            out.put( data, off, len );
+            crc.update( data, off, len );
+        }
+        if( tail != null ) {
+            out.put( tail );
+            crc.update( tail, 0, tail.length );
+        }
+        out.putInt( (int)crc.getValue() );
+    }
+
+
+    static void writeChunk( DataOutput out, int type, byte[] data, int len, CRC32 crc ) throws IOException {
+        crc.reset();
+        crc.update( type >>> 24 );
+        crc.update( type >>> 16 );
+        crc.update( type >>>  8 );
+        crc.update( type        );
+        crc.update( data, 0, len );
+
+        out.writeInt( len );
+        out.writeInt( type );
+        out.write( data, 0, len );
+        out.writeInt( (int)crc.getValue() );
+    }
+
+
+    static void putInt( byte[] arr, int off, int v ) {
+        arr[off  ] = (byte)( v >>> 24 );
+        arr[off+1] = (byte)( v >>> 16 );
+        arr[off+2] = (byte)( v >>>  8 );
+        arr[off+3] = (byte)( v        );
+    }
+
+}
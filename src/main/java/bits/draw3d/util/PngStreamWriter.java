@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.util.zip.*;
+
+
+/**
+ * Writes an 8-bit PNG file incrementally, so that images larger than
+ * memory can be encoded as their rows become available. Compressed data
+ * is written out in IDAT chunks as it is produced.
+ *
+ * @author decamp
+ */
+public class PngStreamWriter implements RowSink {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+
+    private final DataOutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mLine;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkPos = 0;
+
+    private int mRowCount = 0;
+    private boolean mClosed = false;
+
+
+    public PngStreamWriter( File outFile, int w, int h, int colorType, int compLevel ) throws IOException {
+        this( new FileOutputStream( outFile ), w, h, colorType, compLevel );
+    }
+
+
+    public PngStreamWriter( OutputStream out, int w, int h, int colorType, int compLevel ) throws IOException {
+        mOut      = new DataOutputStream( new BufferedOutputStream( out, CHUNK_SIZE + 12 ) );
+        mWidth    = w;
+        mHeight   = h;
+        mStride   = w * ParallelPngEncoder.bytesPerPixel( colorType );
+        mDeflater = new Deflater( compLevel );
+        mLine     = new byte[mStride + 1];
+
+        mOut.write( PngChunks.SIGNATURE );
+        byte[] ihdr = PngChunks.header( w, h, colorType );
+        PngChunks.writeChunk( mOut, PngChunks.IHDR, ihdr, ihdr.length, mCrc );
+    }
+
+
+
+    public int width() {
+        return mWidth;
+    }
+
+
+    public int height() {
+        return mHeight;
+    }
+
+    /**
+     * @return bytes per row of image data.
+     */
+    public int stride() {
+        return mStride;
+    }
+
+
+    public void writeRows( byte[] data, int off, int rows ) throws IOException {
+        if( mRowCount + rows > mHeight ) {
+            throw new IOException( "Too many rows written to image." );
+        }
+
+        final byte[] line = mLine;
+        for( int r = 0; r < rows; r++ ) {
+            System.arraycopy( data, off + r * mStride, line, 1, mStride );
+            mDeflater.setInput( line, 0, line.length );
+            while( !mDeflater.needsInput() ) {
+                drain();
+            }
+        }
+
+        mRowCount += rows;
+    }
+
+
+    public void close() throws IOException {
+        if( mClosed ) {
+            return;
+        }
+        mClosed = true;
+
+        try {
+            if( mRowCount != mHeight ) {
+                throw new IOException( "Image closed after " + mRowCount + " of " + mHeight + " rows." );
+            }
+            mDeflater.finish();
+            while( !mDeflater.finished() ) {
+                drain();
+            }
+            flushChunk();
+            PngChunks.writeChunk( mOut, PngChunks.IEND, mChunk, 0, mCrc );
+        } finally {
+            mDeflater.end();
+            mOut.close();
+        }
+    }
+
+
+    private void drain() throws IOException {
+        int n = mDeflater.deflate( mChunk, mChunkPos, CHUNK_SIZE - mChunkPos );
+        mChunkPos += n;
+        if( mChunkPos == CHUNK_SIZE ) {
+            flushChunk();
+        }
+    }
+
+
+    private void flushChunk() throws IOException {
+        if( mChunkPos > 0 ) {
+            PngChunks.writeChunk( mOut, PngChunks.IDAT, mChunk, mChunkPos, mCrc );
+            mChunkPos = 0;
+        }
+    }
+
+}
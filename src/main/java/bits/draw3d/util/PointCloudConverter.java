@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+import bits.blob.Blob;
+import bits.math3d.*;
+
+
+/**
+ * Converts depth file sequences into point clouds. Each pixel with depth
+ * less than one is unprojected through the inverse of its frame's
+ * projection * view matrix and written as a float x, y, z triple. Output is
+ * either binary little-endian PLY or raw little-endian floats.
+ * <p>
+ * Cameras are read from YAML files holding <tt>view</tt> and <tt>proj</tt>
+ * transform stacks in the form read by MatrixIO. A file with the same name
+ * as a depth file but a <tt>.yaml</tt> extension applies to that frame
+ * only; otherwise a default camera file is used.
+ * <p>
+ * Frames are loaded and unprojected in parallel, with rows of each frame
+ * split across threads, and written in order. Each band of rows keeps only
+ * the points it produced. The number of frames held at once is limited both
+ * by count and by total bytes, estimated from the largest frame seen so
+ * far, so memory stays bounded for long sequences and large frames.
+ * <p>
+ * Usage: <tt>PointCloudConverter depthDir outFile [defaultCamera]</tt> <br>
+ * Output is PLY if <tt>outFile</tt> ends with <tt>.ply</tt>, otherwise raw.
+ *
+ * @author decamp
+ */
+public class PointCloudConverter {
+
+    public static final int FORMAT_PLY = 0;
+    public static final int FORMAT_XYZ = 1;
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 1L << 30;
+
+    private static final int POINT_BYTES = 12;
+    private static final int MIN_BAND_PIXELS = 1 << 16;
+
+    // Worst-case output of a band, reused by each worker.
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>();
+
+
+    public static void main( String[] args ) throws Exception {
+        if( args.length < 2 || args.length > 3 ) {
+            System.err.println( "Usage: PointCloudConverter <depthDir> <outFile> [defaultCamera]" );
+            System.exit( 1 );
+        }
+
+        File dir = new File( args[0] );
+        File[] files = dir.listFiles();
+        if( files == null ) {
+            throw new FileNotFoundException( dir.getPath() );
+        }
+
+        List<File> depthFiles = new ArrayList<File>();
+        for( File f: files ) {
+            if( f.getName().endsWith( ".depth" ) ) {
+                depthFiles.add( f );
+            }
+        }
+        Collections.sort( depthFiles );
+
+        File out   = new File( args[1] );
+        File cam   = args.length > 2 ? new File( args[2] ) : null;
+        int format = out.getName().endsWith( ".ply" ) ? FORMAT_PLY : FORMAT_XYZ;
+
+        PointCloudConverter conv = new PointCloudConverter( 0 );
+        try {
+            long n = conv.convert( depthFiles, cam, out, format );
+            System.out.println( "Wrote " + n + " points from " + depthFiles.size() + " frames." );
+        } finally {
+            conv.shutdown();
+        }
+    }
+
+    /**
+     * Reads a camera file.
+     *
+     * @return inverse of projection * view matrix.
+     */
+    @SuppressWarnings( "deprecation" )
+    public static Mat4 readInverseViewProj( File file ) throws IOException {
+        Blob blob = Blob.loadFromYaml( file );
+        Mat4 view = MatrixIO.parseTransformStack( blob.slice( "view" ) );
+        Mat4 proj = MatrixIO.parseTransformStack( blob.slice( "proj" ) );
+        Mat4 ret  = new Mat4();
+        Mat.mult( proj, view, ret );
+        if( !Mat.invert( ret, ret ) ) {
+            throw new IOException( "Camera matrix is not invertible: " + file.getPath() );
+        }
+        return ret;
+    }
+
+    /**
+     * Unprojects rows of a depth buffer.
+     *
+     * @param depth  Window-space depth values, rows ordered bottom-up as read from GL.
+     * @param w      Width of depth buffer.
+     * @param h      Height of depth buffer.
+     * @param inv    Inverse of projection * view matrix.
+     * @param row0   First row to convert.
+     * @param row1   End of rows to convert.
+     * @param out    Receives little-endian x, y, z floats. Must have room for every pixel in rows.
+     * @return number of points written.
+     */
+    public static int unproject( FloatBuffer depth, int w, int h, Mat4 inv, int row0, int row1, ByteBuffer out ) {
+        final float sx = 2f / w;
+        final float sy = 2f / h;
+        final int base = depth.position();
+        int count = 0;
+
+        for( int y = row0; y < row1; y++ ) {
+            final float ny = ( y + 0.5f ) * sy - 1f;
+            final int row  = base + y * w;
+
+            // Terms that are constant along row.
+            final float ax = inv.m01 * ny + inv.m03;
+            final float ay = inv.m11 * ny + inv.m13;
+            final float az = inv.m21 * ny + inv.m23;
+            final float aw = inv.m31 * ny + inv.m33;
+
+            for( int x = 0; x < w; x++ ) {
+                float d = depth.get( row + x );
+                if( !( d < 1f ) ) {
+                    continue;
+                }
+
+                float nx = ( x + 0.5f ) * sx - 1f;
+                float nz = d * 2f - 1f;
+                float pw = inv.m30 * nx + inv.m32 * nz + aw;
+                if( pw == 0f ) {
+                    continue;
+                }
+
+                float r = 1f / pw;
+                out.putFloat( ( inv.m00 * nx + inv.m02 * nz + ax ) * r );
+                out.putFloat( ( inv.m10 * nx + inv.m12 * nz + ay ) * r );
+                out.putFloat( ( inv.m20 * nx + inv.m22 * nz + az ) * r );
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+
+    private final ForkJoinPool mPool;
+    private final int mWindow;
+    private final long mMaxBytes;
+
+
+    /**
+     * @param threads Number of worker threads, or 0 for one per processor.
+     *                At most twice this many frames are held in memory at once.
+     */
+    public PointCloudConverter( int threads ) {
+        this( threads, DEFAULT_MAX_BUFFERED_BYTES );
+    }
+
+    /**
+     * @param threads          Number of worker threads, or 0 for one per processor.
+     *                         At most twice this many frames are held in memory at once.
+     * @param maxBufferedBytes Approximate limit on depth and point data held at once.
+     *                         At least one frame is always held.
+     */
+    public PointCloudConverter( int threads, long maxBufferedBytes ) {
+        if( threads <= 0 ) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        mPool     = new ForkJoinPool( threads );
+        mWindow   = threads * 2;
+        mMaxBytes = Math.max( 1, maxBufferedBytes );
+    }
+
+
+    /**
+     * @param depthFiles     Depth files, in output order.
+     * @param optDefaultCam  Camera file for frames without their own. May be null if every frame has one.
+     * @param outFile        File to write.
+     * @param format         FORMAT_PLY or FORMAT_XYZ.
+     * @return number of points written.
+     */
+    public long convert( List<File> depthFiles, File optDefaultCam, File outFile, int format ) throws IOException {
+        Mat4 defaultInv = optDefaultCam == null ? null : readInverseViewProj( optDefaultCam );
+        RandomAccessFile raf = new RandomAccessFile( outFile, "rw" );
+        raf.setLength( 0 );
+
+        try {
+            FileChannel chan = raf.getChannel();
+            long headerCountPos = -1;
+            if( format == FORMAT_PLY ) {
+                String pre  = "ply\nformat binary_little_endian 1.0\nelement vertex ";
+                String post = "\nproperty float x\nproperty float y\nproperty float z\nend_header\n";
+                headerCountPos = pre.length();
+                writeFully( chan, ByteBuffer.wrap( ( pre + plyCount( 0 ) + post ).getBytes( "US-ASCII" ) ) );
+            }
+
+            Deque<Future<Frame>> window = new ArrayDeque<Future<Frame>>();
+            Iterator<File> iter = depthFiles.iterator();
+            long total = 0;
+            long frameBytes = 0;
+
+            while( iter.hasNext() || !window.isEmpty() ) {
+                int limit = mWindow;
+                if( frameBytes > 0 ) {
+                    limit = (int)Math.max( 1, Math.min( limit, mMaxBytes / frameBytes ) );
+                }
+                while( iter.hasNext() && window.size() < limit ) {
+                    window.addLast( mPool.submit( new FrameTask( iter.next(), defaultInv ) ) );
+                }
+
+                Frame frame = get( window.removeFirst() );
+                frameBytes = Math.max( frameBytes, frame.mBytes );
+                for( ByteBuffer b: frame.mBands ) {
+                    total += b.remaining() / POINT_BYTES;
+                    writeFully( chan, b );
+                }
+            }
+
+            if( format == FORMAT_PLY ) {
+                ByteBuffer count = ByteBuffer.wrap( plyCount( total ).getBytes( "US-ASCII" ) );
+                while( count.hasRemaining() ) {
+                    chan.write( count, headerCountPos + count.position() );
+                }
+            }
+
+            return total;
+
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+
+
+    private static String plyCount( long n ) {
+        // Fixed width so count can be patched in place.
+        return String.format( "%015d", n );
+    }
+
+
+    private static Frame get( Future<Frame> f ) throws IOException {
+        try {
+            return f.get();
+        } catch( InterruptedException ex ) {
+            throw new InterruptedIOException();
+        } catch( ExecutionException ex ) {
+            Throwable t = ex.getCause();
+            if( t instanceof RuntimeException && t.getCause() instanceof IOException ) {
+                t = t.getCause();
+            }
+            if( t instanceof IOException ) {
+                throw (IOException)t;
+            }
+            throw new IOException( t );
+        }
+    }
+
+
+    private static void writeFully( FileChannel chan, ByteBuffer buf ) throws IOException {
+        while( buf.hasRemaining() ) {
+            if( chan.write( buf ) <= 0 ) {
+                throw new IOException( "Write failed." );
+            }
+        }
+    }
+
+
+    private static final class Frame {
+        final List<ByteBuffer> mBands;
+        // Memory used to produce frame: depth buffer plus points.
+        final long mBytes;
+
+        Frame( List<ByteBuffer> bands, long bytes ) {
+            mBands = bands;
+            mBytes = bytes;
+        }
+    }
+
+
+    @SuppressWarnings( "serial" )
+    private static final class FrameTask extends RecursiveTask<Frame> {
+
+        private final File mFile;
+        private final Mat4 mDefaultInv;
+
+        FrameTask( File file, Mat4 defaultInv ) {
+            mFile       = file;
+            mDefaultInv = defaultInv;
+        }
+
+        @Override
+        protected Frame compute() {
+            try {
+                Mat4 inv = mDefaultInv;
+                File cam = new File( mFile.getParentFile(), mFile.getName().replaceFirst( "\\.[^.]*$", "" ) + ".yaml" );
+                if( cam.exists() ) {
+                    inv = readInverseViewProj( cam );
+                } else if( inv == null ) {
+                    throw new IOException( "No camera for " + mFile.getPath() );
+                }
+
+                int[] size = new int[2];
+                FloatBuffer depth = DepthFiles.readDepthBuffer( mFile, size, null );
+                int w = size[0];
+                int h = size[1];
+
+                int bandRows = Math.max( 1, MIN_BAND_PIXELS / Math.max( 1, w ) );
+                List<BandTask> bands = new ArrayList<BandTask>();
+                for( int y = 0; y < h; y += bandRows ) {
+                    bands.add( new BandTask( depth, w, h, inv, y, Math.min( h, y + bandRows ) ) );
+                }
+                invokeAll( bands );
+
+                List<ByteBuffer> ret = new ArrayList<ByteBuffer>( bands.size() );
+                long bytes = (long)w * h * 4;
+                for( BandTask b: bands ) {
+                    ByteBuffer pts = b.join();
+                    bytes += pts.remaining();
+                    ret.add( pts );
+                }
+                return new Frame( ret, bytes );
+
+            } catch( IOException ex ) {
+                throw new RuntimeException( ex );
+            }
+        }
+    }
+
+
+    @SuppressWarnings( "serial" )
+    private static final class BandTask extends RecursiveTask<ByteBuffer> {
+
+        private final FloatBuffer mDepth;
+        private final int mWidth;
+        private final int mHeight;
+        private final Mat4 mInv;
+        private final int mRow0;
+        private final int mRow1;
+
+        BandTask( FloatBuffer depth, int w, int h, Mat4 inv, int row0, int row1 ) {
+            mDepth  = depth;
+            mWidth  = w;
+            mHeight = h;
+            mInv    = inv;
+            mRow0   = row0;
+            mRow1   = row1;
+        }
+
+        @Override
+        protected ByteBuffer compute() {
+            int cap = mWidth * ( mRow1 - mRow0 ) * POINT_BYTES;
+            ByteBuffer scratch = SCRATCH.get();
+            if( scratch == null || scratch.capacity() < cap ) {
+                scratch = ByteBuffer.allocate( cap ).order( ByteOrder.LITTLE_ENDIAN );
+                SCRATCH.set( scratch );
+            }
+
+            scratch.clear();
+            unproject( mDepth, mWidth, mHeight, mInv, mRow0, mRow1, scratch );
+            scratch.flip();
+
+            // Keep only points written. Most bands are partly empty.
+            ByteBuffer out = ByteBuffer.allocate( scratch.remaining() );
+            out.put( scratch ).flip();
+            return out;
+        }
+    }
+
+}
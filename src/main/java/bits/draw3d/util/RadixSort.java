@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import bits.draw3d.actors.DepthSortable;
+
+
+/**
+ * LSD radix sort over primitive keys. Keys are sorted together with an
+ * int value array, which is normally used to hold source indices, so that
+ * an object array only needs to be permuted once after the keys are ordered.
+ * <p>
+ * Like TimSort, this sort is stable and each instance holds reusable work
+ * arrays, so all calls on a given instance are synchronized.
+ *
+ * @author decamp
+ */
+public class RadixSort {
+
+    private static RadixSort sDefault = null;
+
+
+    public static synchronized RadixSort defaultInstance() {
+        if( sDefault == null ) {
+            sDefault = new RadixSort();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Converts a float into an int key with the same ordering under signed
+     * integer comparison. Negative zero is mapped onto positive zero so that
+     * the two compare equal, as they do with float comparison.
+     */
+    public static int floatKey( float v ) {
+        int bits = Float.floatToRawIntBits( v + 0.0f );
+        return bits >= 0 ? bits : bits ^ 0x7FFFFFFF;
+    }
+
+
+    /**
+     * Builds a composite key that orders first by <tt>stateId</tt>, treated
+     * as unsigned, and then by depth. Intended for use with
+     * <tt>sort( long[], int[], int, int )</tt>.
+     *
+     * @param stateId     Render state identifier, placed in the high 32 bits.
+     * @param depth       Normalized depth, placed in the low 32 bits.
+     * @param backToFront If true, depth is ordered descending. Otherwise, ascending.
+     */
+    public static long stateDepthKey( int stateId, float depth, boolean backToFront ) {
+        int k = floatKey( depth );
+        if( backToFront ) {
+            k = ~k;
+        }
+        return (long)stateId << 32 | ( ( k ^ 0x80000000 ) & 0xFFFFFFFFL );
+    }
+
+
+    private static final int BITS  = 11;
+    private static final int RADIX = 1 << BITS;
+    private static final int MASK  = RADIX - 1;
+
+
+    private final int[] mCounts = new int[RADIX];
+
+    private long[]   mLongWork = new long[0];
+    private int[]    mKeys     = new int[0];
+    private int[]    mKeysWork = new int[0];
+    private int[]    mVals     = new int[0];
+    private int[]    mValsWork = new int[0];
+    private Object[] mObjWork  = new Object[0];
+
+
+    public RadixSort() {}
+
+
+    /**
+     * Sorts an array of DepthSortable objects by <tt>normDepth()</tt>.
+     * Produces the same order as TimSort with
+     * <tt>DepthSortable.BACK_TO_FRONT_ORDER</tt> or
+     * <tt>DepthSortable.FRONT_TO_BACK_ORDER</tt>.
+     *
+     * @param a           Array to sort.
+     * @param lo          Inclusive start of range to sort.
+     * @param hi          Exclusive end of range to sort.
+     * @param backToFront If true, sorts by descending depth. Otherwise, by ascending depth.
+     */
+    public synchronized void sortByDepth( DepthSortable[] a, int lo, int hi, boolean backToFront ) {
+        sortByDepth( a, lo, hi, backToFront, null );
+    }
+
+    /**
+     * Like <tt>sortByDepth( a, lo, hi, backToFront )</tt>, but also applies
+     * the same reordering to <tt>optCarry[lo ... hi-1]</tt>.
+     */
+    public synchronized void sortByDepth( DepthSortable[] a, int lo, int hi, boolean backToFront, int[] optCarry ) {
+        final int len = hi - lo;
+        if( len < 2 ) {
+            return;
+        }
+
+        ensureCapacity( len );
+        final int[] keys = mKeys;
+        final int[] vals = mVals;
+
+        if( backToFront ) {
+            for( int i = 0; i < len; i++ ) {
+                keys[i] = ~floatKey( a[lo + i].normDepth() );
+                vals[i] = i;
+            }
+        } else {
+            for( int i = 0; i < len; i++ ) {
+                keys[i] = floatKey( a[lo + i].normDepth() );
+                vals[i] = i;
+            }
+        }
+
+        sort( keys, vals, 0, len );
+        permute( a, lo, vals, 0, len );
+        if( optCarry != null ) {
+            permute( optCarry, lo, vals, 0, len );
+        }
+    }
+
+    /**
+     * Sorts keys in ascending, signed order. Each swap made to <tt>keys</tt>
+     * is also made to <tt>vals</tt>.
+     *
+     * @param keys Keys to sort.
+     * @param vals Values associated with each key.
+     * @param off  Offset into both arrays.
+     * @param len  Number of elements to sort.
+     */
+    public synchronized void sort( int[] keys, int[] vals, int off, int len ) {
+        if( len < 2 ) {
+            return;
+        }
+
+        ensureWorkCapacity( len );
+        final int[] counts = mCounts;
+
+        int[] srcKeys = keys;
+        int[] srcVals = vals;
+        int srcOff    = off;
+        int[] dstKeys = mKeysWork;
+        int[] dstVals = mValsWork;
+        int dstOff    = 0;
+
+        for( int shift = 0; shift < 32; shift += BITS ) {
+            // Flip the sign bit on the top digit to get signed order.
+            final int flip = shift + BITS >= 32 ? 1 << ( 31 - shift ) : 0;
+            java.util.Arrays.fill( counts, 0 );
+
+            for( int i = 0; i < len; i++ ) {
+                counts[ ( ( srcKeys[srcOff + i] >>> shift ) & MASK ) ^ flip ]++;
+            }
+
+            // Skip digits that are the same for every key.
+            if( counts[ ( ( srcKeys[srcOff] >>> shift ) & MASK ) ^ flip ] == len ) {
+                continue;
+            }
+
+            int sum = 0;
+            for( int i = 0; i < RADIX; i++ ) {
+                int c = counts[i];
+                counts[i] = sum;
+                sum += c;
+            }
+
+            for( int i = 0; i < len; i++ ) {
+                int k = srcKeys[srcOff + i];
+                int p = dstOff + counts[ ( ( k >>> shift ) & MASK ) ^ flip ]++;
+                dstKeys[p] = k;
+                dstVals[p] = srcVals[srcOff + i];
+            }
+
+            int[] t = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = t;
+            t = srcVals;
+            srcVals = dstVals;
+            dstVals = t;
+            int o = srcOff;
+            srcOff = dstOff;
+            dstOff = o;
+        }
+
+        if( srcKeys != keys ) {
+            System.arraycopy( srcKeys, srcOff, keys, off, len );
+            System.arraycopy( srcVals, srcOff, vals, off, len );
+        }
+    }
+
+    /**
+     * Sorts keys in ascending, <em>unsigned</em> order. Each swap made to
+     * <tt>keys</tt> is also made to <tt>vals</tt>.
+     *
+     * @param keys Keys to sort.
+     * @param vals Values associated with each key.
+     * @param off  Offset into both arrays.
+     * @param len  Number of elements to sort.
+     */
+    public synchronized void sort( long[] keys, int[] vals, int off, int len ) {
+        if( len < 2 ) {
+            return;
+        }
+
+        if( mLongWork.length < len ) {
+            mLongWork = new long[ Math.max( len, mLongWork.length * 2 ) ];
+        }
+        ensureWorkCapacity( len );
+        final int[] counts = mCounts;
+
+        long[] srcKeys = keys;
+        int[] srcVals  = vals;
+        int srcOff     = off;
+        long[] dstKeys = mLongWork;
+        int[] dstVals  = mValsWork;
+        int dstOff     = 0;
+
+        for( int shift = 0; shift < 64; shift += BITS ) {
+            java.util.Arrays.fill( counts, 0 );
+
+            for( int i = 0; i < len; i++ ) {
+                counts[ (int)( srcKeys[srcOff + i] >>> shift ) & MASK ]++;
+            }
+
+            if( counts[ (int)( srcKeys[srcOff] >>> shift ) & MASK ] == len ) {
+                continue;
+            }
+
+            int sum = 0;
+            for( int i = 0; i < RADIX; i++ ) {
+                int c = counts[i];
+                counts[i] = sum;
+                sum += c;
+            }
+
+            for( int i = 0; i < len; i++ ) {
+                long k = srcKeys[srcOff + i];
+                int p = dstOff + counts[ (int)( k >>> shift ) & MASK ]++;
+                dstKeys[p] = k;
+                dstVals[p] = srcVals[srcOff + i];
+            }
+
+            long[] tk = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = tk;
+            int[] tv = srcVals;
+            srcVals = dstVals;
+            dstVals = tv;
+            int o = srcOff;
+            srcOff = dstOff;
+            dstOff = o;
+        }
+
+        if( srcKeys != keys ) {
+            System.arraycopy( srcKeys, srcOff, keys, off, len );
+            System.arraycopy( srcVals, srcOff, vals, off, len );
+        }
+    }
+
+    /**
+     * Reorders an array such that <tt>a[lo + i] = old_a[lo + idx[idxOff + i]]</tt>.
+     *
+     * @param a      Array to reorder.
+     * @param lo     Start of range to reorder.
+     * @param idx    Permutation, relative to <tt>lo</tt>.
+     * @param idxOff Offset into <tt>idx</tt>.
+     * @param len    Number of elements to reorder.
+     */
+    public synchronized void permute( Object[] a, int lo, int[] idx, int idxOff, int len ) {
+        if( mObjWork.length < len ) {
+            mObjWork = new Object[ Math.max( len, mObjWork.length * 2 ) ];
+        }
+
+        final Object[] work = mObjWork;
+        System.arraycopy( a, lo, work, 0, len );
+
+        for( int i = 0; i < len; i++ ) {
+            a[lo + i] = work[ idx[idxOff + i] ];
+        }
+
+        // Don't hold references to sorted objects.
+        java.util.Arrays.fill( work, 0, len, null );
+    }
+
+    /**
+     * Reorders an int array such that <tt>a[lo + i] = old_a[lo + idx[idxOff + i]]</tt>.
+     */
+    public synchronized void permute( int[] a, int lo, int[] idx, int idxOff, int len ) {
+        ensureWorkCapacity( len );
+        final int[] work = mKeysWork;
+        System.arraycopy( a, lo, work, 0, len );
+
+        for( int i = 0; i < len; i++ ) {
+            a[lo + i] = work[ idx[idxOff + i] ];
+        }
+    }
+
+
+
+    private void ensureCapacity( int len ) {
+        if( mKeys.length < len ) {
+            int cap = Math.max( len, mKeys.length * 2 );
+            mKeys = new int[cap];
+            mVals = new int[cap];
+        }
+    }
+
+
+    private void ensureWorkCapacity( int len ) {
+        if( mKeysWork.length < len ) {
+            int cap = Math.max( len, mKeysWork.length * 2 );
+            mKeysWork = new int[cap];
+            mValsWork = new int[cap];
+        }
+    }
+
+}
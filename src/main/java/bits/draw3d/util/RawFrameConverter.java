@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Converts a RawFrameLog into image files in parallel. RGBA frames are
+ * written as PNG files and depth frames as depth files, named by frame
+ * sequence number.
+ * <p>
+ * Usage: <tt>RawFrameConverter logFile outDir</tt>
+ *
+ * @author decamp
+ */
+public class RawFrameConverter {
+
+    public static void main( String[] args ) throws Exception {
+        if( args.length != 2 ) {
+            System.err.println( "Usage: RawFrameConverter <logFile> <outDir>" );
+            System.exit( 1 );
+        }
+
+        int n = convert( new File( args[0] ), new File( args[1] ), null );
+        System.out.println( "Converted " + n + " frames." );
+    }
+
+    /**
+     * @param logFile     Log to convert.
+     * @param outDir      Directory to receive files. Created if it does not exist.
+     * @param optExecutor Executor on which to encode frames. If null, a pool is created for the conversion.
+     * @return number of frames converted.
+     */
+    public static int convert( File logFile, File outDir, ExecutorService optExecutor ) throws IOException {
+        if( !outDir.exists() ) {
+            outDir.mkdirs();
+        }
+
+        List<RawFrameLog.Frame> frames = RawFrameLog.readFrames( logFile );
+        ExecutorService exec = optExecutor;
+        if( exec == null ) {
+            exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+        }
+
+        final ScreenshotSaver saver = new ScreenshotSaver();
+        final File dir = outDir;
+
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>( frames.size() );
+            for( final RawFrameLog.Frame f: frames ) {
+                futures.add( exec.submit( new Callable<Object>() {
+                    public Object call() throws IOException {
+                        convertFrame( saver, f, dir );
+                        return null;
+                    }
+                } ) );
+            }
+
+            for( Future<Object> f: futures ) {
+                f.get();
+            }
+
+        } catch( InterruptedException ex ) {
+            throw new InterruptedIOException();
+        } catch( ExecutionException ex ) {
+            Throwable t = ex.getCause();
+            if( t instanceof IOException ) {
+                throw (IOException)t;
+            }
+            throw new IOException( t );
+        } finally {
+            if( optExecutor == null ) {
+                exec.shutdown();
+            }
+        }
+
+        return frames.size();
+    }
+
+
+
+    private static void convertFrame( ScreenshotSaver saver, RawFrameLog.Frame f, File dir ) throws IOException {
+        ByteBuffer data = f.mData.duplicate();
+
+        if( f.mFormat == RawFrameLog.FORMAT_DEPTH ) {
+            File out = new File( dir, String.format( "%05d.depth", f.mSeq ) );
+            DirectBufferPool pool = saver.bufferPool();
+            ByteBuffer buf = pool.acquire( f.mWidth * f.mHeight * 4 + 1024 );
+            try {
+                ByteBuffer enc = saver.encodeDepth( data, f.mWidth, f.mHeight, buf );
+                enc.flip();
+                saver.saveBuffer( enc, out );
+            } finally {
+                pool.release( buf );
+            }
+        } else {
+            File out = new File( dir, String.format( "%05d.png", f.mSeq ) );
+            saver.savePng( data, f.mWidth, f.mHeight, out );
+        }
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+/**
+ * Preallocated, memory-mapped file of fixed-size frame slots, used to
+ * record raw frames faster than they can be encoded. Frames are read from
+ * GL directly into the mapping. Use RawFrameConverter to turn a log into
+ * image files afterward.
+ * <p>
+ * In ring mode, the oldest frames are overwritten once all slots are used.
+ * Otherwise, the log acts as an append log and frames are dropped once it
+ * is full.
+ * <p>
+ * File layout is a 64-byte file header followed by <tt>slotCount</tt>
+ * slots of <tt>slotSize</tt> bytes. Each slot holds a 32-byte frame header
+ * followed by frame data. A frame's magic number is cleared while it is being
+ * written and set when it is committed, so partly written frames are skipped
+ * when reading. All values are big-endian.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author decamp
+ */
+public class RawFrameLog implements Closeable {
+
+    public static final int FORMAT_RGBA  = 0;
+    public static final int FORMAT_DEPTH = 1;
+
+    static final int FILE_MAGIC   = 0x52464C47;
+    static final int FRAME_MAGIC  = 0x46524D45;
+    static final int VERSION      = 1;
+    static final int FILE_HEADER  = 64;
+    static final int FRAME_HEADER = 32;
+
+    private static final long MAX_SEGMENT = 1L << 30;
+
+
+    /**
+     * Creates a new log, replacing any existing file.
+     *
+     * @param file           File to create.
+     * @param slotCount      Number of frames the log can hold.
+     * @param maxFrameBytes  Largest frame, in bytes of pixel data.
+     * @param ring           If true, oldest frames are overwritten when the log is full.
+     */
+    public static RawFrameLog create( File file, int slotCount, int maxFrameBytes, boolean ring ) throws IOException {
+        long slotSize = ( FRAME_HEADER + (long)maxFrameBytes + 4095 ) & ~4095L;
+        if( slotSize > MAX_SEGMENT ) {
+            throw new IllegalArgumentException( "Frame size too large." );
+        }
+        return new RawFrameLog( file, slotCount, (int)slotSize, ring );
+    }
+
+
+
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChan;
+    private final MappedByteBuffer[] mSegments;
+    private final int mSlotsPerSegment;
+    private final int mSlotCount;
+    private final int mSlotSize;
+    private final boolean mRing;
+
+    private long mNextSeq = 0;
+    private int mOpenSlot = -1;
+    private int mOpenFormat;
+    private int mOpenWidth;
+    private int mOpenHeight;
+    private int mOpenLen;
+
+
+    private RawFrameLog( File file, int slotCount, int slotSize, boolean ring ) throws IOException {
+        mSlotCount = slotCount;
+        mSlotSize  = slotSize;
+        mRing      = ring;
+
+        file.delete();
+        mRaf  = new RandomAccessFile( file, "rw" );
+        mChan = mRaf.getChannel();
+        mRaf.setLength( FILE_HEADER + (long)slotCount * slotSize );
+
+        ByteBuffer head = ByteBuffer.allocate( FILE_HEADER );
+        head.putInt( FILE_MAGIC ).putInt( VERSION ).putInt( slotCount ).putInt( slotSize ).putInt( ring ? 1 : 0 );
+        head.clear();
+        mChan.write( head, 0 );
+
+        mSlotsPerSegment = (int)Math.max( 1, MAX_SEGMENT / slotSize );
+        int segCount = ( slotCount + mSlotsPerSegment - 1 ) / mSlotsPerSegment;
+        mSegments = new MappedByteBuffer[segCount];
+        for( int i = 0; i < segCount; i++ ) {
+            int slots = Math.min( mSlotsPerSegment, slotCount - i * mSlotsPerSegment );
+            mSegments[i] = mChan.map( FileChannel.MapMode.READ_WRITE,
+                                      FILE_HEADER + (long)i * mSlotsPerSegment * slotSize,
+                                      (long)slots * slotSize );
+        }
+    }
+
+
+
+    public int slotCount() {
+        return mSlotCount;
+    }
+
+
+    public int maxFrameBytes() {
+        return mSlotSize - FRAME_HEADER;
+    }
+
+    /**
+     * @return number of frames committed so far, including any that have been overwritten.
+     */
+    public long frameCount() {
+        return mNextSeq;
+    }
+
+
+    public boolean isFull() {
+        return !mRing && mNextSeq >= mSlotCount;
+    }
+
+    /**
+     * Starts a frame.
+     *
+     * @return buffer into which to write frame data, with exactly <tt>w * h * 4</tt> bytes remaining,
+     *         or null if the log is full.
+     */
+    public ByteBuffer beginFrame( int format, int w, int h ) {
+        if( mOpenSlot >= 0 ) {
+            throw new IllegalStateException( "Previous frame not committed." );
+        }
+
+        int len = w * h * 4;
+        if( len > maxFrameBytes() ) {
+            throw new IllegalArgumentException( "Frame exceeds slot size." );
+        }
+        if( isFull() ) {
+            return null;
+        }
+
+        int slot = (int)( mNextSeq % mSlotCount );
+        ByteBuffer seg = mSegments[ slot / mSlotsPerSegment ];
+        int off = ( slot % mSlotsPerSegment ) * mSlotSize;
+
+        // Invalidate slot until frame is committed.
+        seg.putInt( off, 0 );
+
+        mOpenSlot   = slot;
+        mOpenFormat = format;
+        mOpenWidth  = w;
+        mOpenHeight = h;
+        mOpenLen    = len;
+
+        ByteBuffer ret = seg.duplicate();
+        ret.limit( off + FRAME_HEADER + len ).position( off + FRAME_HEADER );
+        return ret.slice().order( ByteOrder.nativeOrder() );
+    }
+
+    /**
+     * Marks frame started with <tt>beginFrame()</tt> as complete.
+     *
+     * @return sequence number of frame.
+     */
+    public long commitFrame() {
+        if( mOpenSlot < 0 ) {
+            throw new IllegalStateException( "No frame to commit." );
+        }
+
+        int slot = mOpenSlot;
+        ByteBuffer seg = mSegments[ slot / mSlotsPerSegment ];
+        int off = ( slot % mSlotsPerSegment ) * mSlotSize;
+        long seq = mNextSeq++;
+
+        seg.putInt(  off +  4, mOpenFormat );
+        seg.putInt(  off +  8, mOpenWidth );
+        seg.putInt(  off + 12, mOpenHeight );
+        seg.putLong( off + 16, seq );
+        seg.putInt(  off + 24, mOpenLen );
+        seg.putInt(  off, FRAME_MAGIC );
+
+        mOpenSlot = -1;
+        return seq;
+    }
+
+    /**
+     * Discards frame started with <tt>beginFrame()</tt>.
+     */
+    public void abortFrame() {
+        mOpenSlot = -1;
+    }
+
+
+    public void close() throws IOException {
+        mOpenSlot = -1;
+        for( MappedByteBuffer b: mSegments ) {
+            b.force();
+        }
+        mChan.close();
+        mRaf.close();
+    }
+
+
+    /**
+     * Frame stored in a log.
+     */
+    public static final class Frame {
+        public final long mSeq;
+        public final int mFormat;
+        public final int mWidth;
+        public final int mHeight;
+        /**
+         * Frame data, read-only and in native byte order.
+         */
+        public final ByteBuffer mData;
+
+        Frame( long seq, int format, int w, int h, ByteBuffer data ) {
+            mSeq    = seq;
+            mFormat = format;
+            mWidth  = w;
+            mHeight = h;
+            mData   = data;
+        }
+    }
+
+    /**
+     * Maps a log file for reading.
+     *
+     * @return committed frames in the log, in order of sequence number.
+     *         Frames remain valid after the file channel is closed.
+     */
+    public static List<Frame> readFrames( File file ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try {
+            FileChannel chan = raf.getChannel();
+            ByteBuffer head = ByteBuffer.allocate( FILE_HEADER );
+            chan.read( head, 0 );
+            head.flip();
+
+            if( head.getInt() != FILE_MAGIC ) {
+                throw new IOException( "Not a raw frame log: " + file.getPath() );
+            }
+            if( head.getInt() != VERSION ) {
+                throw new IOException( "Unsupported raw frame log version." );
+            }
+
+            int slotCount = head.getInt();
+            int slotSize  = head.getInt();
+            int perSeg    = (int)Math.max( 1, MAX_SEGMENT / slotSize );
+            List<Frame> ret = new ArrayList<Frame>();
+
+            for( int s = 0; s < slotCount; s += perSeg ) {
+                int slots = Math.min( perSeg, slotCount - s );
+                MappedByteBuffer seg = chan.map( FileChannel.MapMode.READ_ONLY,
+                                                 FILE_HEADER + (long)s * slotSize,
+                                                 (long)slots * slotSize );
+
+                for( int i = 0; i < slots; i++ ) {
+                    int off = i * slotSize;
+                    if( seg.getInt( off ) != FRAME_MAGIC ) {
+                        continue;
+                    }
+                    int format = seg.getInt( off + 4 );
+                    int w      = seg.getInt( off + 8 );
+                    int h      = seg.getInt( off + 12 );
+                    long seq   = seg.getLong( off + 16 );
+                    int len    = seg.getInt( off + 24 );
+
+                    ByteBuffer data = seg.duplicate();
+                    data.limit( off + FRAME_HEADER + len ).position( off + FRAME_HEADER );
+                    ret.add( new Frame( seq, format, w, h, data.slice().order( ByteOrder.nativeOrder() ) ) );
+                }
+            }
+
+            Collections.sort( ret, new Comparator<Frame>() {
+                public int compare( Frame a, Frame b ) {
+                    return a.mSeq < b.mSeq ? -1 : a.mSeq > b.mSeq ? 1 : 0;
+                }
+            } );
+            return ret;
+
+        } finally {
+            raf.close();
+        }
+    }
+
+}
@@ -7,6 +7,8 @@
 package bits.draw3d.util;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
 import bits.draw3d.DrawEnv;
 import bits.draw3d.actors.DepthSortable;
 import bits.math3d.*;
@@ -18,6 +20,37 @@ public class RenderList<T> {
     
     public static final boolean BACK_TO_FRONT = true;
     public static final boolean FRONT_TO_BACK = false;
+
+    /**
+     * Sorts with TimSort and the list's Comparator.
+     */
+    public static final int SORT_COMPARATOR = 0;
+
+    /**
+     * Sorts DepthSortable items by copying their depths into a primitive key
+     * array and radix sorting. Gives the same order as SORT_COMPARATOR, but
+     * only applies to lists created with a sort order. Other lists fall back
+     * to SORT_COMPARATOR.
+     */
+    public static final int SORT_RADIX = 1;
+
+    /**
+     * Repairs the order from the previous sort with an insertion pass,
+     * which is cheap when items have moved only slightly since the last
+     * frame. If the pass makes too many moves, the list is treated as a
+     * sequence of sorted runs, as when a group of items moves together,
+     * and the runs are merged. If the runs are short, as after a large
+     * camera jump, the list falls back to a full sort.
+     */
+    public static final int SORT_INCREMENTAL = 2;
+    
+    /**
+     * Provides render state identifiers, such as a combined shader, texture
+     * and blend id, for lists created with <tt>createStateSorted()</tt>.
+     */
+    public static interface StateFunc<T> {
+        public int stateId( T item );
+    }
     
     
     public static <T> RenderList<T> create( Class<T> clazz, int capacity ) {
@@ -37,7 +70,7 @@ public class RenderList<T> {
         float cullValue = sortOrder == BACK_TO_FRONT ?
                           Float.NEGATIVE_INFINITY:
                           Float.POSITIVE_INFINITY;
-        return new RenderList<T>( clazz, capacity, comp, cullVolume, cullValue );
+        return new RenderList<T>( clazz, capacity, comp, cullVolume, cullValue, sortOrder ? ORDER_BACK_TO_FRONT : ORDER_FRONT_TO_BACK, null );
     }
     
     
@@ -45,7 +78,7 @@ public class RenderList<T> {
                                             int capacity,
                                             Comparator<? super T> comp )
     {
-        return new RenderList<T>( clazz, capacity, comp, null, Float.NaN );
+        return new RenderList<T>( clazz, capacity, comp, null, Float.NaN, ORDER_CUSTOM, null );
     }
     
     
@@ -55,12 +88,59 @@ public class RenderList<T> {
                                             Volume cullBounds,
                                             float cullValue )
     {
-        return new RenderList<T>( clazz, capacity,comp, cullBounds, cullValue );
+        return new RenderList<T>( clazz, capacity,comp, cullBounds, cullValue, ORDER_CUSTOM, null );
+    }
+    
+    /**
+     * Creates a list that groups items by render state, then orders items
+     * within each group by depth. Sorting uses 64-bit keys holding the state
+     * id in the high bits and depth in the low bits, so items are ordered by
+     * ascending, unsigned state id. After sorting, groups of items sharing a
+     * state can be retrieved with <tt>groupCount()</tt>, <tt>groupStart()</tt>
+     * and <tt>groupStop()</tt>, allowing a draw node to bind each state once.
+     * State-sorted lists always radix sort and ignore <tt>sortMode()</tt>.
+     * 
+     * @param clazz      Item class. If not DepthSortable, items are grouped by state only.
+     * @param capacity   Initial capacity.
+     * @param stateFunc  Provides state id of each item.
+     * @param sortOrder  Depth order within each group: BACK_TO_FRONT or FRONT_TO_BACK.
+     * @param cullVolume Optional normalized cull volume.
+     */
+    @SuppressWarnings( "rawtypes" )
+    public static <T> RenderList<T> createStateSorted( Class<T> clazz,
+                                                       int capacity,
+                                                       StateFunc<? super T> stateFunc,
+                                                       boolean sortOrder,
+                                                       Volume cullVolume )
+    {
+        Comparator comp  = sortOrder == BACK_TO_FRONT ?
+                           DepthSortable.BACK_TO_FRONT_ORDER :
+                           DepthSortable.FRONT_TO_BACK_ORDER;
+        float cullValue = sortOrder == BACK_TO_FRONT ?
+                          Float.NEGATIVE_INFINITY:
+                          Float.POSITIVE_INFINITY;
+        return new RenderList<T>( clazz,
+                                  capacity,
+                                  comp,
+                                  cullVolume,
+                                  cullValue,
+                                  sortOrder ? ORDER_BACK_TO_FRONT : ORDER_FRONT_TO_BACK,
+                                  stateFunc );
     }
     
     
     
     private static final TimSort SORTER = TimSort.defaultInstance();
+
+    private static final int ORDER_CUSTOM        = 0;
+    private static final int ORDER_BACK_TO_FRONT = 1;
+    private static final int ORDER_FRONT_TO_BACK = 2;
+
+    // Incremental sorts stop inserting after this many moves per item.
+    private static final int INCREMENTAL_MOVES_PER_ITEM = 16;
+    // Incremental sorts then merge sorted runs if runs average at least this length,
+    // otherwise fall back to full sorts.
+    private static final int MIN_MERGE_RUN = 32;
     
     public T[] mArr;
     public int mSize;
@@ -77,13 +157,60 @@ public class RenderList<T> {
     private final Comparator<? super T> mComp; 
 
     private final boolean mDepthSortable;
+    private final int mOrder;
+    private final StateFunc<? super T> mStateFunc;
+
+    private int mSortMode = SORT_COMPARATOR;
+    private RadixSort mRadix = null;
+    private long mInversions = -1;
+    private int[] mKeys = null;
+    private int[] mIdx  = null;
+    private int[] mRuns = new int[16];
+    private int[] mMergeKeys = null;
+    private int[] mMergeIdx  = null;
+    private T[] mMergeArr    = null;
+    private int[] mMergeHandles = null;
+    
+    private long[] mStateKeys   = null;
+    private int[] mGroupStarts = new int[2];
+    private int[] mGroupStates = new int[1];
+    private int mGroupCount    = 0;
+
+    private ForkJoinPool mPool = null;
+    private int mMinParallel = ParallelSortPositions.DEFAULT_MIN_PARALLEL;
+
+    private long mVersion = 0;
+    private boolean mSkipUnchanged = false;
+    private long mSortedVersion = -1;
+    private final Mat4 mSortedMat = new Mat4();
+    
+    // Handle of item at each index, parallel to mArr.
+    private int[] mHandleAt;
+    // Index of item for each handle, or -1 if handle is free.
+    private int[] mIndexOf     = new int[16];
+    private int[] mFreeHandles = new int[16];
+    private int mFreeCount     = 0;
+    private int mNextHandle    = 0;
+    // Whether any handle has been returned to a caller since last clear.
+    // Until then, handles need not stay attached to their items.
+    private boolean mHandlesIssued = false;
+    
+    private Integer[] mBoxedIdx = new Integer[0];
+    private Integer[] mBoxedWork = new Integer[0];
+    private final Comparator<Integer> mIndexComp = new Comparator<Integer>() {
+        public int compare( Integer a, Integer b ) {
+            return mComp.compare( mArr[a], mArr[b] );
+        }
+    };
     
         
     private RenderList( Class<T> clazz,
                         int capacity,
                         Comparator<? super T> comp,
                         Volume cullBounds,
-                        float cullValue )
+                        float cullValue,
+                        int order,
+                        StateFunc<? super T> stateFunc )
     {
         mClazz         = clazz;
         mArr           = (T[])java.lang.reflect.Array.newInstance( clazz, capacity );
@@ -91,16 +218,28 @@ public class RenderList<T> {
         mDepthSortable = comp != null && DepthSortable.class.isAssignableFrom( clazz );
         mCullBounds    = cullBounds;
         mCulledValue   = cullValue;
+        mOrder         = order;
+        mStateFunc     = stateFunc;
+        mHandleAt      = new int[capacity];
     }
     
     
     
-    public void add( T t ) {
+    /**
+     * Adds an item to the list.
+     * 
+     * @return handle that identifies the item until it is removed or the list is cleared.
+     */
+    public int add( T t ) {
         if( mSize == mArr.length ) {
             realloc( mSize + 1 );
         }
         
+        int h = allocHandle( mSize );
         mArr[mSize++] = t;
+        mVersion++;
+        mHandlesIssued = true;
+        return h;
     }
     
     
@@ -110,7 +249,11 @@ public class RenderList<T> {
         }
         
         System.arraycopy( arr, off, mArr, mSize, len );
+        for( int i = 0; i < len; i++ ) {
+            allocHandle( mSize + i );
+        }
         mSize += len;
+        mVersion++;
     }
     
     
@@ -121,8 +264,10 @@ public class RenderList<T> {
         }
         
         for( T item: items ) {
+            allocHandle( mSize );
             mArr[mSize++] = item;
         }
+        mVersion++;
     }
     
     
@@ -135,7 +280,7 @@ public class RenderList<T> {
     public boolean remove( T t ) {
         for( int i = 0; i < mSize; i++ ) {
             if( mArr[i] == t ) {
-                mArr[i] = mArr[--mSize];
+                removeAt( i );
                 return true;
             }
         }
@@ -148,12 +293,147 @@ public class RenderList<T> {
         if( idx >= mSize )
             throw new IndexOutOfBoundsException();
         
-        mArr[idx] = mArr[--mSize];
+        removeAt( idx );
     }
     
+    /**
+     * Removes an item by handle in constant time. The last item in the
+     * array is moved into the removed item's position.
+     * 
+     * @param handle Handle returned by <tt>add()</tt>.
+     * @return true if handle referred to an item in the list.
+     */
+    public boolean removeHandle( int handle ) {
+        if( handle < 0 || handle >= mNextHandle || mIndexOf[handle] < 0 ) {
+            return false;
+        }
+        
+        removeAt( mIndexOf[handle] );
+        return true;
+    }
     
+    /**
+     * Removes a batch of items by handle.
+     * 
+     * @return number of items removed.
+     */
+    public int removeAll( int[] handles, int off, int len ) {
+        int count = 0;
+        for( int i = 0; i < len; i++ ) {
+            if( removeHandle( handles[off + i] ) ) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * @return handle of item at given index in <tt>mArr</tt>.
+     */
+    public int handleAt( int idx ) {
+        if( idx >= mSize )
+            throw new IndexOutOfBoundsException();
+        
+        mHandlesIssued = true;
+        return mHandleAt[idx];
+    }
+    
+    /**
+     * @return current index of item in <tt>mArr</tt>, or -1 if handle is not in use.
+     */
+    public int indexOf( int handle ) {
+        if( handle < 0 || handle >= mNextHandle ) {
+            return -1;
+        }
+        return mIndexOf[handle];
+    }
+    
+    /**
+     * Removes all items. All outstanding handles become invalid and may
+     * be reassigned.
+     */
     public void clear() {
         mSize = 0;
+        mNextHandle = 0;
+        mFreeCount = 0;
+        mHandlesIssued = false;
+        mVersion++;
+    }
+    
+    /**
+     * @return counter that is incremented whenever items are added or removed.
+     */
+    public long version() {
+        return mVersion;
+    }
+    
+    /**
+     * Forces next call to <tt>updateSort()</tt> to sort the list. Call this
+     * after items move or after modifying <tt>mArr</tt> directly when
+     * <tt>skipUnchanged</tt> is enabled. Note that reordering <tt>mArr</tt>
+     * directly also invalidates item handles.
+     */
+    public void invalidate() {
+        mVersion++;
+    }
+    
+    /**
+     * When enabled, <tt>updateSort()</tt> does nothing if neither the
+     * model-to-normalized transform nor the set of items has changed since
+     * the last sort, and the previous order and render range are reused.
+     * The list cannot detect items that move on their own, so lists holding
+     * moving items must call <tt>invalidate()</tt> when they move.
+     * Disabled by default.
+     */
+    public void skipUnchanged( boolean enable ) {
+        mSkipUnchanged = enable;
+        mSortedVersion = -1;
+    }
+    
+    
+    public boolean skipUnchanged() {
+        return mSkipUnchanged;
+    }
+
+    /**
+     * @param mode SORT_COMPARATOR, SORT_RADIX or SORT_INCREMENTAL.
+     */
+    public void sortMode( int mode ) {
+        if( mode != SORT_COMPARATOR && mode != SORT_RADIX && mode != SORT_INCREMENTAL ) {
+            throw new IllegalArgumentException( "Invalid sort mode: " + mode );
+        }
+        mSortMode = mode;
+        mSortedVersion = -1;
+    }
+
+
+    public int sortMode() {
+        return mSortMode;
+    }
+
+    /**
+     * When using SORT_INCREMENTAL, returns the number of inversions
+     * repaired by the last call to <tt>updateSort()</tt>. This is the number
+     * of single-position moves made by the insertion pass, plus the number
+     * of items copied if sorted runs were merged.
+     *
+     * @return inversions fixed by last incremental sort, or -1 if the last sort was a full sort.
+     */
+    public long lastSortInversions() {
+        return mInversions;
+    }
+
+    /**
+     * Enables computation of normalized positions and cull tests across a
+     * ForkJoinPool. Lists with fewer than <tt>minParallel</tt> items are
+     * still updated serially.
+     *
+     * @param optPool     Pool to use, or null to disable parallel updates.
+     * @param minParallel Minimum list size to update in parallel.
+     */
+    public void parallelUpdate( ForkJoinPool optPool, int minParallel ) {
+        mPool        = optPool;
+        mMinParallel = minParallel;
     }
     
 
@@ -171,6 +451,14 @@ public class RenderList<T> {
     
     
     public void updateSort() {
+        if( mSkipUnchanged ) {
+            if( mSortedVersion == mVersion && mSortedMat.equals( mModelToNormMat ) ) {
+                return;
+            }
+            mSortedVersion = mVersion;
+            Mat.put( mModelToNormMat, mSortedMat );
+        }
+        
         mRenderStart = 0;
         mRenderStop  = mSize;
 
@@ -178,36 +466,21 @@ public class RenderList<T> {
             if( mComp == null ) {
                 return;
             }
-            SORTER.sort( mArr, 0, mSize, mComp );
+            sortRange( mSize );
+            updateHandleIndices();
             return;
         }
 
         DepthSortable[] darr = (DepthSortable[])mArr;
-        updateSortPositions( darr, 0, mSize, mModelToNormMat, mCullBounds, mCulledValue );    
-        SORTER.sort( mArr, 0, mSize, mComp );
+        ParallelSortPositions.update( mPool, mMinParallel, darr, 0, mSize, mModelToNormMat, mCullBounds, mCulledValue );
 
-        Volume cull = mCullBounds;
-        if( cull == null ) {
-            return;
-        }
-        
-        //Binary search for last remark not culled.
-        int i = 0;
-        int j = mSize;
-        
-        while( i < j ) {
-            int k = ( i + j ) / 2;
-            Vec3 pos = darr[k].normPosRef();
-            
-            // Check if not culled.
-            if( pos.z != mCulledValue ) {
-                i = k + 1;
-            } else {
-                j = k;
-            }
+        // Move unculled items to front and sort only those.
+        if( mCullBounds != null ) {
+            mRenderStop = partitionCulled( darr, 0, mSize, mCulledValue );
         }
 
-        mRenderStop  = i;
+        sortRange( mRenderStop );
+        updateHandleIndices();
     }
     
     
@@ -235,6 +508,36 @@ public class RenderList<T> {
         return mRenderStop;
     }
 
+    /**
+     * For lists created with <tt>createStateSorted()</tt>, returns the number
+     * of groups of adjacent, unculled items that share the same state id.
+     * Before <tt>sort</tt> is called, or for other lists, returns 0.
+     */
+    public int groupCount() {
+        return mGroupCount;
+    }
+    
+    /**
+     * @return inclusive start position of items in group.
+     */
+    public int groupStart( int group ) {
+        return mGroupStarts[group];
+    }
+    
+    /**
+     * @return exclusive stop position of items in group.
+     */
+    public int groupStop( int group ) {
+        return mGroupStarts[group + 1];
+    }
+    
+    /**
+     * @return state id shared by all items in group.
+     */
+    public int groupStateId( int group ) {
+        return mGroupStates[group];
+    }
+
     /**
      * Computes normalized positions of DepthSortable objects. 
      * 
@@ -261,11 +564,441 @@ public class RenderList<T> {
     }
     
     
+    private void sortRange( int stop ) {
+        mInversions = -1;
+        
+        if( mStateFunc != null ) {
+            stateSort( stop );
+            return;
+        }
+        
+        if( mSortMode == SORT_INCREMENTAL ) {
+            long n;
+            if( mDepthSortable && mOrder != ORDER_CUSTOM ) {
+                n = incrementalDepthSort( stop );
+            } else {
+                n = insertionSort( stop );
+            }
+            if( n >= 0 ) {
+                mInversions = n;
+                return;
+            }
+        }
+        
+        if( mSortMode != SORT_COMPARATOR && mDepthSortable && mOrder != ORDER_CUSTOM ) {
+            radix().sortByDepth( (DepthSortable[])mArr, 0, stop, mOrder == ORDER_BACK_TO_FRONT, mHandleAt );
+        } else {
+            comparatorSort( stop );
+        }
+    }
+    
+    /**
+     * Sorts with TimSort and the list comparator. If handles have been
+     * issued, sorting is performed on indices so the same permutation can be
+     * applied to handles. Otherwise, items are sorted directly.
+     */
+    private void comparatorSort( int len ) {
+        if( len < 2 ) {
+            return;
+        }
+        
+        if( !mHandlesIssued ) {
+            // Handles stay a valid permutation, just not tied to items.
+            SORTER.sort( mArr, 0, len, mComp );
+            return;
+        }
+        
+        if( mBoxedIdx.length < len ) {
+            int cap = Math.max( len, mArr.length );
+            mBoxedIdx  = new Integer[cap];
+            mBoxedWork = new Integer[cap];
+            for( int i = 0; i < cap; i++ ) {
+                mBoxedIdx[i] = i;
+            }
+        }
+        if( mIdx == null || mIdx.length < len ) {
+            mIdx = new int[ Math.max( len, mArr.length ) ];
+        }
+        
+        final Integer[] work = mBoxedWork;
+        final int[] idx = mIdx;
+        System.arraycopy( mBoxedIdx, 0, work, 0, len );
+        SORTER.sort( work, 0, len, mIndexComp );
+        
+        for( int i = 0; i < len; i++ ) {
+            idx[i] = work[i];
+        }
+        
+        RadixSort radix = radix();
+        radix.permute( mArr, 0, idx, 0, len );
+        radix.permute( mHandleAt, 0, idx, 0, len );
+    }
+    
+    private void stateSort( int len ) {
+        if( mStateKeys == null || mStateKeys.length < len ) {
+            int cap = Math.max( len, mArr.length );
+            mStateKeys = new long[cap];
+            mIdx       = new int[cap];
+        }
+        
+        final T[] arr       = mArr;
+        final long[] keys   = mStateKeys;
+        final int[] idx     = mIdx;
+        final boolean back  = mOrder == ORDER_BACK_TO_FRONT;
+        final StateFunc<? super T> func = mStateFunc;
+        
+        for( int i = 0; i < len; i++ ) {
+            T item = arr[i];
+            float depth = mDepthSortable ? ((DepthSortable)item).normDepth() : 0f;
+            keys[i] = RadixSort.stateDepthKey( func.stateId( item ), depth, back );
+            idx[i]  = i;
+        }
+        
+        RadixSort radix = radix();
+        radix.sort( keys, idx, 0, len );
+        radix.permute( arr, 0, idx, 0, len );
+        radix.permute( mHandleAt, 0, idx, 0, len );
+        
+        // Find group boundaries.
+        int count = 0;
+        for( int i = 0; i < len; i++ ) {
+            int state = (int)( keys[i] >>> 32 );
+            if( i == 0 || state != mGroupStates[count - 1] ) {
+                if( count + 1 >= mGroupStarts.length ) {
+                    mGroupStarts = Arrays.copyOf( mGroupStarts, mGroupStarts.length * 2 );
+                    mGroupStates = Arrays.copyOf( mGroupStates, mGroupStarts.length );
+                }
+                mGroupStarts[count] = i;
+                mGroupStates[count] = state;
+                count++;
+            }
+        }
+        
+        mGroupStarts[count] = len;
+        mGroupCount = count;
+    }
+    
+    /**
+     * Repairs order of DepthSortable items with an insertion pass over a
+     * primitive copy of their depths, followed by a run merge if the pass
+     * runs over budget. Items are only permuted if the sort completes.
+     * 
+     * @return number of moves made, or -1 if the sort was abandoned.
+     */
+    private long incrementalDepthSort( int len ) {
+        if( mKeys == null || mKeys.length < len ) {
+            int cap = Math.max( len, mArr.length );
+            mKeys = new int[cap];
+            mIdx  = new int[cap];
+        }
+        
+        final DepthSortable[] arr = (DepthSortable[])mArr;
+        final int[] keys = mKeys;
+        final int[] idx  = mIdx;
+        final boolean backToFront = mOrder == ORDER_BACK_TO_FRONT;
+        
+        for( int i = 0; i < len; i++ ) {
+            int k = RadixSort.floatKey( arr[i].normDepth() );
+            keys[i] = backToFront ? ~k : k;
+            idx[i]  = i;
+        }
+        
+        final long maxMoves = (long)len * INCREMENTAL_MOVES_PER_ITEM;
+        long moves = 0;
+        
+        for( int i = 1; i < len; i++ ) {
+            int k = keys[i];
+            int j = i - 1;
+            if( keys[j] <= k ) {
+                continue;
+            }
+            
+            do {
+                keys[j+1] = keys[j];
+                idx[j+1]  = idx[j];
+                j--;
+                moves++;
+            } while( j >= 0 && keys[j] > k );
+            
+            keys[j+1] = k;
+            idx[j+1]  = i;
+            
+            // Large change. Prefix is sorted; merge it with any runs that follow.
+            if( moves > maxMoves ) {
+                long copies = mergeRuns( keys, idx, len );
+                if( copies < 0 ) {
+                    return -1;
+                }
+                moves += copies;
+                break;
+            }
+        }
+        
+        if( moves > 0 ) {
+            radix().permute( arr, 0, idx, 0, len );
+            radix().permute( mHandleAt, 0, idx, 0, len );
+        }
+        
+        return moves;
+    }
+    
+    /**
+     * Sorts a nearly sorted array in place, with an insertion pass followed
+     * by a run merge if the pass runs over budget. Gives up when the array
+     * is too far from sorted, in which case the array is left partially sorted.
+     * 
+     * @return number of moves made, or -1 if the sort was abandoned.
+     */
+    private long insertionSort( int len ) {
+        final T[] arr = mArr;
+        final int[] handles = mHandleAt;
+        final Comparator<? super T> comp = mComp;
+        final long maxMoves = (long)len * INCREMENTAL_MOVES_PER_ITEM;
+        long moves = 0;
+        
+        for( int i = 1; i < len; i++ ) {
+            T v = arr[i];
+            int j = i - 1;
+            if( comp.compare( arr[j], v ) <= 0 ) {
+                continue;
+            }
+            
+            int h = handles[i];
+            do {
+                arr[j+1] = arr[j];
+                handles[j+1] = handles[j];
+                j--;
+                moves++;
+            } while( j >= 0 && comp.compare( arr[j], v ) > 0 );
+            
+            arr[j+1] = v;
+            handles[j+1] = h;
+            if( moves > maxMoves ) {
+                long copies = mergeRuns( arr, handles, len );
+                if( copies < 0 ) {
+                    return -1;
+                }
+                return moves + copies;
+            }
+        }
+        
+        return moves;
+    }
+    
+    /**
+     * Finds ascending runs in keys and merges them pairwise, carrying
+     * indices along. Merges are stable.
+     * 
+     * @return number of items copied, or -1 if runs are too short to be worth merging.
+     */
+    private long mergeRuns( int[] keys, int[] idx, int len ) {
+        int count = 0;
+        int[] runs = mRuns;
+        for( int i = 0; i < len; i++ ) {
+            if( i == 0 || keys[i-1] > keys[i] ) {
+                if( ( count + 1L ) * MIN_MERGE_RUN > len ) {
+                    return -1;
+                }
+                if( count + 2 > runs.length ) {
+                    runs = mRuns = Arrays.copyOf( runs, runs.length * 2 );
+                }
+                runs[count++] = i;
+            }
+        }
+        runs[count] = len;
+        
+        if( mMergeKeys == null || mMergeKeys.length < len ) {
+            mMergeKeys = new int[keys.length];
+            mMergeIdx  = new int[keys.length];
+        }
+        
+        int[] srcKeys = keys;
+        int[] srcIdx  = idx;
+        int[] dstKeys = mMergeKeys;
+        int[] dstIdx  = mMergeIdx;
+        long copies = 0;
+        
+        while( count > 1 ) {
+            int w = 0;
+            for( int r = 0; r < count; r += 2 ) {
+                int a    = runs[r];
+                int mid  = runs[Math.min( r + 1, count )];
+                int stop = runs[Math.min( r + 2, count )];
+                int i = a;
+                int j = mid;
+                for( int k = a; k < stop; k++ ) {
+                    if( j >= stop || i < mid && srcKeys[i] <= srcKeys[j] ) {
+                        dstKeys[k] = srcKeys[i];
+                        dstIdx[k]  = srcIdx[i++];
+                    } else {
+                        dstKeys[k] = srcKeys[j];
+                        dstIdx[k]  = srcIdx[j++];
+                    }
+                }
+                runs[w++] = a;
+            }
+            runs[w] = len;
+            count   = w;
+            copies += len;
+            
+            int[] t = srcKeys; srcKeys = dstKeys; dstKeys = t;
+            t = srcIdx; srcIdx = dstIdx; dstIdx = t;
+        }
+        
+        if( srcKeys != keys ) {
+            System.arraycopy( srcKeys, 0, keys, 0, len );
+            System.arraycopy( srcIdx, 0, idx, 0, len );
+        }
+        
+        return copies;
+    }
+    
+    /**
+     * Finds ascending runs in items under the list comparator and merges
+     * them pairwise, carrying handles along. Merges are stable.
+     * 
+     * @return number of items copied, or -1 if runs are too short to be worth merging.
+     */
+    private long mergeRuns( T[] arr, int[] handles, int len ) {
+        final Comparator<? super T> comp = mComp;
+        int count = 0;
+        int[] runs = mRuns;
+        for( int i = 0; i < len; i++ ) {
+            if( i == 0 || comp.compare( arr[i-1], arr[i] ) > 0 ) {
+                if( ( count + 1L ) * MIN_MERGE_RUN > len ) {
+                    return -1;
+                }
+                if( count + 2 > runs.length ) {
+                    runs = mRuns = Arrays.copyOf( runs, runs.length * 2 );
+                }
+                runs[count++] = i;
+            }
+        }
+        runs[count] = len;
+        
+        if( mMergeArr == null || mMergeArr.length < len ) {
+            mMergeArr     = (T[])java.lang.reflect.Array.newInstance( mClazz, arr.length );
+            mMergeHandles = new int[arr.length];
+        }
+        
+        T[] srcArr = arr;
+        int[] srcHandles = handles;
+        T[] dstArr = mMergeArr;
+        int[] dstHandles = mMergeHandles;
+        long copies = 0;
+        
+        while( count > 1 ) {
+            int w = 0;
+            for( int r = 0; r < count; r += 2 ) {
+                int a    = runs[r];
+                int mid  = runs[Math.min( r + 1, count )];
+                int stop = runs[Math.min( r + 2, count )];
+                int i = a;
+                int j = mid;
+                for( int k = a; k < stop; k++ ) {
+                    if( j >= stop || i < mid && comp.compare( srcArr[i], srcArr[j] ) <= 0 ) {
+                        dstArr[k]     = srcArr[i];
+                        dstHandles[k] = srcHandles[i++];
+                    } else {
+                        dstArr[k]     = srcArr[j];
+                        dstHandles[k] = srcHandles[j++];
+                    }
+                }
+                runs[w++] = a;
+            }
+            runs[w] = len;
+            count   = w;
+            copies += len;
+            
+            T[] t = srcArr; srcArr = dstArr; dstArr = t;
+            int[] th = srcHandles; srcHandles = dstHandles; dstHandles = th;
+        }
+        
+        if( srcArr != arr ) {
+            System.arraycopy( srcArr, 0, arr, 0, len );
+            System.arraycopy( srcHandles, 0, handles, 0, len );
+        }
+        
+        // Drop references held by scratch array.
+        Arrays.fill( mMergeArr, 0, len, null );
+        return copies;
+    }
+    
+    
+    private RadixSort radix() {
+        if( mRadix == null ) {
+            mRadix = new RadixSort();
+        }
+        return mRadix;
+    }
+    
+    
+    private int partitionCulled( DepthSortable[] arr, int start, int stop, float culledValue ) {
+        final int[] handles = mHandleAt;
+        int w = start;
+        for( int i = start; i < stop; i++ ) {
+            DepthSortable d = arr[i];
+            if( d.normPosRef().z != culledValue ) {
+                int h = handles[i];
+                arr[i] = arr[w];
+                handles[i] = handles[w];
+                arr[w] = d;
+                handles[w++] = h;
+            }
+        }
+        return w;
+    }
+    
+    
+    private int allocHandle( int idx ) {
+        int h;
+        if( mFreeCount > 0 ) {
+            h = mFreeHandles[--mFreeCount];
+        } else {
+            h = mNextHandle++;
+            if( h == mIndexOf.length ) {
+                mIndexOf = Arrays.copyOf( mIndexOf, h * 2 );
+            }
+        }
+        
+        mIndexOf[h]    = idx;
+        mHandleAt[idx] = h;
+        return h;
+    }
+    
+    
+    private void removeAt( int idx ) {
+        int h = mHandleAt[idx];
+        int last = --mSize;
+        
+        mArr[idx]      = mArr[last];
+        mHandleAt[idx] = mHandleAt[last];
+        mIndexOf[mHandleAt[idx]] = idx;
+        mIndexOf[h] = -1;
+        
+        if( mFreeCount == mFreeHandles.length ) {
+            mFreeHandles = Arrays.copyOf( mFreeHandles, mFreeCount * 2 );
+        }
+        mFreeHandles[mFreeCount++] = h;
+        mVersion++;
+    }
+    
+    
+    private void updateHandleIndices() {
+        final int[] handles = mHandleAt;
+        final int[] indices = mIndexOf;
+        for( int i = 0; i < mSize; i++ ) {
+            indices[handles[i]] = i;
+        }
+    }
+    
+    
     private void realloc( int min ) {
         int n = Pots.ceilPot( min );
         T[] arr = (T[])java.lang.reflect.Array.newInstance( mClazz, n );
         System.arraycopy( mArr, 0, arr, 0, mSize );
         mArr = arr;
+        mHandleAt = Arrays.copyOf( mHandleAt, n );
     }
     
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.IOException;
+
+
+/**
+ * Receives an image as a sequence of row bands, from top to bottom.
+ * Row width and pixel format are fixed when the sink is created.
+ *
+ * @author decamp
+ */
+public interface RowSink {
+
+    /**
+     * @param data   Packed rows with no padding.
+     * @param off    Offset of first row in <tt>data</tt>.
+     * @param rows   Number of rows to write.
+     */
+    public void writeRows( byte[] data, int off, int rows ) throws IOException;
+
+    /**
+     * Completes the image. Called once, after all rows have been written.
+     */
+    public void close() throws IOException;
+
+}
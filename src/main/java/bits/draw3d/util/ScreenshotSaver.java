@@ -9,6 +9,8 @@ package bits.draw3d.util;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.jogamp.opengl.GL;
 import static com.jogamp.opengl.GL2ES3.*;
@@ -33,22 +35,62 @@ public class ScreenshotSaver {
     public static final int LEVEL_BEST_COMPRESSION = NativeZLib.Z_BEST_COMPRESSION;
     public static final int LEVEL_DEFAULT          = NativeZLib.Z_DEFAULT_COMPRESSION;
     
-    public static final int ALPHA_COPY              = 0;
-    public static final int ALPHA_SATURATE          = 1;
-    public static final int ALPHA_MULTIPLY          = 2;
-    public static final int ALPHA_MULTIPLY_SATURATE = 3;
-    public static final int ALPHA_DIVIDE            = 4;
+    public static final int ALPHA_COPY              = AlphaOps.ALPHA_COPY;
+    public static final int ALPHA_SATURATE          = AlphaOps.ALPHA_SATURATE;
+    public static final int ALPHA_MULTIPLY          = AlphaOps.ALPHA_MULTIPLY;
+    public static final int ALPHA_MULTIPLY_SATURATE = AlphaOps.ALPHA_MULTIPLY_SATURATE;
+    public static final int ALPHA_DIVIDE            = AlphaOps.ALPHA_DIVIDE;
     
     
-    private File             mOutDir        = null;
-    private OutputFileNamer  mPngSequence   = null;
-    private OutputFileNamer  mDepthSequence = null;
-    private PngBufferWriter  mPngEncoder    = null;
-    private DepthFileEncoder mDepthEncoder  = null;
-    private ByteBuffer       mReadBuffer    = null;
-    private ByteBuffer       mWriteBuffer   = null;
+    // Encoders hold native state, so each thread gets its own.
+    private static final ThreadLocal<PngBufferWriter> PNG_ENCODERS = new ThreadLocal<PngBufferWriter>() {
+        @Override
+        protected PngBufferWriter initialValue() {
+            return new PngBufferWriter();
+        }
+    };
+    
+    private static final ThreadLocal<DepthFileEncoder> DEPTH_ENCODERS = new ThreadLocal<DepthFileEncoder>() {
+        @Override
+        protected DepthFileEncoder initialValue() {
+            return new DepthFileEncoder();
+        }
+    };
+    
+    
+    private final DirectBufferPool mPool;
+    
+    private volatile File         mOutDir        = null;
+    private volatile FileSequence mPngSequence   = null;
+    private volatile FileSequence mDepthSequence = null;
+    
+    private volatile ParallelPngEncoder mParallelEncoder = null;
+    private volatile ForkJoinPool mOpPool = null;
+    private volatile FrameDeduplicator mDedup = null;
+    private volatile DepthCodec mDepthCodec = null;
+    
+    private RawFrameLog mRawLog = null;
+    private FrameSequenceWriter mSequence = null;
+    private MjpegAviWriter mVideo = null;
+    
+    
+    public ScreenshotSaver() {
+        this( DirectBufferPool.defaultInstance() );
+    }
+    
+    /**
+     * @param pool Pool from which capture buffers are allocated.
+     */
+    public ScreenshotSaver( DirectBufferPool pool ) {
+        mPool = pool;
+    }
+    
+    
+    
+    public DirectBufferPool bufferPool() {
+        return mPool;
+    }
     
-
     
     public synchronized void openOutputDir( File outDir, boolean generateSubDir ) {
         if( !outDir.exists() ) {
@@ -61,8 +103,8 @@ public class ScreenshotSaver {
         }
         
         mOutDir        = outDir;
-        mPngSequence   = new OutputFileNamer( outDir, "", ".png", 5 );
-        mDepthSequence = new OutputFileNamer( outDir, "", ".png", 5 );
+        mPngSequence   = new FileSequence( outDir, ".png" );
+        mDepthSequence = new FileSequence( outDir, ".depth" );
     }
     
     
@@ -73,18 +115,78 @@ public class ScreenshotSaver {
     }
 
     
-    public synchronized File outputDir() {
+    public File outputDir() {
         return mOutDir;
     }
     
     
-    public synchronized File nextPngFile() {
-        return mPngSequence == null ? null : mPngSequence.next();
+    public File nextPngFile() {
+        FileSequence seq = mPngSequence;
+        return seq == null ? null : seq.next();
+    }
+    
+    
+    public File nextDepthFile() {
+        FileSequence seq = mDepthSequence;
+        return seq == null ? null : seq.next();
+    }
+    
+    /**
+     * When enabled, PNG images are split into row bands that are deflated
+     * on separate threads. Useful for large or tiled captures.
+     */
+    public synchronized void parallelEncoding( boolean enable ) {
+        if( enable == ( mParallelEncoder != null ) ) {
+            return;
+        }
+        
+        if( enable ) {
+            mParallelEncoder = new ParallelPngEncoder( null );
+        } else {
+            mParallelEncoder.shutdown();
+            mParallelEncoder = null;
+        }
+    }
+    
+    
+    public boolean parallelEncoding() {
+        return mParallelEncoder != null;
+    }
+    
+    /**
+     * @param optPool Pool on which to split alpha operations for large captures, or null to run them serially.
+     */
+    public void parallelOps( ForkJoinPool optPool ) {
+        mOpPool = optPool;
+    }
+    
+   
+    /**
+     * @param optDedup Deduplicator through which PNG frames are written, so that frames
+     *                 identical to one already saved are not encoded again. May be null.
+     */
+    public void deduplicator( FrameDeduplicator optDedup ) {
+        mDedup = optDedup;
+    }
+    
+    
+    public FrameDeduplicator deduplicator() {
+        return mDedup;
+    }
+    
+   
+    /**
+     * @param optCodec Codec used by <tt>encodeDepth()</tt> in place of the default gzip 
+     *                 stream, or null to restore the default.
+     * @see DepthFiles#readDepthBuffer
+     */
+    public void depthCodec( DepthCodec optCodec ) {
+        mDepthCodec = optCodec;
     }
     
     
-    public synchronized File nextDepthFile() {
-        return mDepthSequence == null ? null : mDepthSequence.next();
+    public DepthCodec depthCodec() {
+        return mDepthCodec;
     }
     
    
@@ -96,7 +198,7 @@ public class ScreenshotSaver {
         } 
         
         d.mGl.glReadPixels( x, y, w, h, GL_RGBA, GL_UNSIGNED_BYTE, out );
-        applyOp( alphaOp, out, len );
+        AlphaOps.apply( mOpPool, AlphaOps.DEFAULT_MIN_PARALLEL, alphaOp, out, len );
         out.position( out.position() + w * h * 4 );
         
         return out;
@@ -117,72 +219,265 @@ public class ScreenshotSaver {
     }
     
     
-    public synchronized File savePng( DrawEnv d, int x, int y, int w, int h, int alphaOp ) {
-        if( mPngSequence == null )
+    public File savePng( DrawEnv d, int x, int y, int w, int h, int alphaOp ) {
+        File ret = nextPngFile();
+        if( ret == null )
             return null;
         
-        File ret = mPngSequence.next();
         savePng( d, x, y, w, h, alphaOp, ret );
         return ret;
     }
     
     
-    public synchronized void savePng( DrawEnv d, int x, int y, int w, int h, int alphaOp, File outFile ) {
+    public void savePng( DrawEnv d, int x, int y, int w, int h, int alphaOp, File outFile ) {
+        ByteBuffer readBuf = mPool.acquire( w * h * 4 );
         try {
-            if( mReadBuffer != null ) {
-                mReadBuffer.clear();
-            }
-            mReadBuffer = readRgba( d, x, y, w, h, alphaOp, mReadBuffer );
-            mReadBuffer.flip();
-            
-            if( mWriteBuffer != null ) {
-                mWriteBuffer.clear();
-            }
-            mWriteBuffer = encodePng( mReadBuffer, w, h, COLOR_TYPE_RGBA, mWriteBuffer );
-            mWriteBuffer.flip();
-            
-            saveBuffer( mWriteBuffer, outFile );
-            
+            readRgba( d, x, y, w, h, alphaOp, readBuf );
+            readBuf.flip();
+            savePng( readBuf, w, h, outFile );
         } catch( Exception ex ) {
+            outFile.delete();
             ex.printStackTrace();
+        } finally {
+            mPool.release( readBuf );
         }
     }
     
+    /**
+     * Encodes and writes RGBA pixels that have already been read, with rows
+     * ordered bottom-up. May be called from any thread, and by several
+     * threads at once. If writing fails, <tt>outFile</tt> is deleted.
+     */
+    public void savePng( final ByteBuffer rgba, final int w, final int h, File outFile ) throws IOException {
+        FrameDeduplicator dedup = mDedup;
+        if( dedup == null ) {
+            encodeAndSavePng( rgba, w, h, outFile );
+            return;
+        }
+        
+        dedup.write( rgba, w, h, outFile, new FrameDeduplicator.Writer() {
+            public void write( File file ) throws IOException {
+                encodeAndSavePng( rgba, w, h, file );
+            }
+        } );
+    }
+    
     
-    public synchronized File saveDepth( GL gl, int x, int y, int w, int h ) {
-        if( mDepthSequence == null )
+    public File saveDepth( GL gl, int x, int y, int w, int h ) {
+        File ret = nextDepthFile();
+        if( ret == null )
             return null;
         
-        File ret = mDepthSequence.next();
         saveDepth( gl, x, y, w, h, ret );
         return ret;
     }
     
     
-    public synchronized void saveDepth( GL gl, int x, int y, int w, int h, File outFile ) {
+    public void saveDepth( GL gl, int x, int y, int w, int h, File outFile ) {
+        ByteBuffer readBuf  = mPool.acquire( w * h * 4 );
+        ByteBuffer writeBuf = mPool.acquire( w * h * 4 + 1024 );
         try {
-            if( mReadBuffer != null ) {
-                mReadBuffer.clear();
-            }
-            mReadBuffer = readDepth( gl, x, y, w, h, mReadBuffer );
-            mReadBuffer.flip();
-            
-            if( mWriteBuffer != null ) {
-                mWriteBuffer.clear();
-            }
-            mWriteBuffer = encodeDepth( mReadBuffer, w, h, mWriteBuffer );
-            mWriteBuffer.flip();
-            
-            saveBuffer( mWriteBuffer, outFile );
-            
+            readDepth( gl, x, y, w, h, readBuf );
+            readBuf.flip();
+            ByteBuffer out = encodeDepth( readBuf, w, h, writeBuf );
+            out.flip();
+            saveBuffer( out, outFile );
         } catch( Exception ex ) {
+            outFile.delete();
             ex.printStackTrace();
+        } finally {
+            mPool.release( readBuf );
+            mPool.release( writeBuf );
         }
     }
 
 
+    /**
+     * Starts raw capture mode. Frames passed to <tt>saveRaw()</tt> and
+     * <tt>saveRawDepth()</tt> are copied without encoding into a memory-mapped
+     * log, which may be converted to files later with RawFrameConverter.
+     * 
+     * @param file          Log file to create.
+     * @param slotCount     Number of frames log can hold.
+     * @param maxFrameBytes Size of largest frame, in bytes.
+     * @param ring          If true, oldest frames are overwritten when log is full. 
+     *                      Otherwise, new frames are dropped.
+     */
+    public synchronized void openRawLog( File file, int slotCount, int maxFrameBytes, boolean ring ) throws IOException {
+        closeRawLog();
+        mRawLog = RawFrameLog.create( file, slotCount, maxFrameBytes, ring );
+    }
+    
+    
+    public synchronized void closeRawLog() throws IOException {
+        if( mRawLog != null ) {
+            RawFrameLog log = mRawLog;
+            mRawLog = null;
+            log.close();
+        }
+    }
+    
+    /**
+     * Reads RGBA pixels directly into raw log.
+     * 
+     * @return sequence number of frame, or -1 if no log is open or log is full.
+     */
+    public synchronized long saveRaw( DrawEnv d, int x, int y, int w, int h, int alphaOp ) {
+        if( mRawLog == null )
+            return -1;
+        
+        ByteBuffer buf = mRawLog.beginFrame( RawFrameLog.FORMAT_RGBA, w, h );
+        if( buf == null )
+            return -1;
+        
+        readRgba( d, x, y, w, h, alphaOp, buf );
+        return mRawLog.commitFrame();
+    }
+    
+    /**
+     * Reads depth values directly into raw log.
+     * 
+     * @return sequence number of frame, or -1 if no log is open or log is full.
+     */
+    public synchronized long saveRawDepth( GL gl, int x, int y, int w, int h ) {
+        if( mRawLog == null )
+            return -1;
+        
+        ByteBuffer buf = mRawLog.beginFrame( RawFrameLog.FORMAT_DEPTH, w, h );
+        if( buf == null )
+            return -1;
+        
+        readDepth( gl, x, y, w, h, buf );
+        return mRawLog.commitFrame();
+    }
+    
+
+    /**
+     * Starts writing frames passed to <tt>saveFrame()</tt> into a single
+     * container file instead of one file per frame.
+     * 
+     * @param file Container file to create.
+     * @see FrameSequenceReader
+     */
+    public synchronized void openSequence( File file ) throws IOException {
+        closeSequence();
+        mSequence = new FrameSequenceWriter( file );
+    }
+    
+    
+    public synchronized void closeSequence() throws IOException {
+        if( mSequence != null ) {
+            FrameSequenceWriter seq = mSequence;
+            mSequence = null;
+            seq.close();
+        }
+    }
+    
+    /**
+     * Reads, encodes and appends a frame to the open sequence container.
+     * 
+     * @param withDepth If true, depth values are stored with the frame.
+     * @return index of frame in container, or -1 if no container is open.
+     */
+    public synchronized int saveFrame( DrawEnv d, int x, int y, int w, int h, int alphaOp, boolean withDepth ) throws IOException {
+        if( mSequence == null )
+            return -1;
+        
+        final int len = w * h * 4;
+        ByteBuffer readBuf  = mPool.acquire( len );
+        ByteBuffer colorBuf = mPool.acquire( len + 1024 );
+        ByteBuffer depthBuf = withDepth ? mPool.acquire( len + 1024 ) : null;
+        
+        try {
+            readRgba( d, x, y, w, h, alphaOp, readBuf );
+            readBuf.flip();
+            ByteBuffer color = encodePng( readBuf, w, h, COLOR_TYPE_RGBA, colorBuf );
+            color.flip();
+            
+            ByteBuffer depth = null;
+            if( withDepth ) {
+                readBuf.clear();
+                readDepth( d.mGl, x, y, w, h, readBuf );
+                readBuf.flip();
+                depth = encodeDepth( readBuf, w, h, depthBuf );
+                depth.flip();
+            }
+            
+            return mSequence.appendFrame( color, depth, w, h );
+            
+        } finally {
+            mPool.release( readBuf );
+            mPool.release( colorBuf );
+            mPool.release( depthBuf );
+        }
+    }
+    
+    
+    /**
+     * Starts writing frames passed to <tt>saveVideoFrame()</tt> to a 
+     * Motion-JPEG AVI file. Frames are encoded on worker threads.
+     * 
+     * @param file    Video file to create.
+     * @param fps     Frame rate of video.
+     * @param quality JPEG quality, from 0 to 1. Lower values encode faster and produce smaller files.
+     */
+    public synchronized void openVideo( File file, double fps, float quality ) throws IOException {
+        closeVideo();
+        mVideo = new MjpegAviWriter( file, fps, quality, null );
+    }
+    
+    
+    public synchronized void closeVideo() throws IOException {
+        if( mVideo != null ) {
+            MjpegAviWriter video = mVideo;
+            mVideo = null;
+            video.close();
+        }
+    }
+    
+    
+    public synchronized boolean isVideoOpen() {
+        return mVideo != null;
+    }
+    
+    /**
+     * Reads a frame and queues it for the open video. Blocks on the GPU;
+     * <tt>AsyncScreenshotSaver.saveVideoFrame()</tt> does not.
+     * 
+     * @return true if frame was queued, false if no video is open.
+     */
+    public synchronized boolean saveVideoFrame( DrawEnv d, int x, int y, int w, int h, int alphaOp ) throws IOException {
+        if( mVideo == null )
+            return false;
+        
+        ByteBuffer readBuf = mPool.acquire( w * h * 4 );
+        try {
+            readRgba( d, x, y, w, h, alphaOp, readBuf );
+            readBuf.flip();
+            return saveVideoFrame( readBuf, w, h );
+        } finally {
+            mPool.release( readBuf );
+        }
+    }
+    
+    /**
+     * Queues pixels that have already been read for the open video. May be
+     * called from any thread; frames are added in order of calls.
+     * 
+     * @param rgba Pixels with rows ordered bottom-up. Data is copied.
+     * @return true if frame was queued, false if no video is open.
+     */
+    public synchronized boolean saveVideoFrame( ByteBuffer rgba, int w, int h ) throws IOException {
+        if( mVideo == null )
+            return false;
+        
+        mVideo.writeFrame( rgba, w, h );
+        return true;
+    }
+    
+    
     @SuppressWarnings( "resource" )
-    public synchronized void saveBuffer( ByteBuffer buf, File out ) throws IOException {
+    public void saveBuffer( ByteBuffer buf, File out ) throws IOException {
         FileChannel chan = null;
         
         try {
@@ -202,36 +497,41 @@ public class ScreenshotSaver {
     }
     
     
-    public synchronized ByteBuffer encodePng( ByteBuffer in, 
-                                              int w, 
-                                              int h, 
-                                              int colorType, 
-                                              ByteBuffer out ) 
-                                              throws IOException
+    public ByteBuffer encodePng( ByteBuffer in, 
+                                 int w,
+                                 int h,
+                                 int colorType,
+                                 ByteBuffer out )
+                                 throws IOException
     {
         return encodePng( in, w, h, colorType, PngBufferWriter.LEVEL_DEFAULT, out );
     }
     
     
-    public synchronized ByteBuffer encodePng( ByteBuffer in, 
-                                              int w, 
-                                              int h, 
-                                              int colorType, 
-                                              int compLevel, 
-                                              ByteBuffer out )
-                                              throws IOException 
+    public ByteBuffer encodePng( ByteBuffer in, 
+                                 int w,
+                                 int h,
+                                 int colorType,
+                                 int compLevel,
+                                 ByteBuffer out )
+                                 throws IOException
     {
-        if( mPngEncoder == null ) {
-            mPngEncoder = new PngBufferWriter();
+        ParallelPngEncoder par = mParallelEncoder;
+        if( par != null ) {
+            return par.encode( in, w, h, colorType, compLevel, true, out );
         }
         
+        PngBufferWriter enc = PNG_ENCODERS.get();
+        
         int cap = w * h * 4 + 1024;
         
         if( out == null || out.remaining() < cap ) {
             out = ByteBuffer.allocateDirect( cap );
         }
         
-        mPngEncoder.open( out, w, h, colorType, 8, compLevel, null );
+        // Encoder writes headers in buffer order. Pooled buffers are native order.
+        out.order( ByteOrder.BIG_ENDIAN );
+        enc.open( out, w, h, colorType, 8, compLevel, null );
         
         int pos    = in.position();
         int stride = w * 4;
@@ -240,123 +540,106 @@ public class ScreenshotSaver {
         for( int i = 0; i < h; i++ ) {
             int p0 = pos + stride * ( h - i - 1);
             in.position( p0 ).limit( p0 + stride );
-            mPngEncoder.writeData( in );
+            enc.writeData( in );
         }
             
         in.limit( pos + stride * h ).position( pos + stride * h );
-        mPngEncoder.close();
+        enc.close();
         
         return out;
     }
     
     
-    public synchronized ByteBuffer encodeDepth( ByteBuffer in,
-                                                int w,
-                                                int h,
-                                                ByteBuffer out )
-                                                throws IOException
+    public ByteBuffer encodeDepth( ByteBuffer in,
+                                   int w,
+                                   int h,
+                                   ByteBuffer out )
+                                   throws IOException
     {
         return encodeDepth( in, w, h, LEVEL_DEFAULT, out );
     }
     
     
-    public synchronized ByteBuffer encodeDepth( ByteBuffer in,
-                                                int w,
-                                                int h,
-                                                int compressionLevel,
-                                                ByteBuffer out )
-                                                throws IOException
+    public ByteBuffer encodeDepth( ByteBuffer in,
+                                   int w,
+                                   int h,
+                                   int compressionLevel,
+                                   ByteBuffer out )
+                                   throws IOException
     {
-        if( mDepthEncoder == null ) {
-            mDepthEncoder = new DepthFileEncoder();
+        DepthCodec codec = mDepthCodec;
+        if( codec != null ) {
+            return codec.encode( in, w, h, compressionLevel, out );
         }
         
+        DepthFileEncoder enc = DEPTH_ENCODERS.get();
+        
         int cap = w * h * 4 + 1024;
         
         if( out == null || out.remaining() < cap ) {
             out = ByteBuffer.allocateDirect( cap );
         }
         
-        mDepthEncoder.open( out, w, h, compressionLevel );
-        mDepthEncoder.writeData( in );
-        mDepthEncoder.close();
+        out.order( ByteOrder.BIG_ENDIAN );
+        enc.open( out, w, h, compressionLevel );
+        enc.writeData( in );
+        enc.close();
         
         return out;
     }
     
 
-    private void applyOp( int op, ByteBuffer buf, int len ) {
-
-        switch( op ) {
-        case ALPHA_SATURATE: {
-            final int pos = buf.position();
-            
-            for( int i = 3; i < len; i += 4 ) {
-                buf.put( pos + i, (byte)0xFF );
-            }
-            break;
-        }
-
-        case ALPHA_MULTIPLY: {
-            final int pos = buf.position();
-            
-            for( int i = 0; i < len; i += 4 ) {
-                int r = buf.get( pos + i     ) & 0xFF;
-                int g = buf.get( pos + i + 1 ) & 0xFF;
-                int b = buf.get( pos + i + 2 ) & 0xFF;
-                int a = buf.get( pos + i + 3 ) & 0xFF;
-                
-                buf.put( pos + i    , (byte)( r * a / 255 ) );
-                buf.put( pos + i + 1, (byte)( g * a / 255 ) );
-                buf.put( pos + i + 2, (byte)( b * a / 255 ) );
-                buf.put( pos + i + 3, (byte)a );
+    private void encodeAndSavePng( ByteBuffer rgba, int w, int h, File outFile ) throws IOException {
+        ByteBuffer writeBuf = mPool.acquire( w * h * 4 + 1024 );
+        boolean ok = false;
+        try {
+            ByteBuffer out = encodePng( rgba, w, h, COLOR_TYPE_RGBA, writeBuf );
+            out.flip();
+            saveBuffer( out, outFile );
+            ok = true;
+        } finally {
+            mPool.release( writeBuf );
+            if( !ok ) {
+                // Remove partial file or reserved name.
+                outFile.delete();
             }
-            break;
         }
-
-        case ALPHA_MULTIPLY_SATURATE: {
-            final int pos = buf.position();
-
-            for( int i = 0; i < len; i += 4 ) {
-                int r = buf.get( pos + i     ) & 0xFF;
-                int g = buf.get( pos + i + 1 ) & 0xFF;
-                int b = buf.get( pos + i + 2 ) & 0xFF;
-                int a = buf.get( pos + i + 3 ) & 0xFF;
-
-                buf.put( pos + i    , (byte)( r * a / 255 ) );
-                buf.put( pos + i + 1, (byte)( g * a / 255 ) );
-                buf.put( pos + i + 2, (byte)( b * a / 255 ) );
-                buf.put( pos + i + 3, (byte)0xFF );
-            }
-            break;
+    }
+    
+    
+    static void applyOp( int op, ByteBuffer buf, int len ) {
+        AlphaOps.apply( op, buf, len );
+    }
+    
+    /**
+     * Lock-free equivalent of OutputFileNamer. Each name is reserved by
+     * creating an empty file, so sequences sharing a directory, or another
+     * process writing to it, never receive the same name.
+     */
+    private static final class FileSequence {
+        
+        private final File mDir;
+        private final String mSuffix;
+        private final AtomicInteger mNext = new AtomicInteger( 0 );
+        
+        FileSequence( File dir, String suffix ) {
+            mDir    = dir;
+            mSuffix = suffix;
         }
-
-        case ALPHA_DIVIDE: {
-            final int pos = buf.position();
-
-            for( int i = 0; i < len; i += 4 ) {
-                int r = buf.get( pos + i     ) & 0xFF;
-                int g = buf.get( pos + i + 1 ) & 0xFF;
-                int b = buf.get( pos + i + 2 ) & 0xFF;
-                int a = buf.get( pos + i + 3 ) & 0xFF;
-
-                if( a == 0 ) {
-                    buf.put( pos + i    , (byte)0 );
-                    buf.put( pos + i + 1, (byte)0 );
-                    buf.put( pos + i + 2, (byte)0 );
-                    buf.put( pos + i + 3, (byte)0 );
-                } else {
-                    buf.put( pos + i    , (byte)Math.min( 255, r * 255 / a ) );
-                    buf.put( pos + i + 1, (byte)Math.min( 255, g * 255 / a ) );
-                    buf.put( pos + i + 2, (byte)Math.min( 255, b * 255 / a ) );
-                    buf.put( pos + i + 3, (byte)a );
+        
+        
+        File next() {
+            while( true ) {
+                File file = new File( mDir, String.format( "%05d%s", mNext.getAndIncrement(), mSuffix ) );
+                try {
+                    if( file.createNewFile() ) {
+                        return file;
+                    }
+                } catch( IOException ex ) {
+                    // Directory is not writable. Let the writer report it.
+                    return file;
                 }
             }
-
-            break;
-        }
-
-        default:
         }
     }
 
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import bits.draw3d.PosObject;
+import bits.math3d.Box3;
+import bits.math3d.Mat4;
+import bits.math3d.Vec3;
+
+
+/**
+ * Bounding volume hierarchy over the positions of a fixed set of items.
+ * Used to find items that may lie inside a view frustum without transforming
+ * every item. Queries are conservative: every item inside the frustum is
+ * returned, along with some items near it.
+ * <p>
+ * When items move, <tt>refit()</tt> updates node bounds without changing
+ * the tree structure. Query cost degrades as items move far from their
+ * original positions, after which the tree should be rebuilt.
+ *
+ * @author decamp
+ */
+@SuppressWarnings( "unchecked" )
+public class StaticBvh<T extends PosObject> {
+
+    private static final int LEAF_SIZE = 8;
+
+
+    private T[] mItems = null;
+    private int mSize  = 0;
+
+    private int mNodeCount  = 0;
+    private float[] mBounds = new float[0];
+    private int[] mStart    = new int[0];
+    private int[] mStop     = new int[0];
+    private int[] mLeft     = new int[0];
+    private int[] mRight    = new int[0];
+
+    private final float[] mPlanes = new float[24];
+    private int[] mStack = new int[64];
+    private int[] mRanges = new int[64];
+
+
+    public StaticBvh() {}
+
+
+    /**
+     * Builds hierarchy over a set of items. The items are copied into
+     * a new array, in an order that keeps each node's items contiguous.
+     *
+     * @param items Items to index.
+     * @param off   Offset into array.
+     * @param len   Number of items.
+     */
+    public void build( T[] items, int off, int len ) {
+        mItems = (T[])java.lang.reflect.Array.newInstance( items.getClass().getComponentType(), len );
+        System.arraycopy( items, off, mItems, 0, len );
+        mSize = len;
+
+        // Leaves hold at least LEAF_SIZE / 2 items.
+        int maxNodes = 2 * ( len * 2 / LEAF_SIZE + 1 );
+        if( mStart.length < maxNodes ) {
+            mBounds = new float[maxNodes * 6];
+            mStart  = new int[maxNodes];
+            mStop   = new int[maxNodes];
+            mLeft   = new int[maxNodes];
+            mRight  = new int[maxNodes];
+        }
+
+        mNodeCount = 0;
+        buildNode( 0, len );
+        refit();
+    }
+
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return direct reference to indexed items, in tree order.
+     */
+    public T[] itemsRef() {
+        return mItems;
+    }
+
+    /**
+     * Recomputes node bounds from current item positions.
+     * Nodes are stored after their parents, so a reverse pass
+     * updates children before parents.
+     */
+    public void refit() {
+        final T[] items = mItems;
+        final float[] b = mBounds;
+
+        for( int n = mNodeCount - 1; n >= 0; n-- ) {
+            int o = n * 6;
+
+            if( mLeft[n] < 0 ) {
+                float x0 = Float.POSITIVE_INFINITY, y0 = Float.POSITIVE_INFINITY, z0 = Float.POSITIVE_INFINITY;
+                float x1 = Float.NEGATIVE_INFINITY, y1 = Float.NEGATIVE_INFINITY, z1 = Float.NEGATIVE_INFINITY;
+
+                for( int i = mStart[n]; i < mStop[n]; i++ ) {
+                    Vec3 p = items[i].pos();
+                    x0 = Math.min( x0, p.x );
+                    y0 = Math.min( y0, p.y );
+                    z0 = Math.min( z0, p.z );
+                    x1 = Math.max( x1, p.x );
+                    y1 = Math.max( y1, p.y );
+                    z1 = Math.max( z1, p.z );
+                }
+
+                b[o  ] = x0;
+                b[o+1] = y0;
+                b[o+2] = z0;
+                b[o+3] = x1;
+                b[o+4] = y1;
+                b[o+5] = z1;
+
+            } else {
+                int l = mLeft[n] * 6;
+                int r = mRight[n] * 6;
+                for( int i = 0; i < 3; i++ ) {
+                    b[o+i  ] = Math.min( b[l+i  ], b[r+i  ] );
+                    b[o+i+3] = Math.max( b[l+i+3], b[r+i+3] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to a RenderList all items in nodes that intersect the frustum
+     * defined by a model-to-normalized transform and a box in normalized
+     * device coordinates.
+     *
+     * @param modelToNormMat Model-to-normalized transform.
+     * @param optNormBounds  Box in normalized coordinates. If null, the full [-1,1] cube is used.
+     * @param out            Receives items.
+     * @return number of items added.
+     */
+    public int query( Mat4 modelToNormMat, Box3 optNormBounds, RenderList<T> out ) {
+        final int n = cull( modelToNormMat, optNormBounds );
+        final int[] ranges = mRanges;
+        int count = 0;
+
+        for( int i = 0; i < n; i += 2 ) {
+            int len = ranges[i+1] - ranges[i];
+            out.add( mItems, ranges[i], len );
+            count += len;
+        }
+
+        return count;
+    }
+
+    /**
+     * Finds items in nodes that intersect a frustum, as with <tt>query()</tt>,
+     * without adding them anywhere. Results are written to <tt>rangesRef()</tt>
+     * as start, stop pairs of indices into <tt>itemsRef()</tt>, in ascending
+     * order with adjacent ranges merged. The same visible nodes always give
+     * the same ranges, so callers can compare results between frames.
+     *
+     * @return number of ints written to <tt>rangesRef()</tt>, which is twice the number of ranges.
+     */
+    public int cull( Mat4 modelToNormMat, Box3 optNormBounds ) {
+        if( mNodeCount == 0 ) {
+            return 0;
+        }
+
+        if( optNormBounds == null ) {
+            computePlanes( modelToNormMat, -1, -1, -1, 1, 1, 1, mPlanes );
+        } else {
+            computePlanes( modelToNormMat,
+                           optNormBounds.x0, optNormBounds.y0, optNormBounds.z0,
+                           optNormBounds.x1, optNormBounds.y1, optNormBounds.z1,
+                           mPlanes );
+        }
+
+        final float[] planes = mPlanes;
+        final float[] b = mBounds;
+        int[] stack = mStack;
+        int[] ranges = mRanges;
+        int sp = 0;
+        int count = 0;
+
+        stack[sp++] = 0;
+
+        while( sp > 0 ) {
+            int n = stack[--sp];
+            int o = n * 6;
+            boolean inside = true;
+            boolean outside = false;
+
+            for( int p = 0; p < 24; p += 4 ) {
+                float a = planes[p  ];
+                float c = planes[p+1];
+                float e = planes[p+2];
+                float d = planes[p+3];
+
+                // Farthest corner along plane normal.
+                float far = a * ( a >= 0 ? b[o+3] : b[o  ] ) +
+                            c * ( c >= 0 ? b[o+4] : b[o+1] ) +
+                            e * ( e >= 0 ? b[o+5] : b[o+2] ) + d;
+                if( far < 0 ) {
+                    outside = true;
+                    break;
+                }
+
+                // Nearest corner along plane normal.
+                float near = a * ( a >= 0 ? b[o  ] : b[o+3] ) +
+                             c * ( c >= 0 ? b[o+1] : b[o+4] ) +
+                             e * ( e >= 0 ? b[o+2] : b[o+5] ) + d;
+                if( near < 0 ) {
+                    inside = false;
+                }
+            }
+
+            if( outside ) {
+                continue;
+            }
+
+            if( inside || mLeft[n] < 0 ) {
+                // Left children are visited first, so ranges arrive in order.
+                if( count > 0 && ranges[count-1] == mStart[n] ) {
+                    ranges[count-1] = mStop[n];
+                } else {
+                    if( count + 2 > ranges.length ) {
+                        ranges = mRanges = java.util.Arrays.copyOf( ranges, ranges.length * 2 );
+                    }
+                    ranges[count++] = mStart[n];
+                    ranges[count++] = mStop[n];
+                }
+                continue;
+            }
+
+            if( sp + 2 > stack.length ) {
+                stack = mStack = java.util.Arrays.copyOf( stack, stack.length * 2 );
+            }
+            stack[sp++] = mRight[n];
+            stack[sp++] = mLeft[n];
+        }
+
+        return count;
+    }
+
+    /**
+     * @return direct reference to ranges found by last call to <tt>cull()</tt>.
+     */
+    public int[] rangesRef() {
+        return mRanges;
+    }
+
+    /**
+     * Computes the six planes of a box in normalized device coordinates,
+     * transformed into model coordinates. A point <tt>p</tt> is inside the
+     * box if <tt>a*p.x + b*p.y + c*p.z + d >= 0</tt> for every plane.
+     *
+     * @param mat Model-to-normalized transform.
+     * @param out Receives 6 planes as (a,b,c,d) quadruplets.
+     */
+    public static void computePlanes( Mat4 mat,
+                                      float x0,
+                                      float y0,
+                                      float z0,
+                                      float x1,
+                                      float y1,
+                                      float z1,
+                                      float[] out )
+    {
+        plane( mat.m00, mat.m01, mat.m02, mat.m03, -x0, mat, 1, out, 0 );
+        plane( mat.m00, mat.m01, mat.m02, mat.m03,  x1, mat, -1, out, 4 );
+        plane( mat.m10, mat.m11, mat.m12, mat.m13, -y0, mat, 1, out, 8 );
+        plane( mat.m10, mat.m11, mat.m12, mat.m13,  y1, mat, -1, out, 12 );
+        plane( mat.m20, mat.m21, mat.m22, mat.m23, -z0, mat, 1, out, 16 );
+        plane( mat.m20, mat.m21, mat.m22, mat.m23,  z1, mat, -1, out, 20 );
+    }
+
+
+
+    /**
+     * Writes <tt>sign * row + w * row3</tt>.
+     */
+    private static void plane( float r0, float r1, float r2, float r3,
+                               float w,
+                               Mat4 mat,
+                               float sign,
+                               float[] out,
+                               int off )
+    {
+        out[off  ] = sign * r0 + w * mat.m30;
+        out[off+1] = sign * r1 + w * mat.m31;
+        out[off+2] = sign * r2 + w * mat.m32;
+        out[off+3] = sign * r3 + w * mat.m33;
+    }
+
+
+    private int buildNode( int start, int stop ) {
+        int n = mNodeCount++;
+        mStart[n] = start;
+        mStop[n]  = stop;
+
+        if( stop - start <= LEAF_SIZE ) {
+            mLeft[n]  = -1;
+            mRight[n] = -1;
+            return n;
+        }
+
+        // Split at median along longest axis of item positions.
+        float x0 = Float.POSITIVE_INFINITY, y0 = Float.POSITIVE_INFINITY, z0 = Float.POSITIVE_INFINITY;
+        float x1 = Float.NEGATIVE_INFINITY, y1 = Float.NEGATIVE_INFINITY, z1 = Float.NEGATIVE_INFINITY;
+
+        for( int i = start; i < stop; i++ ) {
+            Vec3 p = mItems[i].pos();
+            x0 = Math.min( x0, p.x );
+            y0 = Math.min( y0, p.y );
+            z0 = Math.min( z0, p.z );
+            x1 = Math.max( x1, p.x );
+            y1 = Math.max( y1, p.y );
+            z1 = Math.max( z1, p.z );
+        }
+
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        float dz = z1 - z0;
+        int axis = dx >= dy && dx >= dz ? 0 : dy >= dz ? 1 : 2;
+
+        int mid = ( start + stop ) >>> 1;
+        select( mItems, start, stop - 1, mid, axis );
+
+        mLeft[n]  = buildNode( start, mid );
+        mRight[n] = buildNode( mid, stop );
+        return n;
+    }
+
+    /**
+     * Quickselect. Rearranges items such that the item at <tt>k</tt> has
+     * the coordinate it would have if sorted, with smaller or equal items
+     * before it and larger or equal items after it.
+     */
+    private static <T extends PosObject> void select( T[] a, int lo, int hi, int k, int axis ) {
+        while( hi > lo ) {
+            float pivot = coord( a[( lo + hi ) >>> 1], axis );
+            int i = lo;
+            int j = hi;
+
+            while( i <= j ) {
+                while( coord( a[i], axis ) < pivot ) {
+                    i++;
+                }
+                while( coord( a[j], axis ) > pivot ) {
+                    j--;
+                }
+                if( i <= j ) {
+                    T t = a[i];
+                    a[i] = a[j];
+                    a[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+
+            if( k <= j ) {
+                hi = j;
+            } else if( k >= i ) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+
+    private static float coord( PosObject p, int axis ) {
+        Vec3 v = p.pos();
+        return axis == 0 ? v.x : axis == 1 ? v.y : v.z;
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Assembles a grid of equally sized tiles into a single image and streams
+ * it to a RowSink. Tiles must be added in row-major order, starting with the
+ * top-left tile. Only one row of tiles is held in memory; each row is
+ * written out and its memory reused as soon as its last tile arrives.
+ *
+ * @author decamp
+ */
+public class TileCompositor {
+
+    private final RowSink mSink;
+    private final int mTileWidth;
+    private final int mTileHeight;
+    private final int mCols;
+    private final int mRows;
+    private final int mPixelBytes;
+    private final int mStride;
+
+    private byte[] mBand;
+    private int mTileCount = 0;
+
+
+    /**
+     * @param sink       Receives composited image, which is <tt>cols * tileWidth</tt> pixels wide
+     *                   and <tt>rows * tileHeight</tt> pixels high.
+     * @param tileWidth  Width of each tile.
+     * @param tileHeight Height of each tile.
+     * @param cols       Number of tile columns.
+     * @param rows       Number of tile rows.
+     * @param pixelBytes Bytes per pixel.
+     */
+    public TileCompositor( RowSink sink,
+                           int tileWidth,
+                           int tileHeight,
+                           int cols,
+                           int rows,
+                           int pixelBytes )
+    {
+        mSink       = sink;
+        mTileWidth  = tileWidth;
+        mTileHeight = tileHeight;
+        mCols       = cols;
+        mRows       = rows;
+        mPixelBytes = pixelBytes;
+        mStride     = cols * tileWidth * pixelBytes;
+        mBand       = new byte[mStride * tileHeight];
+    }
+
+
+
+    public int width() {
+        return mCols * mTileWidth;
+    }
+
+
+    public int height() {
+        return mRows * mTileHeight;
+    }
+
+
+    public int tileCount() {
+        return mTileCount;
+    }
+
+
+    public boolean isComplete() {
+        return mTileCount == mCols * mRows;
+    }
+
+    /**
+     * Adds next tile.
+     *
+     * @param in       Tile data, starting at <tt>in.position()</tt>. Position is moved to end of data.
+     * @param flipRows If true, rows are stored bottom-up, as read from OpenGL.
+     */
+    public void addTile( ByteBuffer in, boolean flipRows ) throws IOException {
+        if( isComplete() ) {
+            throw new IOException( "All tiles have been added." );
+        }
+
+        final int col      = mTileCount % mCols;
+        final int tileRow  = mTileWidth * mPixelBytes;
+        final int pos      = in.position();
+        final ByteBuffer src = in.duplicate();
+
+        for( int y = 0; y < mTileHeight; y++ ) {
+            int srcRow = flipRows ? mTileHeight - 1 - y : y;
+            src.limit( pos + ( srcRow + 1 ) * tileRow ).position( pos + srcRow * tileRow );
+            src.get( mBand, y * mStride + col * tileRow, tileRow );
+        }
+
+        in.position( pos + tileRow * mTileHeight );
+        mTileCount++;
+
+        if( col == mCols - 1 ) {
+            mSink.writeRows( mBand, 0, mTileHeight );
+        }
+    }
+
+    /**
+     * Closes sink. If tiles are missing, the sink is still closed, and an exception is thrown.
+     */
+    public void close() throws IOException {
+        boolean complete = isComplete();
+        mBand = null;
+        mSink.close();
+        if( !complete ) {
+            throw new IOException( "Closed after " + mTileCount + " of " + ( mCols * mRows ) + " tiles." );
+        }
+    }
+
+}
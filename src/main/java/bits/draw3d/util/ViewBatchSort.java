@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.util.concurrent.*;
+
+import bits.draw3d.DrawEnv;
+import bits.draw3d.PosObject;
+import bits.math3d.*;
+import bits.math3d.geom.Volume;
+
+
+/**
+ * Sorts one set of items against several views at once. Each item position
+ * is read once and transformed by every view matrix in the same pass, which
+ * is much cheaper than updating a separate RenderList per view when the
+ * item set is large, as with screenshot tiles or multiple viewports.
+ * <p>
+ * Item state is never modified. Results are stored per view as an array
+ * of item indices in draw order, using the same ordering and culling rules
+ * as <tt>RenderList.create( clazz, capacity, sortOrder, cullVolume )</tt>.
+ *
+ * @author decamp
+ */
+public class ViewBatchSort {
+
+    public static final boolean BACK_TO_FRONT = RenderList.BACK_TO_FRONT;
+    public static final boolean FRONT_TO_BACK = RenderList.FRONT_TO_BACK;
+
+
+    public static ViewBatchSort create( int maxViews ) {
+        return create( maxViews, BACK_TO_FRONT, null );
+    }
+
+
+    public static ViewBatchSort create( int maxViews, boolean sortOrder, Volume optCullVolume ) {
+        return new ViewBatchSort( maxViews, sortOrder, optCullVolume );
+    }
+
+
+
+    private final int mMaxViews;
+    private final boolean mBackToFront;
+    private final Volume mCullBounds;
+
+    private final Mat4[] mMats;
+    private final RadixSort[] mRadix;
+    private final int[][] mKeys;
+    private final int[][] mOrder;
+    private final int[] mRenderStop;
+    private final float[] mWork;
+
+    private final Mat4 mProjWork = new Mat4();
+    private final Mat4 mViewWork = new Mat4();
+
+    private int mViewCount = 0;
+    private int mCapacity  = 0;
+
+    private ForkJoinPool mPool = null;
+
+
+    private ViewBatchSort( int maxViews, boolean sortOrder, Volume cullBounds ) {
+        mMaxViews    = Math.max( 1, maxViews );
+        mBackToFront = sortOrder == BACK_TO_FRONT;
+        mCullBounds  = cullBounds;
+        mMats        = new Mat4[mMaxViews];
+        mRadix       = new RadixSort[mMaxViews];
+        mKeys        = new int[mMaxViews][];
+        mOrder       = new int[mMaxViews][];
+        mRenderStop  = new int[mMaxViews];
+        mWork        = new float[mMaxViews * 16];
+
+        for( int i = 0; i < mMaxViews; i++ ) {
+            mMats[i]  = new Mat4();
+            mRadix[i] = new RadixSort();
+            mKeys[i]  = new int[0];
+            mOrder[i] = new int[0];
+        }
+    }
+
+
+
+    public int maxViews() {
+        return mMaxViews;
+    }
+
+
+    public int viewCount() {
+        return mViewCount;
+    }
+
+
+    public void viewCount( int count ) {
+        if( count < 0 || count > mMaxViews ) {
+            throw new IllegalArgumentException( "View count must be in [0," + mMaxViews + "]" );
+        }
+        mViewCount = count;
+    }
+
+    /**
+     * @return direct reference to model-to-normalized transform of a view.
+     */
+    public Mat4 viewMatRef( int view ) {
+        return mMats[view];
+    }
+
+
+    public void setView( int view, Mat4 modelToNormMat ) {
+        Mat.put( modelToNormMat, mMats[view] );
+    }
+
+
+    public void setView( int view, DrawEnv d ) {
+        Mat.put( d.mView.get(), mViewWork );
+        Mat.put( d.mProj.get(), mProjWork );
+        Mat.mult( mProjWork, mViewWork, mMats[view] );
+    }
+
+    /**
+     * Sets a pool on which per-view sorts are run after the shared
+     * transform pass.
+     *
+     * @param optPool Pool to use, or null to sort on the calling thread.
+     */
+    public void parallelSort( ForkJoinPool optPool ) {
+        mPool = optPool;
+    }
+
+    /**
+     * Transforms and sorts a set of items against all views.
+     *
+     * @param items Items to sort.
+     * @param off   Offset into array.
+     * @param len   Number of items.
+     */
+    public void update( PosObject[] items, int off, int len ) {
+        ensureCapacity( len );
+        prepareMats();
+        for( int v = 0; v < mViewCount; v++ ) {
+            mRenderStop[v] = 0;
+        }
+
+        for( int i = 0; i < len; i++ ) {
+            Vec3 p = items[off + i].pos();
+            transformItem( i, p.x, p.y, p.z );
+        }
+
+        sortViews();
+    }
+
+    /**
+     * Transforms and sorts a set of points, packed as in <tt>PackedRenderList</tt>,
+     * against all views.
+     *
+     * @param xyz   Array of x,y,z triplets.
+     * @param off   Offset into array.
+     * @param count Number of points (not floats).
+     */
+    public void update( float[] xyz, int off, int count ) {
+        ensureCapacity( count );
+        prepareMats();
+        for( int v = 0; v < mViewCount; v++ ) {
+            mRenderStop[v] = 0;
+        }
+
+        for( int i = 0; i < count; i++ ) {
+            int j = off + i * 3;
+            transformItem( i, xyz[j], xyz[j+1], xyz[j+2] );
+        }
+
+        sortViews();
+    }
+
+    /**
+     * After update, <tt>indexArr( view )[0 ... renderStopIndex( view )-1]</tt>
+     * holds the indices of items visible in a view, in draw order. Indices
+     * are relative to the offset passed to <tt>update()</tt>.
+     *
+     * @return direct reference to index array of view.
+     */
+    public int[] indexArr( int view ) {
+        return mOrder[view];
+    }
+
+
+    public int renderStopIndex( int view ) {
+        return mRenderStop[view];
+    }
+
+    /**
+     * Replaces contents of a RenderList with the sorted, visible items of a
+     * view, and sets its render range to cover them. The list should be drawn
+     * without calling <tt>updateSort()</tt>, which would sort against the
+     * list's own transform.
+     *
+     * @param view  View to copy.
+     * @param items Array passed to <tt>update()</tt>.
+     * @param off   Offset passed to <tt>update()</tt>.
+     * @param out   Receives items.
+     */
+    public <T> void fill( int view, T[] items, int off, RenderList<T> out ) {
+        final int[] order = mOrder[view];
+        final int n = mRenderStop[view];
+
+        out.clear();
+        for( int i = 0; i < n; i++ ) {
+            out.add( items[off + order[i]] );
+        }
+        out.mRenderStart = 0;
+        out.mRenderStop  = n;
+    }
+
+
+
+    private void ensureCapacity( int len ) {
+        if( mCapacity >= len ) {
+            return;
+        }
+
+        int cap = Pots.ceilPot( len );
+        for( int v = 0; v < mMaxViews; v++ ) {
+            mKeys[v]  = new int[cap];
+            mOrder[v] = new int[cap];
+        }
+        mCapacity = cap;
+    }
+
+    /**
+     * Copies view matrices into a flat array, which keeps the inner loop
+     * of the transform pass on a single block of memory.
+     */
+    private void prepareMats() {
+        final float[] w = mWork;
+        for( int v = 0; v < mViewCount; v++ ) {
+            Mat4 m = mMats[v];
+            int o = v * 16;
+            w[o   ] = m.m00; w[o+ 1] = m.m01; w[o+ 2] = m.m02; w[o+ 3] = m.m03;
+            w[o+ 4] = m.m10; w[o+ 5] = m.m11; w[o+ 6] = m.m12; w[o+ 7] = m.m13;
+            w[o+ 8] = m.m20; w[o+ 9] = m.m21; w[o+10] = m.m22; w[o+11] = m.m23;
+            w[o+12] = m.m30; w[o+13] = m.m31; w[o+14] = m.m32; w[o+15] = m.m33;
+        }
+    }
+
+
+    private void transformItem( int idx, float x, float y, float z ) {
+        final float[] w     = mWork;
+        final Volume cull   = mCullBounds;
+        final boolean back  = mBackToFront;
+        final int views     = mViewCount;
+
+        for( int v = 0; v < views; v++ ) {
+            int o = v * 16;
+            float iw = 1.0f / ( w[o+12]*x + w[o+13]*y + w[o+14]*z + w[o+15] );
+            float nz = ( w[o+8]*x + w[o+9]*y + w[o+10]*z + w[o+11] ) * iw;
+
+            if( cull != null ) {
+                float nx = ( w[o  ]*x + w[o+1]*y + w[o+ 2]*z + w[o+ 3] ) * iw;
+                float ny = ( w[o+4]*x + w[o+5]*y + w[o+ 6]*z + w[o+ 7] ) * iw;
+                if( !cull.contains( nx, ny, nz ) ) {
+                    continue;
+                }
+            }
+
+            int k = RadixSort.floatKey( nz );
+            int n = mRenderStop[v]++;
+            mKeys[v][n]  = back ? ~k : k;
+            mOrder[v][n] = idx;
+        }
+    }
+
+
+    private void sortViews() {
+        if( mPool == null || mViewCount < 2 ) {
+            for( int v = 0; v < mViewCount; v++ ) {
+                mRadix[v].sort( mKeys[v], mOrder[v], 0, mRenderStop[v] );
+            }
+            return;
+        }
+
+        // invoke() rethrows any failure from a view's sort.
+        mPool.invoke( new SortTask( 0, mViewCount ) );
+    }
+
+
+
+    /**
+     * Sorts a range of views, splitting until each task holds one view.
+     */
+    @SuppressWarnings( "serial" )
+    private final class SortTask extends RecursiveAction {
+
+        private final int mStart;
+        private final int mStop;
+
+        SortTask( int start, int stop ) {
+            mStart = start;
+            mStop  = stop;
+        }
+
+
+        @Override
+        protected void compute() {
+            if( mStop - mStart == 1 ) {
+                mRadix[mStart].sort( mKeys[mStart], mOrder[mStart], 0, mRenderStop[mStart] );
+                return;
+            }
+
+            int mid = ( mStart + mStop ) >>> 1;
+            invokeAll( new SortTask( mStart, mid ), new SortTask( mid, mStop ) );
+        }
+    }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.vizzy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+import bits.draw3d.*;
+import bits.draw3d.camera.CameraNode;
+import bits.draw3d.util.*;
+import bits.util.OutputFileNamer;
+
+
+/**
+ * Keeps a bounded, in-memory history of recently rendered frames, so that
+ * the last several seconds can be saved after something interesting happens.
+ * Frames are read back asynchronously and compressed with fast deflate on
+ * worker threads. The history is bounded both by duration and by total
+ * compressed size; the oldest frames are discarded first.
+ * <p>
+ * If workers fall behind, frames are skipped rather than stalling the render
+ * loop. <tt>saveReplay()</tt> writes the current history as a PNG sequence
+ * on worker threads.
+ *
+ * @author decamp
+ */
+public class ReplayBufferNode extends DrawNodeAdapter {
+
+    public static final long DEFAULT_MEMORY_CAP = 1L << 30;
+    public static final long DEFAULT_DURATION_MICROS = 30000000L;
+
+
+    private final File mOutDir;
+    private final CameraNode mCamera;
+    private final long mMemoryCap;
+    private final long mDurationNanos;
+    private final int mMaxPending;
+
+    private final ExecutorService mExec;
+    private final ScreenshotSaver mSaver = new ScreenshotSaver();
+    private AsyncScreenshotSaver mCapture = null;
+
+    private final ConcurrentSkipListMap<Long, Frame> mFrames = new ConcurrentSkipListMap<Long, Frame>();
+    private final AtomicLong mBytes = new AtomicLong( 0 );
+    // Captures not yet stored or failed. Accessed only on GL thread.
+    private final List<Future<?>> mPending = new ArrayList<Future<?>>();
+    private long mSeq = 0;
+
+    private volatile boolean mEnabled = true;
+    private int mAlphaOp = ScreenshotSaver.ALPHA_COPY;
+
+    private final ThreadLocal<byte[][]> mScratch = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[2][0];
+        }
+    };
+
+
+    public ReplayBufferNode( File outDir, CameraNode camera ) {
+        this( outDir, camera, DEFAULT_DURATION_MICROS, DEFAULT_MEMORY_CAP );
+    }
+
+    /**
+     * @param outDir         Directory in which replays are saved. Each replay gets its own subdirectory.
+     * @param camera         Camera providing viewport to capture.
+     * @param durationMicros Length of history to keep.
+     * @param memoryCap      Maximum total size of compressed frames, in bytes.
+     */
+    public ReplayBufferNode( File outDir, CameraNode camera, long durationMicros, long memoryCap ) {
+        mOutDir        = outDir;
+        mCamera        = camera;
+        mDurationNanos = durationMicros * 1000L;
+        mMemoryCap     = memoryCap;
+
+        int threads = Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 );
+        mMaxPending = threads * 2;
+        mExec = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+            public Thread newThread( Runnable r ) {
+                Thread t = new Thread( r, "ReplayBuffer" );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+    }
+
+
+
+    public void enabled( boolean enable ) {
+        mEnabled = enable;
+        if( !enable ) {
+            clear();
+        }
+    }
+
+
+    public boolean enabled() {
+        return mEnabled;
+    }
+
+
+    public void alphaOp( int alphaOp ) {
+        mAlphaOp = alphaOp;
+    }
+
+    /**
+     * @return number of frames currently held.
+     */
+    public int frameCount() {
+        return mFrames.size();
+    }
+
+    /**
+     * @return total size of compressed frames currently held, in bytes.
+     */
+    public long memoryUsed() {
+        return mBytes.get();
+    }
+
+
+    public void clear() {
+        Map.Entry<Long, Frame> e;
+        while( ( e = mFrames.pollFirstEntry() ) != null ) {
+            mBytes.addAndGet( -e.getValue().mData.length );
+        }
+    }
+
+    /**
+     * Writes current history to a new subdirectory of the output directory
+     * as a PNG sequence. Returns immediately; frames are decompressed and
+     * encoded on worker threads.
+     *
+     * @return future that provides directory once all frames are written.
+     */
+    public Future<File> saveReplay() {
+        final List<Frame> frames = new ArrayList<Frame>( mFrames.values() );
+        if( !mOutDir.exists() ) {
+            mOutDir.mkdirs();
+        }
+        final File dir = new OutputFileNamer( mOutDir, "replay", "", 3 ).next();
+        dir.mkdirs();
+
+        final List<Future<Object>> parts = new ArrayList<Future<Object>>( frames.size() );
+        for( int i = 0; i < frames.size(); i++ ) {
+            final Frame frame = frames.get( i );
+            final File file = new File( dir, String.format( "%05d.png", i ) );
+            parts.add( mExec.submit( new Callable<Object>() {
+                public Object call() throws IOException, DataFormatException {
+                    writeFrame( frame, file );
+                    return null;
+                }
+            } ) );
+        }
+
+        FutureTask<File> ret = new FutureTask<File>( new Callable<File>() {
+            public File call() throws Exception {
+                for( Future<Object> f: parts ) {
+                    f.get();
+                }
+                System.out.println( "Saved replay: " + dir.getPath() );
+                return dir;
+            }
+        } );
+
+        Thread t = new Thread( ret, "ReplayWriter" );
+        t.setDaemon( true );
+        t.start();
+        return ret;
+    }
+
+
+    /**
+     * Flushes pending captures and shuts down workers once queued work,
+     * including replays being saved, has finished.
+     */
+    @Override
+    public void dispose( DrawEnv d ) {
+        if( mCapture != null ) {
+            mCapture.dispose( d );
+            mCapture = null;
+        }
+        mPending.clear();
+        mExec.shutdown();
+        clear();
+    }
+
+
+    @Override
+    public void popDraw( DrawEnv d ) {
+        if( mCapture == null ) {
+            mCapture = new AsyncScreenshotSaver( mSaver, AsyncScreenshotSaver.DEFAULT_RING_SIZE, mExec );
+        }
+
+        mCapture.poll( d );
+        if( !mEnabled ) {
+            return;
+        }
+
+        // Count captures until their futures complete, which happens whether
+        // they are stored, fail to map, or are rejected.
+        for( Iterator<Future<?>> it = mPending.iterator(); it.hasNext(); ) {
+            if( it.next().isDone() ) {
+                it.remove();
+            }
+        }
+
+        // Skip frame rather than block if compression is behind. Capture
+        // blocks the GL thread beyond its in-flight limit, so stay under it.
+        if( mPending.size() >= Math.min( mMaxPending, mCapture.maxInFlight() ) ) {
+            return;
+        }
+
+        final long seq   = mSeq++;
+        final long nanos = System.nanoTime();
+        Rect box = mCamera.viewportRef();
+
+        mPending.add( mCapture.capture( d, box.x0, box.y0, box.width(), box.height(), mAlphaOp,
+                                        new AsyncScreenshotSaver.FrameHandler<Object>() {
+            public Object handle( ByteBuffer rgba, int w, int h ) {
+                store( seq, nanos, rgba, w, h );
+                return null;
+            }
+        } ) );
+    }
+
+
+
+    private void store( long seq, long nanos, ByteBuffer rgba, int w, int h ) {
+        final int len = w * h * 4;
+        byte[][] scratch = mScratch.get();
+        if( scratch[0].length < len ) {
+            scratch[0] = new byte[len];
+            scratch[1] = new byte[len + len / 100 + 1024];
+        }
+
+        byte[] raw = scratch[0];
+        byte[] comp = scratch[1];
+        rgba.duplicate().get( raw, 0, len );
+
+        // Deflater holds native memory, so one is made per frame and freed here
+        // rather than cached on worker threads that outlive this node.
+        Deflater def = new Deflater( Deflater.BEST_SPEED );
+        int n = 0;
+        try {
+            def.setInput( raw, 0, len );
+            def.finish();
+            while( !def.finished() ) {
+                if( n == comp.length ) {
+                    comp = scratch[1] = Arrays.copyOf( comp, comp.length * 2 );
+                }
+                n += def.deflate( comp, n, comp.length - n );
+            }
+        } finally {
+            def.end();
+        }
+
+        if( !mEnabled ) {
+            return;
+        }
+
+        Frame frame = new Frame( nanos, w, h, Arrays.copyOf( comp, n ) );
+        mFrames.put( seq, frame );
+        mBytes.addAndGet( n );
+        evict( nanos );
+    }
+
+
+    private void evict( long newestNanos ) {
+        while( true ) {
+            Map.Entry<Long, Frame> e = mFrames.firstEntry();
+            if( e == null || mFrames.size() <= 1 ) {
+                return;
+            }
+            Frame f = e.getValue();
+            if( mBytes.get() <= mMemoryCap && newestNanos - f.mNanos <= mDurationNanos ) {
+                return;
+            }
+            if( mFrames.remove( e.getKey(), f ) ) {
+                mBytes.addAndGet( -f.mData.length );
+            }
+        }
+    }
+
+
+    private void writeFrame( Frame frame, File file ) throws IOException, DataFormatException {
+        final int len = frame.mWidth * frame.mHeight * 4;
+        DirectBufferPool pool = mSaver.bufferPool();
+        ByteBuffer buf = pool.acquire( len );
+        Inflater inf = new Inflater();
+
+        try {
+            byte[] raw = new byte[len];
+            inf.setInput( frame.mData );
+            int n = 0;
+            while( n < len ) {
+                int k = inf.inflate( raw, n, len - n );
+                if( k == 0 && ( inf.finished() || inf.needsInput() ) ) {
+                    throw new EOFException( "Truncated replay frame." );
+                }
+                n += k;
+            }
+            buf.put( raw, 0, len ).flip();
+            mSaver.savePng( buf, frame.mWidth, frame.mHeight, file );
+        } finally {
+            inf.end();
+            pool.release( buf );
+        }
+    }
+
+
+    private static final class Frame {
+        final long mNanos;
+        final int mWidth;
+        final int mHeight;
+        final byte[] mData;
+
+        Frame( long nanos, int w, int h, byte[] data ) {
+            mNanos  = nanos;
+            mWidth  = w;
+            mHeight = h;
+            mData   = data;
+        }
+    }
+
+}
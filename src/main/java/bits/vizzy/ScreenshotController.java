@@ -7,12 +7,15 @@
 package bits.vizzy;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 
 import bits.draw3d.*;
 import bits.draw3d.camera.CameraNode;
 import bits.draw3d.util.*;
 import bits.microtime.*;
+import bits.util.OutputFileNamer;
 
 
 /**
@@ -30,8 +33,22 @@ public class ScreenshotController extends DrawNodeAdapter {
     private final CameraNode     mCamera;
 
     private ScreenshotSaver mSaver = null;
+    private AsyncScreenshotSaver mAsyncSaver = null;
+    // Asynchronous screenshots not yet reported, in order of capture.
+    private final Deque<Future<File>> mShotFiles = new ArrayDeque<Future<File>>();
+    private boolean mAsync = false;
+    private boolean mPyramid = false;
+    private boolean mDedup = false;
 
     private boolean mTakeScreenshot = false;
+    private boolean mRecording = false;
+    private int mRecordAlphaOp = ALPHA_COPY;
+    // Reads back video frames. Runs handlers on one thread so frames stay in order.
+    private AsyncScreenshotSaver mRecordSaver = null;
+    private ExecutorService mRecordExec = null;
+    private final Deque<Future<Boolean>> mRecordFrames = new ArrayDeque<Future<Boolean>>();
+    // Recording thread of a stopped recording, which closes its video once frames are written.
+    private ExecutorService mClosingExec = null;
 
     private boolean mTimeStopped = false;
     private boolean mTiledShot   = false;
@@ -40,8 +57,9 @@ public class ScreenshotController extends DrawNodeAdapter {
     private int     mTilePos     = -1;
     private int     mAlphaOp     = 0;
 
-    private File       mTileDir = null;
-    private List<File> mTiles   = null;
+    private File           mTileFile   = null;
+    private TileCompositor mCompositor = null;
+    private ByteBuffer     mTileBuffer = null;
 
 
     public ScreenshotController( File outDir, PlayController playCont, CameraNode camera ) {
@@ -51,6 +69,111 @@ public class ScreenshotController extends DrawNodeAdapter {
     }
 
 
+    /**
+     * When enabled, untiled screenshots are read back through pixel buffer
+     * objects and encoded on worker threads, so capturing does not stall
+     * the frame.
+     */
+    public void asyncCapture( boolean enable ) {
+        mAsync = enable;
+    }
+
+
+    public boolean asyncCapture() {
+        return mAsync;
+    }
+
+
+    /**
+     * When enabled, tiled screenshots are written as a Deep Zoom tile pyramid
+     * instead of a single PNG.
+     */
+    public void pyramidOutput( boolean enable ) {
+        mPyramid = enable;
+    }
+
+
+    public boolean pyramidOutput() {
+        return mPyramid;
+    }
+
+
+    /**
+     * When enabled, screenshots with pixels identical to one already saved
+     * are written as hard links instead of being encoded again. Useful when
+     * capturing every frame of a stepped render that pauses.
+     */
+    public void dedupFrames( boolean enable ) {
+        mDedup = enable;
+        if( mSaver != null ) {
+            mSaver.deduplicator( enable ? new FrameDeduplicator() : null );
+        }
+    }
+
+
+    public boolean dedupFrames() {
+        return mDedup;
+    }
+
+
+    /**
+     * Starts recording every frame to a Motion-JPEG AVI file in the output
+     * directory. With a stepping clock, each frame of the video is one step.
+     * Frames are read back asynchronously, so recording does not stall
+     * the render loop on the GPU.
+     *
+     * @param fps     Frame rate of video.
+     * @param quality JPEG quality, from 0 to 1.
+     */
+    public void startRecording( double fps, float quality ) {
+        if( mRecording )
+            return;
+        
+        if( mRecordSaver != null ) {
+            // Stopped but not yet finished. Continue current video.
+            mRecording = true;
+            return;
+        }
+        
+        try {
+            ensureSaver();
+            awaitClose();
+            File file = new OutputFileNamer( mSaver.outputDir(), "video", ".avi", 3 ).next();
+            mSaver.openVideo( file, fps, quality );
+            mRecording = true;
+            System.out.println( "Recording: " + file.getPath() );
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+    }
+    
+    
+    /**
+     * Stops recording. If frames are still being read back, the video is
+     * closed on the next frame, once they have been written.
+     */
+    public void stopRecording() {
+        if( !mRecording )
+            return;
+        
+        mRecording = false;
+        if( mRecordSaver == null ) {
+            // No frames in flight.
+            closeVideo( mSaver );
+        }
+    }
+    
+    
+    public boolean isRecording() {
+        return mRecording;
+    }
+    
+    
+    public void recordAlphaOp( int alphaOp ) {
+        mRecordAlphaOp = alphaOp;
+    }
+
+
     public void takeScreenshot() {
         takeScreenshot( 1, 1, ALPHA_COPY );
     }
@@ -84,77 +207,147 @@ public class ScreenshotController extends DrawNodeAdapter {
     
     
     
+    @Override
+    public void dispose( DrawEnv d ) {
+        stopRecording();
+        finishRecording( d );
+        if( mAsyncSaver != null ) {
+            mAsyncSaver.dispose( d );
+            mAsyncSaver = null;
+            mShotFiles.clear();
+        }
+    }
+    
+    
     @Override
     public void popDraw( DrawEnv d ) {
+        if( mAsyncSaver != null ) {
+            mAsyncSaver.poll( d );
+            while( !mShotFiles.isEmpty() && mShotFiles.peekFirst().isDone() ) {
+                try {
+                    File file = mShotFiles.removeFirst().get();
+                    System.out.println( "Saved: " + file.getPath() );
+                } catch( Exception ex ) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+        
+        if( mRecordSaver != null ) {
+            mRecordSaver.poll( d );
+            while( mRecording && !mRecordFrames.isEmpty() && mRecordFrames.peekFirst().isDone() ) {
+                try {
+                    mRecordFrames.removeFirst().get();
+                } catch( Exception ex ) {
+                    ex.printStackTrace();
+                    stopRecording();
+                }
+            }
+            if( !mRecording ) {
+                finishRecording( d );
+            }
+        }
+        
+        if( mRecording && !( mTakeScreenshot && mTiledShot ) ) {
+            if( mRecordSaver == null ) {
+                mRecordExec = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                    public Thread newThread( Runnable r ) {
+                        Thread t = new Thread( r, "VideoRecorder" );
+                        t.setDaemon( true );
+                        return t;
+                    }
+                } );
+                mRecordSaver = new AsyncScreenshotSaver( mSaver, AsyncScreenshotSaver.DEFAULT_RING_SIZE, mRecordExec );
+            }
+            Rect box = mCamera.viewportRef();
+            mRecordFrames.addLast( mRecordSaver.saveVideoFrame( d, box.x0, box.y0, box.width(), box.height(), mRecordAlphaOp ) );
+        }
+        
         if( !mTakeScreenshot ) 
             return;
         
-        if( mSaver == null ) {
-            mSaver = new ScreenshotSaver();
-            mSaver.openOutputDir( mOutDir, true );
-        }
+        ensureSaver();
         
         if( !mTiledShot ) {
             Rect box = mCamera.viewportRef();
-            File file = mSaver.savePng( d, box.x0, box.y0, box.width(), box.height(), mAlphaOp );
-            
             mTakeScreenshot = false;
+            
+            if( mAsync ) {
+                if( mAsyncSaver == null ) {
+                    mAsyncSaver = new AsyncScreenshotSaver( mSaver, AsyncScreenshotSaver.DEFAULT_RING_SIZE, null );
+                }
+                File file = mSaver.nextPngFile();
+                mShotFiles.addLast( mAsyncSaver.savePng( d, box.x0, box.y0, box.width(), box.height(), mAlphaOp, file ) );
+                return;
+            }
+            
+            File file = mSaver.savePng( d, box.x0, box.y0, box.width(), box.height(), mAlphaOp );
             System.out.println( "Saved: " + file.getPath() );
             return;
         }
         
         
         if( mTilePos < 0 ) {
+            Rect box = mCamera.viewportRef();
+            mTileFile = mSaver.nextPngFile();
+            
             try {
-                mTileDir = File.createTempFile( "screenshot", null );
+                RowSink sink;
+                int w = box.width() * mTileCols;
+                int h = box.height() * mTileRows;
+                
+                if( mPyramid ) {
+                    // Drop reserved PNG name; pyramid is written under derived name.
+                    mTileFile.delete();
+                    String name = mTileFile.getName().replaceFirst( "\\.png$", ".dzi" );
+                    mTileFile = new File( mTileFile.getParentFile(), name );
+                    sink = new DziPyramidWriter( mTileFile,
+                                                 w, 
+                                                 h,
+                                                 DziPyramidWriter.DEFAULT_TILE_SIZE,
+                                                 ScreenshotSaver.COLOR_TYPE_RGBA,
+                                                 ScreenshotSaver.LEVEL_DEFAULT,
+                                                 null );
+                } else {
+                    sink = new PngStreamWriter( mTileFile, 
+                                                w, 
+                                                h, 
+                                                ScreenshotSaver.COLOR_TYPE_RGBA, 
+                                                ScreenshotSaver.LEVEL_DEFAULT );
+                }
+                
+                mCompositor = new TileCompositor( sink, box.width(), box.height(), mTileCols, mTileRows, 4 );
             } catch( IOException ex ) {
                 ex.printStackTrace();
-                mTakeScreenshot = false;
+                finishTiledShot();
                 return;
             }
-                
-            mTileDir.delete();
-            mTileDir.mkdir();
-            mTileDir.deleteOnExit();
-            mTiles = new ArrayList<File>( mTileCols * mTileRows );
             
         } else {
             Rect box = mCamera.viewportRef();
-            File file = new File( mTileDir, "screenshot_ " + mTilePos + ".png" );
-            file.deleteOnExit();
             
-            mSaver.savePng( d, box.x0, box.y0, box.width(), box.height(), mAlphaOp, file );
-            mTiles.add( file );
+            try {
+                if( mTileBuffer != null ) {
+                    mTileBuffer.clear();
+                }
+                mTileBuffer = mSaver.readRgba( d, box.x0, box.y0, box.width(), box.height(), mAlphaOp, mTileBuffer );
+                mTileBuffer.flip();
+                mCompositor.addTile( mTileBuffer, true );
+            } catch( IOException ex ) {
+                ex.printStackTrace();
+                finishTiledShot();
+                return;
+            }
         }
         
         mTilePos++;
         
         if( mTilePos >= mTileRows * mTileCols ) {
             // Screenshot has completed.
-            mTakeScreenshot = false;
-            mCamera.overrideTileViewport( null );
-            
-            // Resume clock.
-            if( mTimeStopped ) {
-                mPlayCont.control().clockStart();
-            }
-            
-            // Combine the tiles.
-            try {
-                File file = mSaver.nextPngFile();
-                ImageCombiner.combine( mTiles, mTileCols, mTileRows, file );
+            File file = mTileFile;
+            if( finishTiledShot() ) {
                 System.out.println( "Saved: " + file.getPath() );
-            } catch( IOException ex ) {
-                ex.printStackTrace();
-            }
-            
-            for( File f: mTiles ) {
-                f.delete();
             }
-            
-            mTileDir.delete();
-            mTiles = null;
-            mTileDir = null;
             return;
         }
         
@@ -163,10 +356,107 @@ public class ScreenshotController extends DrawNodeAdapter {
         mCamera.overrideTileViewport( tile );
     }
 
+    
+    /**
+     * Dispatches frames still being read back, then closes the video on the
+     * recording thread after they are written.
+     */
+    private void finishRecording( DrawEnv d ) {
+        if( mRecordSaver == null ) {
+            return;
+        }
+        
+        mRecordSaver.dispose( d );
+        mRecordSaver = null;
+        mRecordFrames.clear();
+        
+        final ScreenshotSaver saver = mSaver;
+        mRecordExec.execute( new Runnable() {
+            public void run() {
+                closeVideo( saver );
+            }
+        } );
+        mRecordExec.shutdown();
+        mClosingExec = mRecordExec;
+        mRecordExec  = null;
+    }
+    
+    
+    private void awaitClose() {
+        if( mClosingExec == null ) {
+            return;
+        }
+        
+        try {
+            mClosingExec.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+        } catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+        mClosingExec = null;
+    }
+    
+    
+    private static void closeVideo( ScreenshotSaver saver ) {
+        try {
+            saver.closeVideo();
+            System.out.println( "Recording stopped." );
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+        }
+    }
+    
+    
+    private void ensureSaver() {
+        if( mSaver == null ) {
+            mSaver = new ScreenshotSaver();
+            mSaver.openOutputDir( mOutDir, true );
+            if( mDedup ) {
+                mSaver.deduplicator( new FrameDeduplicator() );
+            }
+        }
+    }
+    
+    
+    /**
+     * Ends tiled screenshot, restoring camera and clock.
+     * 
+     * @return true if image was written successfully.
+     */
+    private boolean finishTiledShot() {
+        boolean ok = false;
+        
+        mTakeScreenshot = false;
+        mCamera.overrideTileViewport( null );
+        
+        // Resume clock.
+        if( mTimeStopped ) {
+            mPlayCont.control().clockStart();
+            mTimeStopped = false;
+        }
+        
+        if( mCompositor != null ) {
+            try {
+                mCompositor.close();
+                ok = true;
+            } catch( IOException ex ) {
+                ex.printStackTrace();
+            }
+        }
+        
+        if( !ok && mTileFile != null ) {
+            mTileFile.delete();
+        }
+        
+        mCompositor = null;
+        mTileFile   = null;
+        mTileBuffer = null;
+        return ok;
+    }
+    
    
     static Rect sliceTile( Rect viewport, int cols, int rows, int pos ) {
         int s = pos % cols;
-        int t = rows - 1 - pos / rows;
+        int t = rows - 1 - pos / cols;
         
         int x0 = viewport.x0 + viewport.width()  * s / cols;
         int y0 = viewport.y0 + viewport.height() * t / rows;
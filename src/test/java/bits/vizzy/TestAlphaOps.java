@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.vizzy;
+
+import java.nio.*;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import bits.draw3d.util.AlphaOps;
+
+
+/**
+ * Checks AlphaOps against the per-byte loops formerly used by ScreenshotSaver
+ * and compares their speed on a 4K frame.
+ *
+ * @author Philip DeCamp
+ */
+public class TestAlphaOps {
+
+    private static final String[] NAMES = { "COPY", "SATURATE", "MULTIPLY", "MULTIPLY_SATURATE", "DIVIDE" };
+
+
+    public static void main( String[] args ) throws Exception {
+        int w = 3840;
+        int h = 2160;
+        int len = w * h * 4;
+        int reps = 10;
+
+        ByteBuffer src = ByteBuffer.allocateDirect( len );
+        Random rand = new Random( 0 );
+        for( int i = 0; i < len; i++ ) {
+            src.put( (byte)rand.nextInt( 256 ) );
+        }
+        src.flip();
+
+        ByteBuffer a = ByteBuffer.allocateDirect( len );
+        ByteBuffer b = ByteBuffer.allocateDirect( len );
+        ForkJoinPool pool = new ForkJoinPool();
+
+        for( int op = AlphaOps.ALPHA_SATURATE; op <= AlphaOps.ALPHA_DIVIDE; op++ ) {
+            copy( src, a );
+            copy( src, b );
+            legacyOp( op, a, len );
+            AlphaOps.apply( op, b, len );
+            if( !a.equals( b ) ) {
+                throw new AssertionError( NAMES[op] + " does not match legacy result." );
+            }
+            copy( src, b );
+            AlphaOps.apply( pool, 0, op, b, len );
+            if( !a.equals( b ) ) {
+                throw new AssertionError( NAMES[op] + " (parallel) does not match legacy result." );
+            }
+
+            long legacy = 0;
+            long serial = 0;
+            long parallel = 0;
+
+            for( int r = 0; r < reps; r++ ) {
+                copy( src, a );
+                long t0 = System.nanoTime();
+                legacyOp( op, a, len );
+                long t1 = System.nanoTime();
+                copy( src, a );
+                long t2 = System.nanoTime();
+                AlphaOps.apply( op, a, len );
+                long t3 = System.nanoTime();
+                copy( src, a );
+                long t4 = System.nanoTime();
+                AlphaOps.apply( pool, AlphaOps.DEFAULT_MIN_PARALLEL, op, a, len );
+                long t5 = System.nanoTime();
+
+                // Skip first rep for warmup.
+                if( r > 0 ) {
+                    legacy   += t1 - t0;
+                    serial   += t3 - t2;
+                    parallel += t5 - t4;
+                }
+            }
+
+            System.out.format( "%-18s legacy: %7.2f ms  serial: %7.2f ms  parallel: %7.2f ms%n",
+                               NAMES[op],
+                               legacy   / 1e6 / ( reps - 1 ),
+                               serial   / 1e6 / ( reps - 1 ),
+                               parallel / 1e6 / ( reps - 1 ) );
+        }
+
+        pool.shutdown();
+    }
+
+
+    private static void copy( ByteBuffer src, ByteBuffer dst ) {
+        dst.clear();
+        dst.put( src.duplicate() );
+        dst.flip();
+    }
+
+
+    private static void legacyOp( int op, ByteBuffer buf, int len ) {
+        final int pos = buf.position();
+
+        switch( op ) {
+        case AlphaOps.ALPHA_SATURATE:
+            for( int i = 3; i < len; i += 4 ) {
+                buf.put( pos + i, (byte)0xFF );
+            }
+            break;
+
+        case AlphaOps.ALPHA_MULTIPLY:
+        case AlphaOps.ALPHA_MULTIPLY_SATURATE:
+            for( int i = 0; i < len; i += 4 ) {
+                int r = buf.get( pos + i     ) & 0xFF;
+                int g = buf.get( pos + i + 1 ) & 0xFF;
+                int b = buf.get( pos + i + 2 ) & 0xFF;
+                int a = buf.get( pos + i + 3 ) & 0xFF;
+
+                buf.put( pos + i    , (byte)( r * a / 255 ) );
+                buf.put( pos + i + 1, (byte)( g * a / 255 ) );
+                buf.put( pos + i + 2, (byte)( b * a / 255 ) );
+                buf.put( pos + i + 3, op == AlphaOps.ALPHA_MULTIPLY ? (byte)a : (byte)0xFF );
+            }
+            break;
+
+        case AlphaOps.ALPHA_DIVIDE:
+            for( int i = 0; i < len; i += 4 ) {
+                int r = buf.get( pos + i     ) & 0xFF;
+                int g = buf.get( pos + i + 1 ) & 0xFF;
+                int b = buf.get( pos + i + 2 ) & 0xFF;
+                int a = buf.get( pos + i + 3 ) & 0xFF;
+
+                if( a == 0 ) {
+                    buf.put( pos + i    , (byte)0 );
+                    buf.put( pos + i + 1, (byte)0 );
+                    buf.put( pos + i + 2, (byte)0 );
+                    buf.put( pos + i + 3, (byte)0 );
+                } else {
+                    buf.put( pos + i    , (byte)Math.min( 255, r * 255 / a ) );
+                    buf.put( pos + i + 1, (byte)Math.min( 255, g * 255 / a ) );
+                    buf.put( pos + i + 2, (byte)Math.min( 255, b * 255 / a ) );
+                    buf.put( pos + i + 3, (byte)a );
+                }
+            }
+            break;
+
+        default:
+        }
+    }
+
+}
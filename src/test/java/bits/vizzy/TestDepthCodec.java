@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.vizzy;
+
+import java.io.*;
+import java.nio.*;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import bits.draw3d.util.DepthCodec;
+
+
+/**
+ * Checks that DepthCodec is lossless and compares its size and speed with
+ * the GZIP stream used for depth files, on a synthetic 4K depth buffer.
+ *
+ * @author Philip DeCamp
+ */
+public class TestDepthCodec {
+
+    public static void main( String[] args ) throws Exception {
+        int w = 3840;
+        int h = 2160;
+        int reps = 5;
+
+        FloatBuffer depth = renderScene( w, h );
+        System.out.format( "%-16s %10s %10s %10s%n", "codec", "bytes", "enc ms", "dec ms" );
+
+        for( int level: new int[]{ 1, 6 } ) {
+            long t = System.nanoTime();
+            byte[] gz = null;
+            for( int i = 0; i < reps; i++ ) {
+                gz = gzip( depth, w, h, level );
+            }
+            double enc = ( System.nanoTime() - t ) / 1e6 / reps;
+            System.out.format( "%-16s %10d %10.1f %10s%n", "gzip-" + level, gz.length, enc, "-" );
+        }
+
+        for( int pred: new int[]{ DepthCodec.PREDICT_DELTA, DepthCodec.PREDICT_XOR } ) {
+            DepthCodec codec = new DepthCodec( null, pred, DepthCodec.DEFAULT_MIN_BAND_BYTES );
+            String name = pred == DepthCodec.PREDICT_DELTA ? "delta-" : "xor-";
+
+            for( int level: new int[]{ 1, 6 } ) {
+                ByteBuffer enc = null;
+                long t = System.nanoTime();
+                for( int i = 0; i < reps; i++ ) {
+                    enc = codec.encode( depth, w, h, level, null );
+                }
+                double encMs = ( System.nanoTime() - t ) / 1e6 / reps;
+                enc.flip();
+
+                FloatBuffer dec = null;
+                t = System.nanoTime();
+                for( int i = 0; i < reps; i++ ) {
+                    dec = codec.decode( enc.duplicate(), null, dec == null ? null : (FloatBuffer)dec.clear() );
+                }
+                double decMs = ( System.nanoTime() - t ) / 1e6 / reps;
+
+                if( !dec.equals( depth.duplicate() ) ) {
+                    throw new AssertionError( "Decoded depth differs: " + name + level );
+                }
+
+                System.out.format( "%-16s %10d %10.1f %10.1f%n", name + level, enc.remaining(), encMs, decMs );
+            }
+
+            codec.shutdown();
+        }
+    }
+
+    /**
+     * Window-space depth of a ground plane and scattered spheres under a perspective projection.
+     */
+    private static FloatBuffer renderScene( int w, int h ) {
+        final float near = 0.1f;
+        final float far  = 1000f;
+        FloatBuffer ret = FloatBuffer.allocate( w * h );
+
+        Random rand = new Random( 0 );
+        float[] spheres = new float[40 * 4];
+        for( int i = 0; i < spheres.length; i += 4 ) {
+            spheres[i  ] = rand.nextFloat() * 40f - 20f;
+            spheres[i+1] = rand.nextFloat() * 3f;
+            spheres[i+2] = -5f - rand.nextFloat() * 60f;
+            spheres[i+3] = 0.5f + rand.nextFloat() * 2f;
+        }
+
+        for( int y = 0; y < h; y++ ) {
+            for( int x = 0; x < w; x++ ) {
+                float dx = ( 2f * x / w - 1f ) * w / h;
+                float dy = 2f * y / h - 1f;
+                float dz = -1.5f;
+                float t = Float.POSITIVE_INFINITY;
+
+                // Ground plane at y = -1.
+                if( dy < 0 ) {
+                    t = -1f / dy;
+                }
+
+                for( int i = 0; i < spheres.length; i += 4 ) {
+                    float ox = -spheres[i], oy = -spheres[i+1], oz = -spheres[i+2], r = spheres[i+3];
+                    float a = dx * dx + dy * dy + dz * dz;
+                    float b = 2 * ( ox * dx + oy * dy + oz * dz );
+                    float c = ox * ox + oy * oy + oz * oz - r * r;
+                    float disc = b * b - 4 * a * c;
+                    if( disc >= 0 ) {
+                        float s = ( -b - (float)Math.sqrt( disc ) ) / ( 2 * a );
+                        if( s > 0 && s < t ) {
+                            t = s;
+                        }
+                    }
+                }
+
+                float z = t * -dz;
+                float d = 1f;
+                if( z >= near && z <= far ) {
+                    d = ( far / ( far - near ) ) * ( 1f - near / z );
+                }
+                ret.put( d );
+            }
+        }
+
+        ret.flip();
+        return ret;
+    }
+
+
+    private static byte[] gzip( FloatBuffer depth, int w, int h, int level ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final int lev = level;
+        GZIPOutputStream out = new GZIPOutputStream( bytes, 1 << 16 ) {{ def.setLevel( lev ); }};
+        ByteBuffer buf = ByteBuffer.allocate( 8 + w * h * 4 );
+        buf.putInt( w ).putInt( h );
+        buf.asFloatBuffer().put( depth.duplicate() );
+        out.write( buf.array() );
+        out.close();
+        return bytes.toByteArray();
+    }
+
+}
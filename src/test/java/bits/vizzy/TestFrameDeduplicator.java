@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.vizzy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import bits.draw3d.util.FrameDeduplicator;
+
+
+/**
+ * Writes a sequence with repeated frames through FrameDeduplicator in link
+ * and manifest modes. Output names are reserved with empty files first, as
+ * ScreenshotSaver does, and no empty file may be left behind.
+ *
+ * @author Philip DeCamp
+ */
+public class TestFrameDeduplicator {
+
+    // Frame content for each output index. Repeats should be deduplicated.
+    private static final int[] FRAMES = { 0, 0, 1, 1, 1, 0, 2, 2 };
+    private static final int UNIQUE   = 3;
+
+
+    public static void main( String[] args ) throws Exception {
+        testLink();
+        testManifest();
+    }
+
+
+    static void testLink() throws Exception {
+        File dir = tempDir();
+        FrameDeduplicator dedup = new FrameDeduplicator();
+        File[] files = writeSequence( dedup, dir );
+
+        if( dedup.duplicateCount() != FRAMES.length - UNIQUE ) {
+            throw new AssertionError( "Expected " + ( FRAMES.length - UNIQUE ) + " duplicates, got " + dedup.duplicateCount() );
+        }
+
+        for( int i = 0; i < files.length; i++ ) {
+            if( !Arrays.equals( readFile( files[i] ), frameBytes( FRAMES[i] ) ) ) {
+                throw new AssertionError( "Wrong content in " + files[i].getName() );
+            }
+        }
+
+        deleteDir( dir );
+        System.out.println( "MODE_LINK: OK" );
+    }
+
+
+    static void testManifest() throws Exception {
+        File dir = tempDir();
+        File manifest = new File( dir, "manifest.txt" );
+        FrameDeduplicator dedup = new FrameDeduplicator( manifest );
+        File[] files = writeSequence( dedup, dir );
+        dedup.close();
+
+        Map<String,String> links = new HashMap<String,String>();
+        BufferedReader in = new BufferedReader( new FileReader( manifest ) );
+        try {
+            for( String line = in.readLine(); line != null; line = in.readLine() ) {
+                String[] parts = line.split( "\t" );
+                links.put( parts[0], parts[1] );
+            }
+        } finally {
+            in.close();
+        }
+
+        if( links.size() != FRAMES.length - UNIQUE ) {
+            throw new AssertionError( "Expected " + ( FRAMES.length - UNIQUE ) + " manifest lines, got " + links.size() );
+        }
+
+        for( int i = 0; i < files.length; i++ ) {
+            String orig = links.get( files[i].getName() );
+            if( orig == null ) {
+                if( !Arrays.equals( readFile( files[i] ), frameBytes( FRAMES[i] ) ) ) {
+                    throw new AssertionError( "Wrong content in " + files[i].getName() );
+                }
+            } else {
+                if( files[i].exists() ) {
+                    throw new AssertionError( "Placeholder left for duplicate " + files[i].getName() );
+                }
+                if( !Arrays.equals( readFile( new File( dir, orig ) ), frameBytes( FRAMES[i] ) ) ) {
+                    throw new AssertionError( files[i].getName() + " maps to wrong frame " + orig );
+                }
+            }
+        }
+
+        deleteDir( dir );
+        System.out.println( "MODE_MANIFEST: OK" );
+    }
+
+
+
+    private static File[] writeSequence( FrameDeduplicator dedup, File dir ) throws IOException {
+        File[] files = new File[FRAMES.length];
+        for( int i = 0; i < FRAMES.length; i++ ) {
+            final byte[] bytes = frameBytes( FRAMES[i] );
+            files[i] = new File( dir, String.format( "%05d.png", i ) );
+            // Reserve name the way ScreenshotSaver does.
+            files[i].createNewFile();
+            dedup.write( ByteBuffer.wrap( bytes ), 4, 4, files[i], new FrameDeduplicator.Writer() {
+                public void write( File file ) throws IOException {
+                    OutputStream out = new FileOutputStream( file );
+                    try {
+                        out.write( bytes );
+                    } finally {
+                        out.close();
+                    }
+                }
+            } );
+        }
+
+        for( File f: dir.listFiles() ) {
+            if( f.length() == 0 ) {
+                throw new AssertionError( "Empty file left behind: " + f.getName() );
+            }
+        }
+        return files;
+    }
+
+
+    private static byte[] frameBytes( int frame ) {
+        byte[] ret = new byte[4 * 4 * 4];
+        Arrays.fill( ret, (byte)( frame * 31 + 1 ) );
+        return ret;
+    }
+
+
+    private static byte[] readFile( File file ) throws IOException {
+        DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try {
+            byte[] ret = new byte[(int)file.length()];
+            in.readFully( ret );
+            return ret;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    private static File tempDir() throws IOException {
+        File dir = File.createTempFile( "TestFrameDeduplicator", "" );
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+
+    private static void deleteDir( File dir ) {
+        for( File f: dir.listFiles() ) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.vizzy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import bits.draw3d.util.*;
+
+
+/**
+ * Writes frame sequence containers and reads them back, including frames
+ * without color or depth blobs and a container with no frames.
+ *
+ * @author Philip DeCamp
+ */
+public class TestFrameSequence {
+
+    public static void main( String[] args ) throws Exception {
+        testRoundTrip();
+        testEmpty();
+    }
+
+
+    static void testRoundTrip() throws Exception {
+        File file = File.createTempFile( "TestFrameSequence", ".seq" );
+        file.deleteOnExit();
+
+        Random rand = new Random( 0 );
+        int count = 50;
+        byte[][] colors = new byte[count][];
+        byte[][] depths = new byte[count][];
+
+        FrameSequenceWriter out = new FrameSequenceWriter( file );
+        for( int i = 0; i < count; i++ ) {
+            // Every fifth frame has no color, every third has no depth.
+            colors[i] = i % 5 == 4 ? null : randomBytes( rand, 1 + rand.nextInt( 5000 ) );
+            depths[i] = i % 3 == 2 ? null : randomBytes( rand, 1 + rand.nextInt( 5000 ) );
+            int idx = out.appendFrame( wrap( colors[i] ), wrap( depths[i] ), 100 + i, 200 + i );
+            if( idx != i ) {
+                throw new AssertionError( "appendFrame returned " + idx + ", expected " + i );
+            }
+        }
+        out.close();
+
+        FrameSequenceReader in = new FrameSequenceReader( file );
+        try {
+            if( in.frameCount() != count ) {
+                throw new AssertionError( "Read " + in.frameCount() + " frames, expected " + count );
+            }
+            for( int i = 0; i < count; i++ ) {
+                if( in.width( i ) != 100 + i || in.height( i ) != 200 + i ) {
+                    throw new AssertionError( "Wrong size for frame " + i );
+                }
+                if( in.hasColor( i ) != ( colors[i] != null ) || in.hasDepth( i ) != ( depths[i] != null ) ) {
+                    throw new AssertionError( "Wrong blob flags for frame " + i );
+                }
+                check( "color", i, colors[i], in.color( i ) );
+                check( "depth", i, depths[i], in.depth( i ) );
+            }
+        } finally {
+            in.close();
+        }
+
+        System.out.println( "Round trip: OK" );
+    }
+
+
+    static void testEmpty() throws Exception {
+        File file = File.createTempFile( "TestFrameSequence", ".seq" );
+        file.deleteOnExit();
+        new FrameSequenceWriter( file ).close();
+
+        FrameSequenceReader in = new FrameSequenceReader( file );
+        try {
+            if( in.frameCount() != 0 ) {
+                throw new AssertionError( "Empty container reports " + in.frameCount() + " frames." );
+            }
+        } finally {
+            in.close();
+        }
+
+        System.out.println( "Empty container: OK" );
+    }
+
+
+
+    private static byte[] randomBytes( Random rand, int len ) {
+        byte[] ret = new byte[len];
+        rand.nextBytes( ret );
+        return ret;
+    }
+
+
+    private static ByteBuffer wrap( byte[] arr ) {
+        return arr == null ? null : ByteBuffer.wrap( arr );
+    }
+
+
+    private static void check( String name, int frame, byte[] expect, ByteBuffer actual ) {
+        if( expect == null ) {
+            if( actual != null ) {
+                throw new AssertionError( "Frame " + frame + " has unexpected " + name + " blob." );
+            }
+            return;
+        }
+        if( actual == null || !actual.equals( ByteBuffer.wrap( expect ) ) ) {
+            throw new AssertionError( "Frame " + frame + " has wrong " + name + " blob." );
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.vizzy;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.*;
+
+import javax.imageio.ImageIO;
+
+import bits.draw3d.util.MjpegAviWriter;
+
+
+/**
+ * Writes a short Motion-JPEG AVI and parses it back, checking that each
+ * <tt>idx1</tt> entry points at a <tt>00dc</tt> chunk inside the
+ * <tt>movi</tt> list with the indexed size, and that each frame decodes.
+ *
+ * @author Philip DeCamp
+ */
+public class TestMjpegAviWriter {
+
+    public static void main( String[] args ) throws Exception {
+        int w = 160;
+        int h = 90;
+        int count = 24;
+
+        File file = File.createTempFile( "TestMjpegAviWriter", ".avi" );
+        file.deleteOnExit();
+
+        MjpegAviWriter out = new MjpegAviWriter( file, 30.0, MjpegAviWriter.DEFAULT_QUALITY, null );
+        ByteBuffer rgba = ByteBuffer.allocateDirect( w * h * 4 );
+        for( int i = 0; i < count; i++ ) {
+            // Vary content so frames differ in size, including odd sizes that need padding.
+            rgba.clear();
+            for( int p = 0; p < w * h; p++ ) {
+                int v = ( p * ( i + 1 ) ) ^ ( p >> 5 );
+                rgba.put( (byte)v ).put( (byte)( v >> 3 ) ).put( (byte)( i * 10 ) ).put( (byte)0xFF );
+            }
+            rgba.flip();
+            out.writeFrame( rgba, w, h );
+        }
+        out.close();
+
+        ByteBuffer b = readFile( file );
+        check( fourcc( b, 0 ).equals( "RIFF" ), "Missing RIFF header." );
+        check( b.getInt( 4 ) == b.capacity() - 8, "RIFF size is " + b.getInt( 4 ) + ", file is " + b.capacity() );
+        check( fourcc( b, 8 ).equals( "AVI " ), "Not an AVI file." );
+
+        int movi = -1;
+        int moviEnd = -1;
+        int idx1 = -1;
+        int idx1Size = 0;
+
+        for( int pos = 12; pos + 8 <= b.capacity(); ) {
+            String id = fourcc( b, pos );
+            int size = b.getInt( pos + 4 );
+            if( id.equals( "LIST" ) && fourcc( b, pos + 8 ).equals( "hdrl" ) ) {
+                check( fourcc( b, pos + 12 ).equals( "avih" ), "Missing avih." );
+                // dwTotalFrames is the fifth field of avih.
+                check( b.getInt( pos + 20 + 16 ) == count, "avih frame count is " + b.getInt( pos + 36 ) );
+            } else if( id.equals( "LIST" ) && fourcc( b, pos + 8 ).equals( "movi" ) ) {
+                movi = pos + 8;
+                moviEnd = pos + 8 + size;
+            } else if( id.equals( "idx1" ) ) {
+                idx1 = pos + 8;
+                idx1Size = size;
+            }
+            pos += 8 + size + ( size & 1 );
+        }
+
+        check( movi >= 0, "Missing movi list." );
+        check( idx1 >= 0, "Missing idx1 chunk." );
+        check( idx1Size == count * 16, "idx1 holds " + idx1Size / 16 + " entries, expected " + count );
+
+        for( int i = 0; i < count; i++ ) {
+            int e = idx1 + i * 16;
+            int off = b.getInt( e + 8 );
+            int len = b.getInt( e + 12 );
+            check( fourcc( b, e ).equals( "00dc" ), "Entry " + i + " has wrong chunk id." );
+            check( ( b.getInt( e + 4 ) & 0x10 ) != 0, "Entry " + i + " is not a keyframe." );
+
+            // Offsets are relative to the "movi" fourcc.
+            int chunk = movi + off;
+            check( chunk > movi && chunk + 8 + len <= moviEnd, "Entry " + i + " lies outside movi list." );
+            check( fourcc( b, chunk ).equals( "00dc" ), "Entry " + i + " does not point at a chunk." );
+            check( b.getInt( chunk + 4 ) == len, "Entry " + i + " size does not match chunk." );
+
+            byte[] jpeg = new byte[len];
+            b.position( chunk + 8 );
+            b.get( jpeg );
+            BufferedImage im = ImageIO.read( new ByteArrayInputStream( jpeg ) );
+            check( im != null && im.getWidth() == w && im.getHeight() == h, "Frame " + i + " does not decode." );
+        }
+
+        System.out.println( "idx1: OK (" + count + " frames, " + b.capacity() + " bytes)" );
+    }
+
+
+
+    private static ByteBuffer readFile( File file ) throws IOException {
+        byte[] arr = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try {
+            in.readFully( arr );
+        } finally {
+            in.close();
+        }
+        return ByteBuffer.wrap( arr ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+
+    private static String fourcc( ByteBuffer b, int pos ) {
+        char[] c = new char[4];
+        for( int i = 0; i < 4; i++ ) {
+            c[i] = (char)( b.get( pos + i ) & 0xFF );
+        }
+        return new String( c );
+    }
+
+
+    private static void check( boolean cond, String msg ) {
+        if( !cond ) {
+            throw new AssertionError( msg );
+        }
+    }
+
+}
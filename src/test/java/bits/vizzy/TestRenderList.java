@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.vizzy;
+
+import java.util.*;
+
+import bits.draw3d.actors.DepthSortable;
+import bits.draw3d.util.RenderList;
+import bits.math3d.*;
+
+
+/**
+ * Checks that SORT_INCREMENTAL gives the same order as a comparator sort
+ * over frames of small motion and sudden reordering, and that handles keep
+ * following their items through sorts and removals.
+ *
+ * @author Philip DeCamp
+ */
+public class TestRenderList {
+
+    public static void main( String[] args ) {
+        testIncrementalDepth();
+        testIncrementalComparator();
+        testHandles();
+    }
+
+
+    static void testIncrementalDepth() {
+        Random rand = new Random( 0 );
+        RenderList<Item> list = RenderList.create( Item.class, 16, RenderList.BACK_TO_FRONT, null );
+        list.sortMode( RenderList.SORT_INCREMENTAL );
+        for( int i = 0; i < 5000; i++ ) {
+            list.add( new Item( rand.nextFloat() ) );
+        }
+
+        for( int frame = 0; frame < 40; frame++ ) {
+            move( list, rand, frame );
+            list.updateSort();
+            if( frame % 10 == 4 && list.lastSortInversions() < 0 ) {
+                throw new AssertionError( "Frame " + frame + ": runs were not merged." );
+            }
+
+            Item[] expect = Arrays.copyOf( list.mArr, list.mSize );
+            Arrays.sort( expect, DepthSortable.BACK_TO_FRONT_ORDER );
+            for( int i = 0; i < list.mSize; i++ ) {
+                if( list.mArr[i].normDepth() != expect[i].normDepth() ) {
+                    throw new AssertionError( "Frame " + frame + ": wrong depth order at " + i );
+                }
+            }
+        }
+
+        System.out.println( "Incremental depth sort: OK" );
+    }
+
+
+    static void testIncrementalComparator() {
+        Random rand = new Random( 1 );
+        Comparator<Item> comp = new Comparator<Item>() {
+            public int compare( Item a, Item b ) {
+                return Float.compare( a.mDepth, b.mDepth );
+            }
+        };
+
+        RenderList<Item> list = RenderList.create( Item.class, 16, comp );
+        list.sortMode( RenderList.SORT_INCREMENTAL );
+        for( int i = 0; i < 3000; i++ ) {
+            list.add( new Item( rand.nextFloat() ) );
+        }
+
+        for( int frame = 0; frame < 40; frame++ ) {
+            move( list, rand, frame );
+            list.updateSort();
+            if( frame % 10 == 4 && list.lastSortInversions() < 0 ) {
+                throw new AssertionError( "Frame " + frame + ": runs were not merged." );
+            }
+
+            Item[] expect = Arrays.copyOf( list.mArr, list.mSize );
+            Arrays.sort( expect, comp );
+            for( int i = 0; i < list.mSize; i++ ) {
+                if( list.mArr[i].mDepth != expect[i].mDepth ) {
+                    throw new AssertionError( "Frame " + frame + ": wrong comparator order at " + i );
+                }
+            }
+        }
+
+        System.out.println( "Incremental comparator sort: OK" );
+    }
+
+
+    static void testHandles() {
+        for( int mode: new int[]{ RenderList.SORT_COMPARATOR, RenderList.SORT_RADIX, RenderList.SORT_INCREMENTAL } ) {
+            Random rand = new Random( mode );
+            RenderList<Item> list = RenderList.create( Item.class, 16, RenderList.FRONT_TO_BACK, null );
+            list.sortMode( mode );
+
+            Map<Integer, Item> items = new HashMap<Integer, Item>();
+            List<Integer> removed = new ArrayList<Integer>();
+            for( int i = 0; i < 2000; i++ ) {
+                Item item = new Item( rand.nextFloat() );
+                items.put( list.add( item ), item );
+            }
+
+            for( int frame = 0; frame < 20; frame++ ) {
+                move( list, rand, frame );
+                list.updateSort();
+                checkHandles( list, items, removed );
+
+                // Remove a few items singly and a few in a batch, then add some.
+                List<Integer> live = new ArrayList<Integer>( items.keySet() );
+                Collections.shuffle( live, rand );
+                for( int i = 0; i < 10; i++ ) {
+                    int h = live.get( i );
+                    if( !list.removeHandle( h ) ) {
+                        throw new AssertionError( "removeHandle failed for " + h );
+                    }
+                    items.remove( h );
+                    removed.add( h );
+                }
+
+                int[] batch = new int[20];
+                for( int i = 0; i < batch.length; i++ ) {
+                    batch[i] = live.get( 10 + i );
+                    items.remove( batch[i] );
+                    removed.add( batch[i] );
+                }
+                if( list.removeAll( batch, 0, batch.length ) != batch.length ) {
+                    throw new AssertionError( "removeAll did not remove all handles." );
+                }
+                checkHandles( list, items, removed );
+
+                for( int i = 0; i < 15; i++ ) {
+                    Item item = new Item( rand.nextFloat() );
+                    int h = list.add( item );
+                    removed.remove( (Integer)h );
+                    items.put( h, item );
+                }
+            }
+        }
+
+        System.out.println( "Handles: OK" );
+    }
+
+
+
+    private static void move( RenderList<Item> list, Random rand, int frame ) {
+        if( frame % 10 == 9 ) {
+            // Reverse everything.
+            for( int i = 0; i < list.mSize; i++ ) {
+                list.mArr[i].mDepth = 1f - list.mArr[i].mDepth;
+            }
+        } else if( frame % 10 == 4 ) {
+            // Move near half as a group, leaving two sorted runs.
+            for( int i = 0; i < list.mSize; i++ ) {
+                Item item = list.mArr[i];
+                if( item.mDepth < 0.5f ) {
+                    item.mDepth += 0.3f;
+                }
+            }
+        } else {
+            for( int i = 0; i < list.mSize; i++ ) {
+                Item item = list.mArr[i];
+                item.mDepth += ( rand.nextFloat() - 0.5f ) * 0.002f;
+            }
+        }
+    }
+
+
+    private static void checkHandles( RenderList<Item> list, Map<Integer, Item> items, List<Integer> removed ) {
+        if( list.size() != items.size() ) {
+            throw new AssertionError( "Size is " + list.size() + ", expected " + items.size() );
+        }
+
+        for( int i = 0; i < list.mSize; i++ ) {
+            int h = list.handleAt( i );
+            if( list.indexOf( h ) != i ) {
+                throw new AssertionError( "indexOf(handleAt(" + i + ")) = " + list.indexOf( h ) );
+            }
+            if( items.get( h ) != list.mArr[i] ) {
+                throw new AssertionError( "Handle " + h + " does not follow its item." );
+            }
+        }
+
+        for( int h: removed ) {
+            if( list.indexOf( h ) != -1 ) {
+                throw new AssertionError( "Removed handle " + h + " still maps to " + list.indexOf( h ) );
+            }
+        }
+    }
+
+
+    private static final class Item implements DepthSortable {
+
+        final Vec3 mNorm = new Vec3();
+        float mDepth;
+
+        Item( float depth ) {
+            mDepth = depth;
+        }
+
+
+        public Vec3 normPosRef() {
+            return mNorm;
+        }
+
+
+        public void updateNormPos( Mat4 projViewMat ) {
+            mNorm.z = mDepth;
+        }
+
+
+        public float normDepth() {
+            return mNorm.z;
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.vizzy;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.*;
+
+import javax.imageio.ImageIO;
+
+import bits.draw3d.util.ScreenshotSaver;
+
+
+/**
+ * Saves PNG files through ScreenshotSaver, which encodes into pooled
+ * native-order buffers, and checks that headers read back big-endian and
+ * pixels decode unchanged. Covers the parallel encoder and the native one.
+ *
+ * @author Philip DeCamp
+ */
+public class TestScreenshotSaver {
+
+    private static final byte[] PNG_SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+
+    public static void main( String[] args ) throws Exception {
+        int w = 301;
+        int h = 77;
+        ByteBuffer rgba = ByteBuffer.allocateDirect( w * h * 4 );
+        for( int i = 0; i < w * h; i++ ) {
+            rgba.put( (byte)i ).put( (byte)( i >> 8 ) ).put( (byte)( i * 7 ) ).put( (byte)0xFF );
+        }
+        rgba.flip();
+
+        ScreenshotSaver saver = new ScreenshotSaver();
+        for( boolean parallel: new boolean[]{ true, false } ) {
+            saver.parallelEncoding( parallel );
+            File file = File.createTempFile( "TestScreenshotSaver", ".png" );
+            file.deleteOnExit();
+
+            // Run twice so second save uses a recycled pool buffer.
+            for( int rep = 0; rep < 2; rep++ ) {
+                saver.savePng( rgba.duplicate(), w, h, file );
+                checkHeader( file, w, h );
+                checkPixels( file, rgba, w, h );
+            }
+
+            System.out.println( ( parallel ? "parallel" : "native" ) + " encoder: OK" );
+        }
+        saver.parallelEncoding( false );
+    }
+
+
+    private static void checkHeader( File file, int w, int h ) throws IOException {
+        DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try {
+            byte[] sig = new byte[8];
+            in.readFully( sig );
+            for( int i = 0; i < sig.length; i++ ) {
+                if( sig[i] != PNG_SIGNATURE[i] ) {
+                    throw new AssertionError( "Bad PNG signature." );
+                }
+            }
+
+            // DataInputStream reads big-endian, as PNG requires.
+            int len  = in.readInt();
+            int type = in.readInt();
+            if( len != 13 || type != 0x49484452 ) {
+                throw new AssertionError( "Bad IHDR chunk: length=" + len + " type=" + Integer.toHexString( type ) );
+            }
+
+            int fw = in.readInt();
+            int fh = in.readInt();
+            if( fw != w || fh != h ) {
+                throw new AssertionError( "Bad IHDR size: " + fw + "x" + fh + ", expected " + w + "x" + h );
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    private static void checkPixels( File file, ByteBuffer rgba, int w, int h ) throws IOException {
+        BufferedImage im = ImageIO.read( file );
+        if( im == null || im.getWidth() != w || im.getHeight() != h ) {
+            throw new AssertionError( "Failed to decode " + file.getPath() );
+        }
+
+        for( int y = 0; y < h; y++ ) {
+            for( int x = 0; x < w; x++ ) {
+                // Source rows are bottom-up.
+                int p = ( ( h - 1 - y ) * w + x ) * 4;
+                int expect = ( rgba.get( p + 3 ) & 0xFF ) << 24 |
+                             ( rgba.get( p     ) & 0xFF ) << 16 |
+                             ( rgba.get( p + 1 ) & 0xFF ) <<  8 |
+                             ( rgba.get( p + 2 ) & 0xFF );
+                if( im.getRGB( x, y ) != expect ) {
+                    throw new AssertionError( "Pixel mismatch at " + x + "," + y );
+                }
+            }
+        }
+    }
+
+}